@@ -0,0 +1,20 @@
+package de.twiechert.flatfat;
+
+import de.twiechert.flatfat.node.Node;
+
+/**
+ * A condition on the aggregate of a range of slices, which guides {@link FlatFatTree#findFirst(int, AggregatePredicate)}
+ * down the tree. It has to be monotone: once it holds for the aggregate of a range, it holds for the aggregate of every
+ * range extending it, e.g. the event count exceeding a threshold.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface AggregatePredicate<IN, ACC> {
+
+	/**
+	 * @param aggregate the aggregate of a range of slices, it must not be modified
+	 * @return whether the condition holds
+	 * @throws Exception in case the state cannot be evaluated
+	 */
+	boolean test(Node<IN, ACC> aggregate) throws Exception;
+}
@@ -0,0 +1,210 @@
+package de.twiechert.flatfat;
+
+/**
+ * Decides when the leaf capacity of the {@link NonShiftingFlatFatTree} grows and shrinks, as every change of the
+ * capacity rebuilds the heap. The tree grows by the growth factor once it is full and shrinks once its utilization
+ * drops below the shrink utilization. As it shrinks to at least twice its leafs, a window oscillating around a
+ * capacity boundary does not resize back and forth. A shrink delay requires the utilization to stay low for a number
+ * of removals, deferred shrinking leaves shrinking to {@link FlatFatTree#trimCapacity()}, e.g. in idle periods. A tree
+ * pre-sized for the expected leafs starts with and never shrinks below the capacity holding them.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class CapacityPolicy {
+
+	private final int maxCapacity;
+
+	private final int growthFactor;
+
+	private final double shrinkUtilization;
+
+	private final int shrinkDelay;
+
+	private final boolean deferShrink;
+
+	/**
+	 * The capacity the tree does not shrink below, which holds the expected leafs
+	 */
+	private final int floorCapacity;
+
+	private CapacityPolicy(Builder builder) {
+		this.maxCapacity = builder.maxCapacity;
+		this.growthFactor = builder.growthFactor;
+		this.shrinkUtilization = builder.shrinkUtilization;
+		this.shrinkDelay = builder.shrinkDelay;
+		this.deferShrink = builder.deferShrink;
+		int expectedCapacity = (builder.expectedLeafs > 0) ? ceilPowerOfTwo(builder.expectedLeafs + 1) : 1;
+		this.floorCapacity = Math.min(Math.max(builder.minCapacity, expectedCapacity), maxCapacity);
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return the policy the tree uses by default, which doubles when full and halves below a quarter utilization
+	 */
+	public static CapacityPolicy defaultPolicy() {
+		return new Builder().build();
+	}
+
+	/**
+	 * @param requestedCapacity the capacity passed to the tree builder
+	 * @return the capacity the tree starts with, which is large enough for the expected leafs
+	 */
+	public int getInitialCapacity(int requestedCapacity) {
+		return Math.min(Math.max(requestedCapacity, floorCapacity), maxCapacity);
+	}
+
+	/**
+	 * @param capacity the current capacity, which is exhausted
+	 * @return the capacity to grow to
+	 * @throws IllegalStateException if the maximum capacity is reached
+	 */
+	public int getGrownCapacity(int capacity) {
+		if (capacity >= maxCapacity)
+			throw new IllegalStateException("The capacity policy does not allow more than " + maxCapacity + " leafs");
+		return (int) Math.min((long) capacity * growthFactor, maxCapacity);
+	}
+
+	/**
+	 * @param capacity  the current capacity
+	 * @param leafCount the number of leafs
+	 * @return the capacity to shrink to or the current capacity if the utilization is high enough
+	 */
+	public int getShrunkCapacity(int capacity, int leafCount) {
+		if (capacity <= floorCapacity || leafCount >= shrinkUtilization * capacity)
+			return capacity;
+		return Math.min(capacity, Math.max(floorCapacity, ceilPowerOfTwo(2 * leafCount)));
+	}
+
+	/**
+	 * @param leafCount the number of leafs
+	 * @param capacity  a capacity the tree might grow to
+	 * @return the capacity after growing as often as required to hold the leafs
+	 */
+	public int getCapacityFor(int leafCount, int capacity) {
+		long grown = capacity;
+		while (grown < leafCount && grown < maxCapacity) {
+			grown *= growthFactor;
+		}
+		return (int) Math.min(grown, maxCapacity);
+	}
+
+	public int getShrinkDelay() {
+		return shrinkDelay;
+	}
+
+	public boolean isDeferShrink() {
+		return deferShrink;
+	}
+
+	private static int ceilPowerOfTwo(int value) {
+		return (value <= 1) ? 1 : Integer.highestOneBit(value - 1) << 1;
+	}
+
+	private static boolean isPowerOfTwo(long value) {
+		return value > 0 && (value & -value) == value;
+	}
+
+
+	public static class Builder {
+
+		private int minCapacity = 2;
+
+		private int maxCapacity = 1 << 30;
+
+		private int growthFactor = 2;
+
+		private double shrinkUtilization = 0.25;
+
+		private int shrinkDelay = 0;
+
+		private boolean deferShrink = false;
+
+		private int expectedLeafs = 0;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param minCapacity the capacity the tree never shrinks below, a power of two
+		 * @param maxCapacity the capacity the tree never grows beyond, a power of two
+		 * @return the builder
+		 */
+		public Builder bounds(int minCapacity, int maxCapacity) {
+			if (!isPowerOfTwo(minCapacity) || !isPowerOfTwo(maxCapacity) || minCapacity > maxCapacity)
+				throw new IllegalArgumentException("The bounds have to be ordered powers of two");
+			this.minCapacity = minCapacity;
+			this.maxCapacity = maxCapacity;
+			return this;
+		}
+
+		/**
+		 * @param growthFactor the factor the capacity is multiplied by once exhausted, a power of two
+		 * @return the builder
+		 */
+		public Builder growthFactor(int growthFactor) {
+			if (growthFactor < 2 || !isPowerOfTwo(growthFactor))
+				throw new IllegalArgumentException("The growth factor has to be a power of two of at least 2");
+			this.growthFactor = growthFactor;
+			return this;
+		}
+
+		/**
+		 * @param shrinkUtilization the utilization below which the tree shrinks, at most one half
+		 * @param shrinkDelay       the number of removals the utilization has to stay below before shrinking
+		 * @return the builder
+		 */
+		public Builder shrink(double shrinkUtilization, int shrinkDelay) {
+			if (shrinkUtilization <= 0 || shrinkUtilization > 0.5 || shrinkDelay < 0)
+				throw new IllegalArgumentException("The shrink utilization has to be in (0, 0.5] and the delay must not be negative");
+			this.shrinkUtilization = shrinkUtilization;
+			this.shrinkDelay = shrinkDelay;
+			return this;
+		}
+
+		/**
+		 * @param deferShrink whether removals never shrink the tree, but only {@link FlatFatTree#trimCapacity()}
+		 * @return the builder
+		 */
+		public Builder deferShrink(boolean deferShrink) {
+			this.deferShrink = deferShrink;
+			return this;
+		}
+
+		/**
+		 * Pre-sizes the tree for the slices of a sliding window, which are delimited by the window and the slide
+		 * boundaries
+		 *
+		 * @param windowLength the length of the window
+		 * @param slideLength  the length of the slide
+		 * @return the builder
+		 */
+		public Builder expectedWindow(long windowLength, long slideLength) {
+			if (windowLength < 1 || slideLength < 1)
+				throw new IllegalArgumentException("The window and the slide have to be positive");
+			long sliceLength = gcd(windowLength, slideLength);
+			return this.expectedLeafs((int) Math.min(windowLength / sliceLength, 1 << 30));
+		}
+
+		/**
+		 * @param expectedLeafs the number of leafs the tree is expected to hold at once
+		 * @return the builder
+		 */
+		public Builder expectedLeafs(int expectedLeafs) {
+			if (expectedLeafs < 0)
+				throw new IllegalArgumentException("The expected leafs must not be negative");
+			this.expectedLeafs = expectedLeafs;
+			return this;
+		}
+
+		public CapacityPolicy build() {
+			return new CapacityPolicy(this);
+		}
+
+		private static long gcd(long a, long b) {
+			return (b == 0) ? a : gcd(b, a % b);
+		}
+	}
+}
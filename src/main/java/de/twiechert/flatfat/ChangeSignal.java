@@ -0,0 +1,21 @@
+package de.twiechert.flatfat;
+
+/**
+ * May be implemented by {@link Mergeable} states of idempotent or selective aggregates, such as minimum, maximum or
+ * distinct counts, which most updates leave unchanged a few levels above the leaf. It allows the tree to stop
+ * recombining the ancestors of a changed leaf once one of them keeps its aggregate, see
+ * {@link FlatFatTree.Builder#propagationCutoff(boolean)}.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface ChangeSignal<IN, OUT> {
+
+	/**
+	 * The comparison has to be cheap compared to a merge. It may report a change spuriously, which only costs
+	 * recombining the next level, but must never report an unchanged aggregate for a changed one.
+	 *
+	 * @param other a state of the same factory
+	 * @return whether merging either state into any other one yields the same aggregate
+	 */
+	boolean hasSameAggregate(Mergeable<IN, OUT> other);
+}
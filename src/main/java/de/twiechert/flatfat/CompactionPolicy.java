@@ -0,0 +1,78 @@
+package de.twiechert.flatfat;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns a resolution to slices depending on their age. {@link FlatFatTree#compact(long)} merges runs of adjacent
+ * slices falling into the same aligned interval of their resolution, e.g. seconds older than an hour into minutes and
+ * minutes older than a day into hours.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class CompactionPolicy {
+
+	private final long[] minAges;
+
+	private final long[] resolutions;
+
+	private CompactionPolicy(TreeMap<Long, Long> tiers) {
+		this.minAges = new long[tiers.size()];
+		this.resolutions = new long[tiers.size()];
+		int i = 0;
+		for (Map.Entry<Long, Long> tier : tiers.entrySet()) {
+			minAges[i] = tier.getKey();
+			resolutions[i++] = tier.getValue();
+		}
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/**
+	 * @param age the age of a slice, i.e. the time passed since its end
+	 * @return the resolution the slice is compacted to or 0, if it is too young to be compacted
+	 */
+	public long getResolution(long age) {
+		long resolution = 0;
+		for (int i = 0; i < minAges.length && minAges[i] <= age; i++) {
+			resolution = resolutions[i];
+		}
+		return resolution;
+	}
+
+
+	public static class Builder {
+
+		private final TreeMap<Long, Long> tiers = new TreeMap<>();
+
+		private Builder() {
+		}
+
+		/**
+		 * @param minAge     the age from which on slices are compacted to the resolution
+		 * @param resolution the length of the aligned intervals, whose slices are merged
+		 * @return the builder
+		 */
+		public Builder tier(long minAge, long resolution) {
+			if (minAge < 0 || resolution < 1)
+				throw new IllegalArgumentException("The age must not be negative and the resolution has to be positive");
+			tiers.put(minAge, resolution);
+			return this;
+		}
+
+		public CompactionPolicy build() {
+			if (tiers.isEmpty())
+				throw new IllegalArgumentException("At least one tier is required");
+
+			long previous = 0;
+			for (long resolution : tiers.values()) {
+				if (resolution <= previous)
+					throw new IllegalArgumentException("Older tiers need a coarser resolution");
+				previous = resolution;
+			}
+			return new CompactionPolicy(tiers);
+		}
+	}
+}
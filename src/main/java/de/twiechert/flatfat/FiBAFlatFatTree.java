@@ -0,0 +1,1091 @@
+package de.twiechert.flatfat;
+
+import de.twiechert.flatfat.node.LeafCursor;
+import de.twiechert.flatfat.node.LeafVisitor;
+import de.twiechert.flatfat.node.Node;
+import de.twiechert.flatfat.node.NodeIndexPosition;
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A finger B-tree aggregator (FiBA) as an alternative to the FlatFAT circular heap, which suits streams with bounded
+ * disorder. The slices are kept in the bottom nodes of a B-tree with parent pointers, fingers point to the left- and
+ * rightmost bottom node.
+ * <p>
+ * Nodes off the spines store the aggregate of their subtree. Nodes on the left (right) spine however store the
+ * aggregate of their subtree without their leftmost (rightmost) child, combined with the aggregate of their parent,
+ * and the root only stores the aggregate of its inner children. Hence, a change close to either end only repairs the
+ * nodes up to the spine and down the spine again: a slice arriving d slices out-of-order costs O(log d) combines,
+ * in-order inserts and evictions cost amortized O(1) combines and the whole window takes two combines.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class FiBAFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree<IN, ACC> implements FlatFatTree<IN, ACC> {
+
+	private final int maxArity;
+
+	private final int minArity;
+
+	private BTreeNode<IN, ACC> root;
+
+	/**
+	 * The left- and rightmost bottom node, where evictions and in-order inserts happen
+	 */
+	private BTreeNode<IN, ACC> leftFinger, rightFinger;
+
+
+	protected FiBAFlatFatTree(Builder<IN, ACC> builder) throws Exception {
+		super(builder);
+		this.maxArity = builder.fibaMaxArity;
+		this.minArity = builder.fibaMaxArity / 2;
+		this.root = new BTreeNode<>(null, true);
+		this.root.agg = this.createEmpty();
+		this.leftFinger = this.root;
+		this.rightFinger = this.root;
+	}
+
+
+	@Override
+	public void add(int position, Node<IN, ACC> node, boolean commit) throws Exception {
+		if (position < 0 || position > this.currentLeafCount)
+			throw new IllegalArgumentException("Position " + position + " is out of range");
+
+		// slices evicted by the memory budget shift the position
+		position = Math.max(position - this.enforceMemoryBudget(node), 0);
+		if (position == this.currentLeafCount) {
+			this.insert(this.rightFinger, this.rightFinger.slices.size(), node);
+			return;
+		}
+
+		Pair<BTreeNode<IN, ACC>, Integer> location = this.locate(position);
+		this.insert(location.getValue0(), location.getValue1(), node);
+	}
+
+
+	/**
+	 * Searches the position of the slice starting from the right finger, such that only the subtree spanning the
+	 * out-of-order distance is visited.
+	 */
+	@Override
+	public void addPotentiallyOutOfOrder(Node<IN, ACC> node, boolean commit) throws Exception {
+		this.enforceMemoryBudget(node);
+		BTreeNode<IN, ACC> current = this.rightFinger;
+		while (current.parent != null && current.first.getEnd() > node.getStart()) {
+			current = current.parent;
+		}
+
+		while (!current.isBottom()) {
+			int i = current.children.size() - 1;
+			while (i > 0 && current.children.get(i).first.getEnd() > node.getStart()) {
+				i--;
+			}
+			current = current.children.get(i);
+		}
+
+		// the slice is inserted right after its predecessor, i.e. the last slice ending before it starts
+		int index = current.slices.size();
+		while (index > 0 && current.slices.get(index - 1).getEnd() > node.getStart()) {
+			index--;
+		}
+		this.insert(current, index, node);
+	}
+
+
+	@Override
+	public void add(Node<IN, ACC> node, boolean commit) throws Exception {
+		this.enforceMemoryBudget(node);
+		this.insert(this.rightFinger, this.rightFinger.slices.size(), node);
+	}
+
+
+	@Override
+	public boolean addToSlice(long eventTime, IN value) throws Exception {
+		return this.upsert(eventTime, value, null, 1);
+	}
+
+
+	@Override
+	public boolean mergeIntoSlice(long eventTime, Mergeable<IN, ACC> partial, long eventCount) throws Exception {
+		return this.upsert(eventTime, null, partial, eventCount);
+	}
+
+
+	/**
+	 * Searches the covering slice starting from the right finger, as addPotentiallyOutOfOrder does, and merges the
+	 * event or partial aggregate in place into the slice and every aggregate that covers it. Neither the search nor
+	 * the merges allocate, and a late event d slices behind the newest one costs O(log d) merges.
+	 *
+	 * @return whether a slice covers the event time
+	 */
+	private boolean upsert(long eventTime, IN value, Mergeable<IN, ACC> partial, long eventCount) throws Exception {
+		BTreeNode<IN, ACC> current = this.rightFinger;
+		while (current.parent != null && current.first != null && current.first.getStart() > eventTime) {
+			current = current.parent;
+		}
+
+		while (!current.isBottom()) {
+			int i = current.children.size() - 1;
+			while (i > 0 && current.children.get(i).first.getStart() > eventTime) {
+				i--;
+			}
+			current = current.children.get(i);
+		}
+
+		// the covering slice is the last one starting at or before the event time
+		int index = current.slices.size() - 1;
+		while (index > -1 && current.slices.get(index).getStart() > eventTime) {
+			index--;
+		}
+		if (index < 0 || eventTime >= current.slices.get(index).getEnd())
+			return false;
+
+		this.applyToSlice(current.slices.get(index), value, partial, eventCount, eventTime);
+		this.applyToAggregates(current, value, partial, eventCount, eventTime);
+		return true;
+	}
+
+
+	/**
+	 * Merges an event or partial aggregate in place into the aggregates covering a slice of the given bottom node:
+	 * those of its ancestors up to the first spine node, that spine node itself and, unless it is the root, the spine
+	 * nodes below it, whose aggregates include the one of their parent.
+	 */
+	private void applyToAggregates(BTreeNode<IN, ACC> bottom, IN value, Mergeable<IN, ACC> partial, long eventCount, long eventTime) throws Exception {
+		BTreeNode<IN, ACC> current = bottom;
+		while (current.parent != null && !current.isSpine()) {
+			this.applyTo(current.agg, value, partial, eventCount, eventTime);
+			current = current.parent;
+		}
+		this.applyTo(current.agg, value, partial, eventCount, eventTime);
+
+		if (current.parent == null || current.isBottom())
+			return;
+
+		BTreeNode<IN, ACC> spine = current;
+		while (!spine.isBottom()) {
+			spine = spine.children.get(current.leftSpine ? 0 : spine.children.size() - 1);
+			this.applyTo(spine.agg, value, partial, eventCount, eventTime);
+		}
+	}
+
+
+	private void applyTo(Node<IN, ACC> agg, IN value, Mergeable<IN, ACC> partial, long eventCount, long eventTime) throws Exception {
+		if (partial != null)
+			agg.getValueState().merge(partial);
+		else agg.getValueState().add(value);
+		agg.setCount(agg.getCount() + eventCount);
+		agg.setTmax(Math.max(agg.getTmax(), eventTime));
+	}
+
+
+	@Override
+	public Node<IN, ACC> getNodeOrNull(int leafPosition) {
+		return this.getNode(leafPosition);
+	}
+
+
+	@Override
+	public Node<IN, ACC> getNode(int leafPosition) {
+		if (leafPosition < 0 || leafPosition >= this.currentLeafCount)
+			return null;
+
+		Pair<BTreeNode<IN, ACC>, Integer> location = this.locate(leafPosition);
+		return location.getValue0().slices.get(location.getValue1());
+	}
+
+
+	@Override
+	public void remove(Integer... positions) throws Exception {
+		// removing from the back first keeps the remaining positions valid
+		Integer[] sorted = Arrays.copyOf(positions, positions.length);
+		Arrays.sort(sorted, Collections.reverseOrder());
+		Integer previous = null;
+		List<Node<IN, ACC>> removed = new ArrayList<>(sorted.length);
+		for (Integer position : sorted) {
+			if (position.equals(previous) || position < 0 || position >= this.currentLeafCount)
+				continue;
+
+			Pair<BTreeNode<IN, ACC>, Integer> location = this.locate(position);
+			removed.add(location.getValue0().slices.get(location.getValue1()));
+			this.delete(location.getValue0(), location.getValue1());
+			previous = position;
+		}
+		invalidateCachedResults(removed);
+		this.releaseMemory();
+	}
+
+
+	@Override
+	public void removeUpTo(int leafPosition) throws Exception {
+		if (leafPosition < 0 || leafPosition > this.currentLeafPosition)
+			return;
+
+		List<Node<IN, ACC>> removed = new ArrayList<>(leafPosition + 1);
+		for (int i = 0; i <= leafPosition; i++) {
+			removed.add(this.leftFinger.slices.get(0));
+			this.delete(this.leftFinger, 0);
+		}
+		invalidateCachedResults(removed);
+		this.releaseMemory();
+	}
+
+
+	@Override
+	public void mergeLeaves(int leftPosition, int rightPosition) throws Exception {
+		if (rightPosition != leftPosition + 1)
+			throw new IllegalArgumentException("Only neighbouring slices can be merged");
+
+		Node<IN, ACC> left = this.getNodeOrNull(leftPosition);
+		Node<IN, ACC> right = this.getNodeOrNull(rightPosition);
+		if (left == null || right == null)
+			throw new IllegalArgumentException("Both slices have to exist in order to be merged");
+
+		invalidateCachedResults(left);
+		Pair<BTreeNode<IN, ACC>, Integer> location = this.locate(leftPosition);
+		location.getValue0().slices.set(location.getValue1(), mergeSlices(left, right));
+		if (location.getValue1() == 0)
+			this.refreshFirst(location.getValue0());
+
+		this.remove(rightPosition);
+		this.update(leftPosition);
+	}
+
+
+	/**
+	 * The runs are replaced from the back, such that the positions of the remaining runs stay valid
+	 */
+	@Override
+	protected void replaceRuns(List<Triplet<Integer, Integer, Node<IN, ACC>>> runs) throws Exception {
+		List<Node<IN, ACC>> replaced = new ArrayList<>();
+		for (int i = runs.size() - 1; i > -1; i--) {
+			Triplet<Integer, Integer, Node<IN, ACC>> run = runs.get(i);
+			for (int position = run.getValue1(); position > run.getValue0(); position--) {
+				Pair<BTreeNode<IN, ACC>, Integer> location = this.locate(position);
+				replaced.add(location.getValue0().slices.get(location.getValue1()));
+				this.delete(location.getValue0(), location.getValue1());
+			}
+
+			Pair<BTreeNode<IN, ACC>, Integer> location = this.locate(run.getValue0());
+			replaced.add(location.getValue0().slices.get(location.getValue1()));
+			location.getValue0().slices.set(location.getValue1(), run.getValue2());
+			if (location.getValue1() == 0)
+				this.refreshFirst(location.getValue0());
+			this.repair(location.getValue0());
+		}
+		invalidateCachedResults(replaced);
+		this.releaseMemory();
+	}
+
+
+	/**
+	 * Appends the slices to an empty tree, which touches the spine only, as every slice is inserted at the right finger
+	 */
+	@Override
+	protected void rebuild(List<Node<IN, ACC>> slices) throws Exception {
+		if (resultCache != null)
+			resultCache.clear();
+
+		this.root = new BTreeNode<>(null, true);
+		this.root.agg = this.createEmpty();
+		this.leftFinger = this.root;
+		this.rightFinger = this.root;
+		this.currentLeafCount = 0;
+		this.currentLeafPosition = -1;
+		for (Node<IN, ACC> slice : slices) {
+			this.insert(this.rightFinger, this.rightFinger.slices.size(), slice);
+		}
+		this.releaseMemory();
+	}
+
+
+	@Override
+	public void update(Integer... positions) throws Exception {
+		List<Node<IN, ACC>> changed = new ArrayList<>(positions.length);
+		for (Integer position : positions) {
+			if (position < 0 || position >= this.currentLeafCount)
+				continue;
+
+			Pair<BTreeNode<IN, ACC>, Integer> location = this.locate(position);
+			changed.add(location.getValue0().slices.get(location.getValue1()));
+			this.repair(location.getValue0());
+		}
+		invalidateCachedResults(changed);
+	}
+
+
+	@Override
+	public Node<IN, ACC> aggregateFromTo(int startPosition, int endPosition) throws Exception {
+		if (startPosition <= 0 && endPosition >= this.currentLeafPosition)
+			return this.aggregateAll();
+
+		return this.suffix(startPosition, endPosition);
+	}
+
+
+	@Override
+	protected Node<IN, ACC> suffix(int startPosition, int endPosition) throws Exception {
+		Node<IN, ACC> agg = this.createEmpty();
+		int from = Math.max(startPosition, 0);
+		int to = Math.min(endPosition, this.currentLeafPosition);
+		if (from <= to)
+			this.aggregateRange(this.root, from, to, agg);
+		return agg;
+	}
+
+
+	/**
+	 * The slices are ordered by time, hence the covered slices are found by two descents instead of a scan
+	 */
+	@Override
+	protected long aggregateRangeInto(int startPosition, int endPosition, Mergeable<IN, ACC> target) throws Exception {
+		return this.aggregateRangeInto(this.root, startPosition, endPosition, target);
+	}
+
+
+	@Override
+	protected Node<IN, ACC> resolveAndAggregate(long startTime, long endTime) throws Exception {
+		int startPosition = this.countSlicesBefore(startTime, false);
+		int endPosition = this.countSlicesBefore(endTime, true) - 1;
+
+		if (startPosition <= endPosition)
+			return this.aggregateFromTo(startPosition, endPosition);
+		else return new Node.InnerNode<>(partialStateFactory.getState(), startTime, endTime);
+	}
+
+
+	/**
+	 * Spine nodes do not hold the event count of their subtree, hence the boundary slice is found by walking back from
+	 * the right finger, which costs O(k) for the k slices covered.
+	 */
+	@Override
+	public Node<IN, ACC> aggregateLastN(long eventCount) throws Exception {
+		if (eventCount <= 0 || this.currentLeafCount == 0)
+			return this.createEmpty();
+
+		long remaining = eventCount;
+		LeafCursor<IN, ACC> cursor = this.newLeafCursor();
+		cursor.seek(this.currentLeafPosition, false);
+		while (cursor.next()) {
+			if (cursor.getNode().getCount() >= remaining)
+				return this.aggregateFromBoundary(cursor.getPosition(), remaining);
+			remaining -= cursor.getNode().getCount();
+		}
+
+		return this.aggregateFromTo(0, this.currentLeafPosition);
+	}
+
+
+	@Override
+	public long estimatedSizeInBytes() {
+		return this.estimatedSizeInBytes(this.root) + MemoryEstimation.nodeSizeInBytes(identityNode) + this.auxiliarySizeInBytes();
+	}
+
+
+	/**
+	 * The nodes grow with the slices, hence they are part of the size per leaf
+	 */
+	@Override
+	protected long slotSizeInBytes(int leafCount) {
+		return 0;
+	}
+
+
+	/**
+	 * The nodes are split and merged with the slices, so there is no capacity to trim
+	 */
+	@Override
+	public boolean trimCapacity() {
+		return false;
+	}
+
+
+	/**
+	 * The tree grows with its slices, so it never runs out of capacity
+	 */
+	@Override
+	public int currentCapacity() {
+		return Integer.MAX_VALUE - this.currentLeafCount;
+	}
+
+
+	/**
+	 * The index of the cursor equals its position, as there is no heap index
+	 */
+	@Override
+	public LeafCursor<IN, ACC> newLeafCursor() {
+		return new BottomLeafCursor();
+	}
+
+
+	@Override
+	public void forEachLeaf(int fromPosition, int toPosition, LeafVisitor<IN, ACC> visitor) throws Exception {
+		LeafCursor<IN, ACC> cursor = new BottomLeafCursor();
+		cursor.seek(Math.max(fromPosition, 0), true);
+		while (cursor.next() && cursor.getPosition() <= toPosition) {
+			if (!visitor.visit(cursor.getPosition(), cursor.getNode()))
+				return;
+		}
+	}
+
+
+	/**
+	 * The index of the returned {@link NodeIndexPosition} equals its position, as there is no heap index
+	 */
+	@Override
+	public Iterator<NodeIndexPosition<IN, ACC>> getSliceBackwardsIterator() {
+		return new SliceBackwardsIterator();
+	}
+
+
+	/**
+	 * The index of the returned {@link NodeIndexPosition} equals its position, as there is no heap index
+	 */
+	@Override
+	public Iterator<NodeIndexPosition<IN, ACC>> getSliceForwardsIterator() {
+		return new SliceForwardsIterator();
+	}
+
+
+	private Node<IN, ACC> aggregateAll() throws Exception {
+		if (this.root.isBottom())
+			return new Node.InnerNode<>(this.root.agg, partialStateFactory);
+
+		Node<IN, ACC> agg = combine(this.leftFinger.agg, this.root.agg);
+		return combine(agg, agg, this.rightFinger.agg);
+	}
+
+
+	/**
+	 * @param node the subtree to aggregate from
+	 * @param from the first position to aggregate, relative to the subtree
+	 * @param to   the last position to aggregate, relative to the subtree
+	 * @param agg  the node to aggregate into
+	 */
+	private void aggregateRange(BTreeNode<IN, ACC> node, int from, int to, Node<IN, ACC> agg) throws Exception {
+		if (node.isBottom()) {
+			for (int i = from; i <= to; i++) {
+				combine(agg, agg, node.slices.get(i));
+			}
+			return;
+		}
+
+		// spine nodes do not hold the aggregate of their subtree, so they are always descended
+		if (from == 0 && to == node.size - 1 && node.parent != null && !node.isSpine()) {
+			combine(agg, agg, node.agg);
+			return;
+		}
+
+		int offset = 0;
+		for (BTreeNode<IN, ACC> child : node.children) {
+			int childFrom = Math.max(from - offset, 0);
+			int childTo = Math.min(to - offset, child.size - 1);
+			if (childFrom <= childTo)
+				this.aggregateRange(child, childFrom, childTo, agg);
+
+			offset += child.size;
+			if (offset > to)
+				break;
+		}
+	}
+
+
+	/**
+	 * Descends as {@link #aggregateRange(BTreeNode, int, int, Node)}, but merges into the caller's state and iterates
+	 * by index, such that no iterator is allocated
+	 */
+	private long aggregateRangeInto(BTreeNode<IN, ACC> node, int from, int to, Mergeable<IN, ACC> target) throws Exception {
+		long count = 0;
+		if (node.isBottom()) {
+			for (int i = from; i <= to; i++) {
+				count += mergeInto(target, node.slices.get(i));
+			}
+			return count;
+		}
+
+		if (from == 0 && to == node.size - 1 && node.parent != null && !node.isSpine())
+			return mergeInto(target, node.agg);
+
+		int offset = 0;
+		for (int i = 0; i < node.children.size() && offset <= to; i++) {
+			BTreeNode<IN, ACC> child = node.children.get(i);
+			int childFrom = Math.max(from - offset, 0);
+			int childTo = Math.min(to - offset, child.size - 1);
+			if (childFrom <= childTo)
+				count += this.aggregateRangeInto(child, childFrom, childTo, target);
+
+			offset += child.size;
+		}
+		return count;
+	}
+
+
+	/**
+	 * The slices are found by a descent, which needs no resolver
+	 */
+	@Override
+	protected int countSlicesBefore(long time, boolean byTmax) {
+		int count = 0;
+		BTreeNode<IN, ACC> current = this.root;
+		while (!current.isBottom()) {
+			int i = current.children.size() - 1;
+			while (i > 0 && this.timeOf(current.children.get(i).first, byTmax) >= time) {
+				i--;
+			}
+			for (int j = 0; j < i; j++) {
+				count += current.children.get(j).size;
+			}
+			current = current.children.get(i);
+		}
+
+		for (Node<IN, ACC> slice : current.slices) {
+			if (this.timeOf(slice, byTmax) >= time)
+				break;
+			count++;
+		}
+		return count;
+	}
+
+
+	private long timeOf(Node<IN, ACC> slice, boolean byTmax) {
+		return byTmax ? slice.getTmax() : slice.getStart();
+	}
+
+
+	/**
+	 * @param position the position of a slice
+	 * @return the bottom node holding the slice and the index of the slice within it
+	 */
+	private Pair<BTreeNode<IN, ACC>, Integer> locate(int position) {
+		BTreeNode<IN, ACC> current = this.root;
+		int offset = position;
+		while (!current.isBottom()) {
+			int i = 0;
+			while (offset >= current.children.get(i).size) {
+				offset -= current.children.get(i).size;
+				i++;
+			}
+			current = current.children.get(i);
+		}
+		return new Pair<>(current, offset);
+	}
+
+
+	private void insert(BTreeNode<IN, ACC> bottom, int index, Node<IN, ACC> slice) throws Exception {
+		invalidateCachedResults(slice);
+		boolean append = bottom == this.rightFinger && index == bottom.slices.size();
+
+		bottom.slices.add(index, slice);
+		this.adjustSizes(bottom, 1);
+		if (index == 0)
+			this.refreshFirst(bottom);
+
+		this.currentLeafCount++;
+		this.currentLeafPosition++;
+
+		if (bottom.arity() <= this.maxArity) {
+			// the right finger aggregates everything right of the root's inner children, so an appended slice is simply added
+			if (append)
+				combine(bottom.agg, bottom.agg, slice);
+			else this.repair(bottom);
+			return;
+		}
+
+		List<BTreeNode<IN, ACC>> changed = new ArrayList<>();
+		BTreeNode<IN, ACC> current = bottom;
+		while (current.arity() > this.maxArity) {
+			changed.add(current);
+			changed.add(this.split(current));
+			current = current.parent;
+		}
+		this.repair(changed, current);
+	}
+
+
+	/**
+	 * Does not invalidate cached results, callers do so once for all slices they delete
+	 */
+	private void delete(BTreeNode<IN, ACC> bottom, int index) throws Exception {
+		bottom.slices.remove(index);
+		this.adjustSizes(bottom, -1);
+		if (index == 0)
+			this.refreshFirst(bottom);
+
+		this.currentLeafCount--;
+		this.currentLeafPosition--;
+
+		List<BTreeNode<IN, ACC>> changed = new ArrayList<>();
+		BTreeNode<IN, ACC> current = bottom;
+		BTreeNode<IN, ACC> top = bottom;
+		while (current.parent != null && current.arity() < this.minArity) {
+			BTreeNode<IN, ACC> parent = current.parent;
+			int i = parent.children.indexOf(current);
+			boolean fromRight = i + 1 < parent.children.size();
+			BTreeNode<IN, ACC> sibling = parent.children.get(fromRight ? i + 1 : i - 1);
+			top = parent;
+
+			if (sibling.arity() > this.minArity) {
+				this.borrow(current, sibling, fromRight);
+				changed.add(current);
+				changed.add(sibling);
+				break;
+			}
+
+			BTreeNode<IN, ACC> survivor = fromRight ? current : sibling;
+			this.merge(survivor, fromRight ? sibling : current);
+			changed.add(survivor);
+			current = parent;
+		}
+
+		if (!this.root.isBottom() && this.root.arity() == 1) {
+			this.root = this.root.children.get(0);
+			this.root.parent = null;
+			this.root.leftSpine = false;
+			this.root.rightSpine = false;
+			top = this.root;
+		}
+
+		this.repair(changed, top);
+	}
+
+
+	/**
+	 * Moves the upper half of an overflowing node into a new right sibling, a new root is created if required
+	 *
+	 * @param node the overflowing node
+	 * @return the new sibling
+	 */
+	private BTreeNode<IN, ACC> split(BTreeNode<IN, ACC> node) {
+		if (node.parent == null) {
+			BTreeNode<IN, ACC> newRoot = new BTreeNode<>(null, false);
+			newRoot.children.add(node);
+			newRoot.size = node.size;
+			newRoot.first = node.first;
+			node.parent = newRoot;
+			node.leftSpine = true;
+			node.rightSpine = true;
+			this.root = newRoot;
+		}
+
+		BTreeNode<IN, ACC> sibling = new BTreeNode<>(node.parent, node.isBottom());
+		int half = node.arity() / 2;
+		if (node.isBottom()) {
+			List<Node<IN, ACC>> moved = node.slices.subList(half, node.slices.size());
+			sibling.slices.addAll(moved);
+			moved.clear();
+			sibling.size = sibling.slices.size();
+
+			sibling.next = node.next;
+			sibling.prev = node;
+			if (node.next != null)
+				node.next.prev = sibling;
+			node.next = sibling;
+			if (this.rightFinger == node)
+				this.rightFinger = sibling;
+		} else {
+			List<BTreeNode<IN, ACC>> moved = node.children.subList(half, node.children.size());
+			for (BTreeNode<IN, ACC> child : moved) {
+				child.parent = sibling;
+				sibling.size += child.size;
+			}
+			sibling.children.addAll(moved);
+			moved.clear();
+		}
+
+		node.size -= sibling.size;
+		sibling.rightSpine = node.rightSpine;
+		node.rightSpine = false;
+		sibling.refreshFirst();
+		node.parent.children.add(node.parent.children.indexOf(node) + 1, sibling);
+		return sibling;
+	}
+
+
+	/**
+	 * Moves the neighbouring element of the sibling into the underflowing node
+	 */
+	private void borrow(BTreeNode<IN, ACC> node, BTreeNode<IN, ACC> sibling, boolean fromRight) {
+		int movedSize;
+		if (node.isBottom()) {
+			Node<IN, ACC> moved = fromRight ? sibling.slices.remove(0) : sibling.slices.remove(sibling.slices.size() - 1);
+			node.slices.add(fromRight ? node.slices.size() : 0, moved);
+			movedSize = 1;
+		} else {
+			BTreeNode<IN, ACC> moved = fromRight ? sibling.children.remove(0) : sibling.children.remove(sibling.children.size() - 1);
+			node.children.add(fromRight ? node.children.size() : 0, moved);
+			moved.parent = node;
+			movedSize = moved.size;
+		}
+		node.size += movedSize;
+		sibling.size -= movedSize;
+		this.refreshFirst(node);
+		if (fromRight)
+			this.refreshFirst(sibling);
+	}
+
+
+	/**
+	 * Moves all elements of the right node into its left sibling and removes the right node
+	 */
+	private void merge(BTreeNode<IN, ACC> left, BTreeNode<IN, ACC> right) {
+		if (left.isBottom()) {
+			left.slices.addAll(right.slices);
+			left.next = right.next;
+			if (right.next != null)
+				right.next.prev = left;
+			if (this.rightFinger == right)
+				this.rightFinger = left;
+		} else {
+			for (BTreeNode<IN, ACC> child : right.children) {
+				child.parent = left;
+			}
+			left.children.addAll(right.children);
+		}
+		left.size += right.size;
+		left.rightSpine = left.rightSpine || right.rightSpine;
+		left.parent.children.remove(right);
+		this.refreshFirst(left);
+	}
+
+
+	/**
+	 * Recomputes the changed nodes off the spines bottom-up and repairs everything above the top node
+	 *
+	 * @param changed the changed nodes in bottom-up order
+	 * @param top     the highest node whose children changed
+	 */
+	private void repair(List<BTreeNode<IN, ACC>> changed, BTreeNode<IN, ACC> top) throws Exception {
+		for (BTreeNode<IN, ACC> node : changed) {
+			if (node.parent != null && !node.isSpine())
+				this.recompute(node);
+		}
+		this.repair(top);
+	}
+
+
+	/**
+	 * Repairs the aggregates depending on the given node: its ancestors up to the first spine node, and the spine
+	 * below that node.
+	 *
+	 * @param node the node whose content changed
+	 */
+	private void repair(BTreeNode<IN, ACC> node) throws Exception {
+		BTreeNode<IN, ACC> current = node;
+		while (current.parent != null && !current.isSpine()) {
+			this.recompute(current);
+			current = current.parent;
+		}
+		this.recompute(current);
+
+		if (current.isBottom())
+			return;
+
+		if (current.parent == null || current.leftSpine)
+			this.recomputeSpine(current.children.get(0), true);
+		if (current.parent == null || current.rightSpine)
+			this.recomputeSpine(current.children.get(current.children.size() - 1), false);
+	}
+
+
+	private void recomputeSpine(BTreeNode<IN, ACC> node, boolean left) throws Exception {
+		BTreeNode<IN, ACC> current = node;
+		while (current != null) {
+			this.recompute(current);
+			current = current.isBottom() ? null : current.children.get(left ? 0 : current.children.size() - 1);
+		}
+	}
+
+
+	private void recompute(BTreeNode<IN, ACC> node) throws Exception {
+		int from = 0;
+		int to = node.arity();
+		if (!node.isBottom()) {
+			// the children on the spines are excluded, their subtrees are covered by the spine aggregates
+			if (node.parent == null || node.leftSpine)
+				from = 1;
+			if (node.parent == null || node.rightSpine)
+				to--;
+		}
+
+		// the parent aggregate is only part of the spine aggregate below the root, as the root holds its inner children
+		Node<IN, ACC> parentAgg = (node.parent != null && node.parent.parent != null) ? node.parent.agg : null;
+
+		Node<IN, ACC> agg = this.createEmpty();
+		if (node.rightSpine && parentAgg != null)
+			combine(agg, agg, parentAgg);
+
+		for (int i = from; i < to; i++) {
+			combine(agg, agg, node.isBottom() ? node.slices.get(i) : node.children.get(i).agg);
+		}
+
+		if (node.leftSpine && parentAgg != null)
+			combine(agg, agg, parentAgg);
+
+		node.agg = agg;
+	}
+
+
+	private void adjustSizes(BTreeNode<IN, ACC> node, int delta) {
+		for (BTreeNode<IN, ACC> current = node; current != null; current = current.parent) {
+			current.size += delta;
+		}
+	}
+
+
+	/**
+	 * Refreshes the first slice of the node and of all ancestors it is the leftmost descendant of
+	 */
+	private void refreshFirst(BTreeNode<IN, ACC> node) {
+		BTreeNode<IN, ACC> current = node;
+		while (true) {
+			current.refreshFirst();
+			if (current.parent == null || current.parent.children.get(0) != current)
+				break;
+			current = current.parent;
+		}
+	}
+
+
+	/**
+	 * @return the size of the subtree including its slices and aggregates
+	 */
+	private long estimatedSizeInBytes(BTreeNode<IN, ACC> node) {
+		// the node with its references, counters and flags and its list, which holds at least ten elements
+		long bytes = MemoryEstimation.OBJECT_HEADER_BYTES + 7 * MemoryEstimation.REFERENCE_BYTES + 8
+				+ MemoryEstimation.OBJECT_HEADER_BYTES + MemoryEstimation.arraySizeInBytes(Math.max(10, node.arity()))
+				+ MemoryEstimation.nodeSizeInBytes(node.agg);
+		if (node.isBottom()) {
+			for (Node<IN, ACC> slice : node.slices) {
+				bytes += MemoryEstimation.nodeSizeInBytes(slice);
+			}
+		} else {
+			for (BTreeNode<IN, ACC> child : node.children) {
+				bytes += this.estimatedSizeInBytes(child);
+			}
+		}
+		return bytes;
+	}
+
+
+	/**
+	 * A node of the B-tree, bottom nodes hold the slices, all others hold child nodes
+	 */
+	private static class BTreeNode<IN, ACC> {
+
+		private BTreeNode<IN, ACC> parent;
+
+		private final List<BTreeNode<IN, ACC>> children;
+
+		private final List<Node<IN, ACC>> slices;
+
+		/**
+		 * Neighbouring bottom nodes
+		 */
+		private BTreeNode<IN, ACC> prev, next;
+
+		/**
+		 * The number of slices in the subtree
+		 */
+		private int size = 0;
+
+		/**
+		 * The first slice of the subtree, which guides searches by time
+		 */
+		private Node<IN, ACC> first;
+
+		private boolean leftSpine = false;
+
+		private boolean rightSpine = false;
+
+		/**
+		 * The aggregate of the subtree, the spine aggregate for spine nodes or the inner aggregate for the root
+		 */
+		private Node<IN, ACC> agg;
+
+		private BTreeNode(BTreeNode<IN, ACC> parent, boolean bottom) {
+			this.parent = parent;
+			this.children = bottom ? null : new ArrayList<BTreeNode<IN, ACC>>();
+			this.slices = bottom ? new ArrayList<Node<IN, ACC>>() : null;
+		}
+
+		private boolean isBottom() {
+			return slices != null;
+		}
+
+		private boolean isSpine() {
+			return leftSpine || rightSpine;
+		}
+
+		private int arity() {
+			return isBottom() ? slices.size() : children.size();
+		}
+
+		private void refreshFirst() {
+			if (isBottom())
+				first = slices.isEmpty() ? null : slices.get(0);
+			else first = children.get(0).first;
+		}
+	}
+
+
+	/**
+	 * Walks the chain of bottom nodes, seeking descends from the root
+	 */
+	private class BottomLeafCursor implements LeafCursor<IN, ACC> {
+
+		private BTreeNode<IN, ACC> bottom;
+
+		/**
+		 * The index of the next slice within the bottom node
+		 */
+		private int index;
+
+		private int step;
+
+		private int nextPosition;
+
+		private int position = -1;
+
+		private Node<IN, ACC> node;
+
+		@Override
+		public void seek(int position, boolean forwards) {
+			this.step = forwards ? 1 : -1;
+			this.nextPosition = position;
+			this.node = null;
+			this.bottom = null;
+			if (position < 0 || position >= currentLeafCount)
+				return;
+
+			BTreeNode<IN, ACC> current = root;
+			int offset = position;
+			while (!current.isBottom()) {
+				int i = 0;
+				while (offset >= current.children.get(i).size) {
+					offset -= current.children.get(i).size;
+					i++;
+				}
+				current = current.children.get(i);
+			}
+			this.bottom = current;
+			this.index = offset;
+		}
+
+		@Override
+		public boolean next() {
+			while (bottom != null && (index < 0 || index >= bottom.slices.size())) {
+				bottom = (step > 0) ? bottom.next : bottom.prev;
+				if (bottom != null)
+					index = (step > 0) ? 0 : bottom.slices.size() - 1;
+			}
+			if (bottom == null) {
+				node = null;
+				return false;
+			}
+
+			node = bottom.slices.get(index);
+			index += step;
+			position = nextPosition;
+			nextPosition += step;
+			return true;
+		}
+
+		@Override
+		public int getPosition() {
+			return position;
+		}
+
+		@Override
+		public int getIndex() {
+			return position;
+		}
+
+		@Override
+		public Node<IN, ACC> getNode() {
+			return node;
+		}
+
+		@Override
+		public long getStart() {
+			return node.getStart();
+		}
+
+		@Override
+		public long getEnd() {
+			return node.getEnd();
+		}
+
+		@Override
+		public long getTmax() {
+			return node.getTmax();
+		}
+	}
+
+
+	private class SliceForwardsIterator implements Iterator<NodeIndexPosition<IN, ACC>> {
+
+		private BTreeNode<IN, ACC> bottom = leftFinger;
+
+		private int index = 0;
+
+		private int position = 0;
+
+		@Override
+		public boolean hasNext() {
+			while (bottom != null && index >= bottom.slices.size()) {
+				bottom = bottom.next;
+				index = 0;
+			}
+			return bottom != null;
+		}
+
+		@Override
+		public NodeIndexPosition<IN, ACC> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return new NodeIndexPosition<>(bottom.slices.get(index++), position, position++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+
+	private class SliceBackwardsIterator implements Iterator<NodeIndexPosition<IN, ACC>> {
+
+		private BTreeNode<IN, ACC> bottom = rightFinger;
+
+		private int index = rightFinger.slices.size() - 1;
+
+		private int position = currentLeafCount - 1;
+
+		@Override
+		public boolean hasNext() {
+			while (bottom != null && index < 0) {
+				bottom = bottom.prev;
+				index = (bottom != null) ? bottom.slices.size() - 1 : -1;
+			}
+			return bottom != null;
+		}
+
+		@Override
+		public NodeIndexPosition<IN, ACC> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return new NodeIndexPosition<>(bottom.slices.get(index--), position, position--);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package de.twiechert.flatfat;
+
+import de.twiechert.flatfat.node.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps aggregates anchored at both ends of the tree, such that queries reaching up to the newest leaf or starting
+ * at the oldest leaf cost an amortized constant number of combines instead of a walk through the tree.
+ * <p>
+ * Back anchored queries are served by suffix aggregates up to a split position plus a running aggregate of all
+ * leafs appended after the split (as in the two-stacks sliding window aggregation). Front anchored queries are served
+ * the other way round: suffix aggregates of the leafs before a front split, which are built once the front passes
+ * the previous front split, plus prefix aggregates from the front split on, which are only built up to the queried
+ * end. Hence, neither appends nor evictions pay for the front finger, and a rebuild is paid for by the evictions
+ * since the previous one.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+class FingerAggregates<IN, ACC> {
+
+	private final FlatFatTree.BaseFlatFatTree<IN, ACC> tree;
+
+	/**
+	 * The suffix aggregates ending at the split, the first one starts at the split, each next one a position earlier
+	 */
+	private final List<Node<IN, ACC>> suffixes = new ArrayList<>();
+
+	/**
+	 * The last position covered by the suffix aggregates, -1 if there are none
+	 */
+	private int split = -1;
+
+	/**
+	 * The aggregate of all leafs after the split, null if there are none
+	 */
+	private Node<IN, ACC> backAggregate;
+
+	/**
+	 * Whether a leaf after the split changed, such that the back aggregate has to be recomputed before it is used
+	 */
+	private boolean backAggregateStale = false;
+
+	/**
+	 * The suffix aggregates ending right before the front split, the first one starts at the position before the
+	 * front split, each next one a position earlier
+	 */
+	private final List<Node<IN, ACC>> frontSuffixes = new ArrayList<>();
+
+	/**
+	 * The first position covered by the prefix aggregates, -1 if the front finger has to be rebuilt
+	 */
+	private int frontSplit = -1;
+
+	/**
+	 * The prefix aggregates, the i-th one aggregates the positions from the front split up to the front split plus i
+	 */
+	private final List<Node<IN, ACC>> prefixes = new ArrayList<>();
+
+	FingerAggregates(FlatFatTree.BaseFlatFatTree<IN, ACC> tree) {
+		this.tree = tree;
+	}
+
+	/**
+	 * @param position the position of the leaf appended at the back
+	 * @param leaf     the appended leaf
+	 */
+	void appended(int position, Node<IN, ACC> leaf) throws Exception {
+		if (split < 0)
+			return;
+		if (!backAggregateStale) {
+			backAggregate = (backAggregate == null) ? copy(leaf) : tree.combine(backAggregate, backAggregate, leaf);
+			return;
+		}
+		// the state is recomputed anyway, only the bounds are kept up to date
+		backAggregate.setTmax(Math.max(backAggregate.getTmax(), leaf.getTmax()));
+		if (leaf.getEnd() != 0L)
+			backAggregate.setEnd(leaf.getEnd());
+	}
+
+	/**
+	 * @param count the number of leafs evicted from the front
+	 */
+	void evicted(int count) {
+		frontSplit -= count;
+		if (frontSplit < 0) {
+			// the prefixes include evicted leafs
+			this.resetFront();
+		} else {
+			// the front suffixes starting at evicted positions are at the end of the list
+			trim(frontSuffixes, frontSplit);
+		}
+
+		split -= count;
+		if (split < 0) {
+			this.resetSuffixes();
+			return;
+		}
+		trim(suffixes, split + 1);
+	}
+
+	/**
+	 * Drops the aggregates covering a leaf, which was changed in place
+	 *
+	 * @param position the position of the changed leaf
+	 */
+	void invalidate(int position) {
+		if (frontSplit > -1) {
+			if (position < frontSplit)
+				trim(frontSuffixes, frontSplit - 1 - position);
+			else trim(prefixes, position - frontSplit);
+		}
+
+		if (split < 0)
+			return;
+		if (position <= split) {
+			trim(suffixes, split - position);
+		} else if (backAggregate != null) {
+			// a leaf might grow its tmax, but never shrinks it
+			Node<IN, ACC> leaf = tree.getNodeOrNull(position);
+			if (leaf != null)
+				backAggregate.setTmax(Math.max(backAggregate.getTmax(), leaf.getTmax()));
+			backAggregateStale = true;
+		}
+	}
+
+	/**
+	 * Drops all fingers, e.g. because leafs were inserted out-of-order or removed from the middle
+	 */
+	void invalidate() {
+		this.resetFront();
+		this.resetSuffixes();
+	}
+
+	/**
+	 * @param startPosition the first position to aggregate
+	 * @param lastPosition  the position of the newest leaf
+	 * @return the aggregate from the start position up to the newest leaf
+	 */
+	Node<IN, ACC> suffix(int startPosition, int lastPosition) throws Exception {
+		if (split < 0 || startPosition > split) {
+			// the split is moved to the newest leaf, which is paid for by the appends since the last move
+			this.resetSuffixes();
+			split = lastPosition;
+		}
+
+		// extend the suffixes towards the start position
+		for (int position = split - suffixes.size(); position >= startPosition; position--) {
+			Node<IN, ACC> leaf = tree.getNode(position);
+			suffixes.add(suffixes.isEmpty() ? copy(leaf) : tree.combine(leaf, suffixes.get(suffixes.size() - 1)));
+		}
+
+		if (backAggregateStale) {
+			// the leafs after the split are aggregated by a walk through the tree instead of one by one
+			Mergeable<IN, ACC> state = tree.partialStateFactory.getState();
+			backAggregate.setCount(tree.aggregateInto(split + 1, lastPosition, state));
+			backAggregate.setValueState(state);
+			backAggregateStale = false;
+		}
+
+		Node<IN, ACC> suffix = suffixes.get(split - startPosition);
+		return (backAggregate == null) ? copy(suffix) : tree.combine(suffix, backAggregate);
+	}
+
+	/**
+	 * @param endPosition the last position to aggregate
+	 * @return the aggregate from the oldest leaf up to the end position or null, if the end position precedes the
+	 * front split, such that the tree has to be walked
+	 */
+	Node<IN, ACC> prefix(int endPosition) throws Exception {
+		if (frontSplit < 0) {
+			// the front split is moved after the end position, which is paid for by the evictions since the last move
+			this.resetFront();
+			frontSplit = endPosition + 1;
+		}
+		if (endPosition < frontSplit - 1)
+			return null;
+
+		// extend the front suffixes towards the oldest leaf
+		for (int position = frontSplit - 1 - frontSuffixes.size(); position >= 0; position--) {
+			Node<IN, ACC> leaf = tree.getNode(position);
+			frontSuffixes.add(frontSuffixes.isEmpty() ? copy(leaf) : tree.combine(leaf, frontSuffixes.get(frontSuffixes.size() - 1)));
+		}
+		if (endPosition == frontSplit - 1)
+			return copy(frontSuffixes.get(frontSplit - 1));
+
+		// extend the prefixes up to the end position only
+		for (int position = frontSplit + prefixes.size(); position <= endPosition; position++) {
+			Node<IN, ACC> leaf = tree.getNode(position);
+			prefixes.add(prefixes.isEmpty() ? copy(leaf) : tree.combine(prefixes.get(prefixes.size() - 1), leaf));
+		}
+
+		Node<IN, ACC> prefix = prefixes.get(endPosition - frontSplit);
+		return (frontSplit == 0) ? copy(prefix) : tree.combine(frontSuffixes.get(frontSplit - 1), prefix);
+	}
+
+	/**
+	 * @return the estimated heap size of the finger aggregates
+	 */
+	long estimatedSizeInBytes() {
+		long bytes = MemoryEstimation.arraySizeInBytes(suffixes.size()) + MemoryEstimation.arraySizeInBytes(prefixes.size())
+				+ MemoryEstimation.arraySizeInBytes(frontSuffixes.size()) + MemoryEstimation.nodeSizeInBytes(backAggregate);
+		for (Node<IN, ACC> suffix : suffixes) {
+			bytes += MemoryEstimation.nodeSizeInBytes(suffix);
+		}
+		for (Node<IN, ACC> frontSuffix : frontSuffixes) {
+			bytes += MemoryEstimation.nodeSizeInBytes(frontSuffix);
+		}
+		for (Node<IN, ACC> prefix : prefixes) {
+			bytes += MemoryEstimation.nodeSizeInBytes(prefix);
+		}
+		return bytes;
+	}
+
+	private void resetSuffixes() {
+		suffixes.clear();
+		split = -1;
+		backAggregate = null;
+		backAggregateStale = false;
+	}
+
+	private void resetFront() {
+		frontSuffixes.clear();
+		prefixes.clear();
+		frontSplit = -1;
+	}
+
+	/**
+	 * Drops the aggregates from the given index on, if there are any
+	 */
+	private static <IN, ACC> void trim(List<Node<IN, ACC>> aggregates, int size) {
+		if (size < aggregates.size())
+			aggregates.subList(Math.max(size, 0), aggregates.size()).clear();
+	}
+
+	private Node<IN, ACC> copy(Node<IN, ACC> node) {
+		return new Node.InnerNode<>(node, tree.partialStateFactory);
+	}
+}
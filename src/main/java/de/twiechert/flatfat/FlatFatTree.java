@@ -1,15 +1,22 @@
 package de.twiechert.flatfat;
 
 
+import de.twiechert.flatfat.node.LeafCursor;
+import de.twiechert.flatfat.node.LeafVisitor;
 import de.twiechert.flatfat.node.Node;
 import de.twiechert.flatfat.node.NodeIndexPosition;
+import de.twiechert.flatfat.resolver.AdaptiveResolver;
 import de.twiechert.flatfat.resolver.NodeByTimestampResolver;
 import de.twiechert.flatfat.resolver.StartAndStopSliceResolver;
 import org.javatuples.Pair;
+import org.javatuples.Triplet;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
@@ -65,6 +72,57 @@ public interface FlatFatTree<IN, ACC> {
      */
     void removeUpTo(int leafPosition) throws Exception;
 
+    /**
+     * Merges the slice at <code>rightPosition</code> into its left neighbour, e.g. because a late event
+     * bridges the gap between two sessions. The right slice is removed afterwards.
+     *
+     * @param leftPosition  the position of the slice that absorbs its neighbour
+     * @param rightPosition the position of the absorbed slice, must equal <code>leftPosition + 1</code>
+     * @throws Exception in case the slices cannot be merged
+     */
+    void mergeLeaves(int leftPosition, int rightPosition) throws Exception;
+
+    /**
+     * Adds the slice to the session it falls into. If it bridges the gap to the preceding session, both sessions
+     * are merged. If it does not belong to any session, it opens a new one.
+     *
+     * @param slice the slice to add
+     * @param gap   the session gap, i.e. the inactivity after which a session is closed
+     * @throws Exception
+     */
+    void addToSession(Node<IN, ACC> slice, long gap) throws Exception;
+
+    /**
+     * Adds a late event in place to the slice covering its event time, instead of inserting a slice of its own. The
+     * event is merged into the aggregates of the ancestors as well rather than recombining them, which requires the
+     * state to be commutative, as all states of this library are.
+     *
+     * @param eventTime the time of the event
+     * @param value     the event
+     * @return whether a slice covers the event time, otherwise the caller has to add a slice for the event
+     * @throws Exception in case the event cannot be added to the state
+     */
+    boolean addToSlice(long eventTime, IN value) throws Exception;
+
+    /**
+     * Merges a partial aggregate of late events in place into the slice covering their event time, see
+     * {@link #addToSlice(long, Object)}. Raw event slices do not receive the events of the partial aggregate.
+     *
+     * @param eventTime  the time of the latest event of the partial aggregate
+     * @param partial    the partial aggregate, which is not modified
+     * @param eventCount the number of events of the partial aggregate
+     * @return whether a slice covers the event time, otherwise the caller has to add a slice for the events
+     * @throws Exception in case the states cannot be merged
+     */
+    boolean mergeIntoSlice(long eventTime, Mergeable<IN, ACC> partial, long eventCount) throws Exception;
+
+    /**
+     * @param tc  the timestamp to look up
+     * @param gap the session gap
+     * @return the position of the session, whose gap-extended range contains <code>tc</code> or null if there is none
+     */
+    Integer getSessionPositionByTimestamp(long tc, long gap);
+
     /**
      * It collects an aggregated result starting from the leafID given until the back index of the circular heap
      *
@@ -99,11 +157,148 @@ public interface FlatFatTree<IN, ACC> {
     Node<IN, ACC> aggregateFromTo(long startTime, long endTime) throws Exception;
 
 
+    /**
+     * Merges the aggregate of the slices from the start to the end position into a state owned by the caller. Unlike
+     * {@link #aggregateFromTo(int, int)}, neither the resolution nor the combines allocate, such that a reused target
+     * keeps queries free of garbage. The nodes covering the range are merged in position order, so the target has
+     * to be empty or hold the aggregate of slices preceding the range. The result cache and the finger aggregates are
+     * bypassed, as both hand out copies.
+     *
+     * @param startPosition the position of the first slice to aggregate
+     * @param endPosition   the position of the last slice to aggregate
+     * @param target        the state the aggregate is merged into
+     * @return the number of events aggregated
+     * @throws Exception in case states cannot be merged
+     */
+    long aggregateInto(int startPosition, int endPosition, Mergeable<IN, ACC> target) throws Exception;
+
+
+    /**
+     * Merges the aggregate of the slices within [startTime, endTime) into a state owned by the caller without
+     * allocating, as {@link #aggregateInto(int, int, Mergeable)} does.
+     *
+     * @param startTime the inclusive start of the range
+     * @param endTime   the exclusive end of the range
+     * @param target    the state the aggregate is merged into
+     * @return the number of events aggregated
+     * @throws Exception in case states cannot be merged
+     */
+    long aggregateInto(long startTime, long endTime, Mergeable<IN, ACC> target) throws Exception;
+
+
+    /**
+     * Aggregates the most recent <code>eventCount</code> events based on the event counts of the slices. If the
+     * oldest slice is only partially covered and it is a {@link Node.RawEventNode}, only its covered events are
+     * aggregated, otherwise it is aggregated as a whole.
+     *
+     * @param eventCount the number of events to aggregate
+     * @return the aggregate of the most recent events
+     * @throws Exception
+     */
+    Node<IN, ACC> aggregateLastN(long eventCount) throws Exception;
+
+
+    /**
+     * Finds the first slice at which the aggregate from the start position on satisfies the predicate, e.g. the slice
+     * at which the cumulative event count exceeds a threshold. The predicate has to be monotone, hence the slice is
+     * found by descending along the partial aggregates of the tree instead of scanning all slices.
+     *
+     * @param startPosition the position of the first slice of the aggregate
+     * @param predicate     the monotone condition on the aggregate
+     * @return the position of the first slice satisfying the predicate or -1 if no aggregate does
+     * @throws Exception
+     */
+    int findFirst(int startPosition, AggregatePredicate<IN, ACC> predicate) throws Exception;
+
+
+    /**
+     * @param startTime the timestamp the aggregate starts at, the first slice starting at or after it is included
+     * @param predicate the monotone condition on the aggregate
+     * @return the position of the first slice satisfying the predicate or -1 if no aggregate does
+     * @throws Exception
+     * @see #findFirst(int, AggregatePredicate)
+     */
+    int findFirst(long startTime, AggregatePredicate<IN, ACC> predicate) throws Exception;
+
+
+    /**
+     * Finds the slice holding the greatest value within a range of slices, e.g. the slice holding the maximum of a
+     * window. The slice is found by descending into the subtree with the greatest aggregate, which requires the
+     * aggregate of slices to be the greatest of their values, e.g. a maximum, or a minimum with a reversed comparator.
+     *
+     * @param startPosition the position of the first slice of the range
+     * @param endPosition   the position of the last slice of the range
+     * @param comparator    the order of the aggregated values
+     * @return the position of the first slice holding the greatest value or -1 if the range holds no events
+     * @throws Exception
+     */
+    int findExtreme(int startPosition, int endPosition, Comparator<ACC> comparator) throws Exception;
+
+
+    /**
+     * @param startTime  the timestamp the range starts at
+     * @param endTime    the timestamp the range ends at
+     * @param comparator the order of the aggregated values
+     * @return the position of the first slice holding the greatest value or -1 if the range holds no events
+     * @throws Exception
+     * @see #findExtreme(int, int, Comparator)
+     */
+    int findExtreme(long startTime, long endTime, Comparator<ACC> comparator) throws Exception;
+
+
+    /**
+     * @return the cache of time range aggregates or null if the tree was built without one
+     */
+    QueryResultCache<IN, ACC> getResultCache();
+
+
+    /**
+     * Merges runs of adjacent slices into coarser slices as assigned by the compaction policy of the tree. A slice is
+     * only merged if it lies within a single aligned interval of its resolution.
+     *
+     * @param now the current time, which determines the age of the slices
+     * @return the number of slices removed
+     * @throws Exception in case slices cannot be merged
+     */
+    int compact(long now) throws Exception;
+
+
+    /**
+     * Merges the slices of another tree into this one, such that partial window state of several workers can be
+     * rolled up. Slices covering the same time range are combined, slices only one of the trees holds are taken as
+     * they are. The slices are merge-joined by time and the inner nodes are built anew in a single pass, so the merge
+     * costs O(n + m) combines. The other tree is left unchanged.
+     *
+     * @param other the tree to merge, whose slice boundaries must be aligned with the ones of this tree
+     * @throws IllegalArgumentException if a slice of one tree partially overlaps a slice of the other one
+     * @throws Exception                in case states cannot be merged
+     */
+    void merge(FlatFatTree<IN, ACC> other) throws Exception;
+
+
+    /**
+     * Estimates the heap size of the tree by a walk over its heap slots, its index, its nodes and their states. States
+     * implementing {@link SizeHint} report their own size, all others are assumed to be small.
+     *
+     * @return the estimated size in bytes
+     */
+    long estimatedSizeInBytes();
+
+
     /**
      * @return
      */
     int currentCapacity();
 
+    /**
+     * Shrinks the capacity as far as the capacity policy of the tree allows, regardless of a shrink delay or deferred
+     * shrinking. It is meant to be called in idle periods.
+     *
+     * @return whether the capacity was changed
+     * @throws Exception in case the tree cannot be rebuilt
+     */
+    boolean trimCapacity() throws Exception;
+
     /**
      * @return
      */
@@ -133,6 +328,23 @@ public interface FlatFatTree<IN, ACC> {
     Iterator<NodeIndexPosition<IN, ACC>> getSliceForwardsIterator();
 
 
+    /**
+     * @return a new cursor over the leafs, which may be reused by the caller, but must not be shared between threads
+     */
+    LeafCursor<IN, ACC> newLeafCursor();
+
+    /**
+     * Visits the leafs from <code>fromPosition</code> up to <code>toPosition</code> without allocating per leaf. The
+     * tree must not be modified while visiting.
+     *
+     * @param fromPosition the position of the first leaf to visit
+     * @param toPosition   the position of the last leaf to visit
+     * @param visitor      the visitor, which may stop the traversal early
+     * @throws Exception in case the visitor fails
+     */
+    void forEachLeaf(int fromPosition, int toPosition, LeafVisitor<IN, ACC> visitor) throws Exception;
+
+
     /**
      * @param positions
      * @throws Exception
@@ -170,20 +382,68 @@ public interface FlatFatTree<IN, ACC> {
         private NodeByTimestampResolver.FindSliceIndexByTimestampComparator findSliceIndexByTimestampComparator;
         private StartAndStopSliceResolver startAndStopSliceResolver;
 
+        /**
+         * Null unless one of the strategies is adaptive
+         */
+        private AdaptiveResolver<IN, ACC> adaptiveResolver;
+
         protected final StateFactory<IN, ACC> partialStateFactory;
 
+        protected final QueryResultCache<IN, ACC> resultCache;
+
+        protected final CompactionPolicy compactionPolicy;
+
+        protected final CapacityPolicy capacityPolicy;
+
+        /**
+         * The budget enforced when slices are added, null if unbounded
+         */
+        protected final MemoryBudget memoryBudget;
+
+        /**
+         * The last exact estimate, which is extrapolated between walks, and the leaf count it was taken at
+         */
+        private long measuredBytes = 0;
+        private long measuredSlotBytes = 0;
+        private int measuredLeafCount = -1;
+        private long bytesPerLeaf = 0;
+        private int addsSinceMeasurement = 0;
+
+        /**
+         * Aggregates anchored at the front and the back, null if disabled
+         */
+        protected final FingerAggregates<IN, ACC> fingers;
+
+        /**
+         * Counts the combines performed, which allows to tell the cost of a query
+         */
+        protected long combineCount = 0;
+
         public BaseFlatFatTree(Builder<IN, ACC> builder) throws Exception {
             if (((builder.capacity & -builder.capacity) != builder.capacity))
                 throw new IllegalArgumentException("Capacity should be a power of two");
 
             this.currentNode = builder.initSlice;
             this.partialStateFactory = builder.partialStateFactory;
-            this.numLeafs = builder.capacity;
+            this.capacityPolicy = builder.capacityPolicy;
+            this.numLeafs = capacityPolicy.getInitialCapacity(builder.capacity);
 
             this.identityNode = createEmpty(true);
+            this.resultCache = (builder.resultCacheSize > 0) ? new QueryResultCache<IN, ACC>(builder.resultCacheSize, builder.resultCacheEvictionPolicy) : null;
+            this.fingers = (builder.fingers) ? new FingerAggregates<>(this) : null;
+            this.compactionPolicy = builder.compactionPolicy;
+            this.memoryBudget = builder.memoryBudget;
+            if (memoryBudget != null && memoryBudget.getPolicy() == MemoryBudget.Policy.COMPACT && compactionPolicy == null)
+                throw new IllegalArgumentException("Compacting on a full budget requires a compaction policy");
+            // both searches share the adaptive resolver, such that it judges the locality of all queries
+            this.adaptiveResolver = (builder.nodeByTimestampStrategy == Builder.NodeByTimestampStrategy.ADAPTIVE
+                    || builder.startEndNodeStrategy == Builder.StartEndNodeStrategy.ADAPTIVE) ? new AdaptiveResolver<>(this) : null;
             if (builder.nodeByTimestampStrategy == NonShiftingFlatFatTree.Builder.NodeByTimestampStrategy.LINEARSCAN_BACKWARD) {
                 nodeByTimestampResolver = new NodeByTimestampResolver.LinearBackwardScanResolver(this);
 
+            } else if (builder.nodeByTimestampStrategy == Builder.NodeByTimestampStrategy.ADAPTIVE) {
+                findSliceIndexByTimestampComparator = new NodeByTimestampResolver.FindSliceIndexByTimestampComparator();
+                nodeByTimestampResolver = adaptiveResolver;
             } else {
                 findSliceIndexByTimestampComparator = new NodeByTimestampResolver.FindSliceIndexByTimestampComparator();
                 nodeByTimestampResolver = new NodeByTimestampResolver.BinarySearch(this);
@@ -195,6 +455,8 @@ public interface FlatFatTree<IN, ACC> {
                 this.startAndStopSliceResolver = new StartAndStopSliceResolver.StartAndStopSliceLinearBackwardResolver<>(this);
             } else if (builder.startEndNodeStrategy == Builder.StartEndNodeStrategy.BINARY_SEARCH) {
                 this.startAndStopSliceResolver = new StartAndStopSliceResolver.BinarySearchResolver<>(this);
+            } else if (builder.startEndNodeStrategy == Builder.StartEndNodeStrategy.ADAPTIVE) {
+                this.startAndStopSliceResolver = adaptiveResolver;
             }
         }
 
@@ -222,7 +484,7 @@ public interface FlatFatTree<IN, ACC> {
          * @throws Exception
          */
         protected Node<IN, ACC> combine(Node<IN, ACC> reusableNode, Node<IN, ACC> left, Node<IN, ACC> right) throws Exception {
-
+            combineCount++;
             if (reusableNode.equals(left)) {
                 reusableNode.getValueState().merge(right.getValueState());
             } else {
@@ -230,6 +492,7 @@ public interface FlatFatTree<IN, ACC> {
                 reusableNode.getValueState().merge(left.getValueState()).merge(right.getValueState());
             }
             reusableNode.setTmax(Math.max(left.getTmax(), right.getTmax()));
+            reusableNode.setCount(left.getCount() + right.getCount());
             reusableNode.setStart((left.getStart() != -1L) ? left.getStart() : right.getStart());
             reusableNode.setEnd((right.getEnd() != 0L) ? right.getEnd() : left.getEnd());
             return reusableNode;
@@ -240,6 +503,26 @@ public interface FlatFatTree<IN, ACC> {
             return combine(innerNode, left, right);
         }
 
+        /**
+         * Combines two neighbouring slices into one slice. Raw event slices are merged into a raw event slice, which
+         * keeps the events of both, such that partially covered slices can still be aggregated event by event.
+         *
+         * @param left  the earlier slice
+         * @param right the later slice
+         * @return the merged slice
+         * @throws Exception
+         */
+        protected Node<IN, ACC> mergeSlices(Node<IN, ACC> left, Node<IN, ACC> right) throws Exception {
+            if (!(left instanceof Node.RawEventNode) || !(right instanceof Node.RawEventNode))
+                return combine(left, right);
+
+            Node.RawEventNode<IN, ACC> merged = new Node.RawEventNode<>(partialStateFactory.getState(), left.getStart(), right.getEnd());
+            combine(merged, left, right);
+            merged.getEvents().addAll(((Node.RawEventNode<IN, ACC>) left).getEvents());
+            merged.getEvents().addAll(((Node.RawEventNode<IN, ACC>) right).getEvents());
+            return merged;
+        }
+
 
         protected Node.InnerNode<IN, ACC> copyFromPosition(int nodePosition) {
             return new Node.InnerNode<IN, ACC>(this.getNode(nodePosition), this.partialStateFactory);
@@ -256,27 +539,301 @@ public interface FlatFatTree<IN, ACC> {
 
         /**
          * @param slice the slice to find the correct position for
-         * @return the position to insert the node
+         * @return the position of the last slice ending before the slice starts or -1 if there is none
          */
-        protected NodeIndexPosition<IN, ACC> findPredecessor(Node<IN, ACC> slice) {
-            Iterator<NodeIndexPosition<IN, ACC>> iterator = getSliceBackwardsIterator();
-            NodeIndexPosition<IN, ACC> nodeIndexPosition;
-            while (iterator.hasNext()) {
-                nodeIndexPosition = iterator.next();
-            /*
-			 * Check if we have found the correct position.
-			 */
-                if (slice.getStart() >= nodeIndexPosition.getNode().getEnd()) {
-                    return nodeIndexPosition;
+        protected int findPredecessor(Node<IN, ACC> slice) {
+            LeafCursor<IN, ACC> cursor = this.newLeafCursor();
+            cursor.seek(this.currentLeafPosition, false);
+            while (cursor.next()) {
+                if (slice.getStart() >= cursor.getEnd())
+                    return cursor.getPosition();
+            }
+            return -1;
+        }
+
+
+        @Override
+        public Node<IN, ACC> aggregateFromTo(long startTime, long endTime) throws Exception {
+            if (resultCache == null)
+                return this.resolveAndAggregate(startTime, endTime);
+
+            Node<IN, ACC> cached = resultCache.get(startTime, endTime);
+            if (cached != null)
+                return new Node.InnerNode<>(cached, partialStateFactory);
+
+            long combinesBefore = combineCount;
+            Node<IN, ACC> result = this.resolveAndAggregate(startTime, endTime);
+            // the cache keeps a copy of its own, as callers might modify the result
+            resultCache.put(startTime, endTime, new Node.InnerNode<>(result, partialStateFactory), combineCount - combinesBefore);
+            return result;
+        }
+
+
+        /**
+         * Invalidates all cached aggregates that overlap the changed leaf
+         *
+         * @param leaf the leaf that was added, removed or changed
+         */
+        protected void invalidateCachedResults(Node<IN, ACC> leaf) {
+            if (resultCache != null && leaf != null)
+                resultCache.invalidate(leaf);
+        }
+
+
+        /**
+         * Invalidates all cached aggregates that overlap a batch of changed leafs at once
+         *
+         * @param leafs the leafs that were added, removed or changed, null entries are skipped
+         */
+        protected void invalidateCachedResults(Iterable<Node<IN, ACC>> leafs) {
+            if (resultCache == null)
+                return;
+
+            long firstTime = Long.MAX_VALUE;
+            long lastTime = Long.MIN_VALUE;
+            for (Node<IN, ACC> leaf : leafs) {
+                if (leaf == null)
+                    continue;
+                firstTime = Math.min(firstTime, Math.min(leaf.getStart(), leaf.getTmax()));
+                lastTime = Math.max(lastTime, Math.max(leaf.getStart(), leaf.getTmax()));
+            }
+            if (firstTime <= lastTime)
+                resultCache.invalidate(firstTime, lastTime);
+        }
+
+
+        @Override
+        public QueryResultCache<IN, ACC> getResultCache() {
+            return resultCache;
+        }
+
+
+        @Override
+        public int compact(long now) throws Exception {
+            if (compactionPolicy == null)
+                throw new IllegalStateException("The tree was built without a compaction policy");
+
+            List<Triplet<Integer, Integer, Node<IN, ACC>>> runs = new ArrayList<>();
+            int runStart = -1;
+            long runResolution = 0;
+            long runInterval = 0;
+            Node<IN, ACC> runFirst = null;
+            Node<IN, ACC> merged = null;
+            int removed = 0;
+
+            LeafCursor<IN, ACC> cursor = this.newLeafCursor();
+            cursor.seek(0, true);
+            while (cursor.next()) {
+                Node<IN, ACC> slice = cursor.getNode();
+                long resolution = compactionPolicy.getResolution(now - slice.getEnd());
+                long interval = (resolution > 0) ? Math.floorDiv(slice.getStart(), resolution) : 0;
+                // slices crossing an interval boundary are left as they are
+                boolean fits = resolution > 0 && Math.floorDiv(slice.getEnd() - 1, resolution) == interval;
+
+                if (runFirst != null && fits && resolution == runResolution && interval == runInterval) {
+                    // the slices of the tree must not be modified, so the first merge creates a new node
+                    merged = (merged == null) ? combine(runFirst, slice) : combine(merged, merged, slice);
+                    continue;
                 }
+
+                if (merged != null) {
+                    runs.add(new Triplet<>(runStart, cursor.getPosition() - 1, merged));
+                    removed += cursor.getPosition() - 1 - runStart;
+                }
+                merged = null;
+                runFirst = fits ? slice : null;
+                runStart = cursor.getPosition();
+                runResolution = resolution;
+                runInterval = interval;
+
+                // the slices are ordered by time, so all following ones are too young as well
+                if (resolution == 0)
+                    break;
+            }
+            if (merged != null) {
+                runs.add(new Triplet<>(runStart, this.currentLeafPosition, merged));
+                removed += this.currentLeafPosition - runStart;
             }
 
-            return null;
+            if (!runs.isEmpty())
+                this.replaceRuns(runs);
+            return removed;
         }
 
 
         @Override
-        public Node<IN, ACC> aggregateFromTo(long startTime, long endTime) throws Exception {
+        public void merge(FlatFatTree<IN, ACC> other) throws Exception {
+            List<Node<IN, ACC>> slices = new ArrayList<>(this.currentLeafCount + other.getCurrentLeafCount());
+            LeafCursor<IN, ACC> cursor = this.newLeafCursor();
+            LeafCursor<IN, ACC> otherCursor = other.newLeafCursor();
+            cursor.seek(0, true);
+            otherCursor.seek(0, true);
+            boolean hasSlice = cursor.next();
+            boolean hasOtherSlice = otherCursor.next();
+
+            while (hasSlice || hasOtherSlice) {
+                if (!hasOtherSlice || (hasSlice && cursor.getEnd() <= otherCursor.getStart())) {
+                    slices.add(cursor.getNode());
+                    hasSlice = cursor.next();
+                } else if (!hasSlice || otherCursor.getEnd() <= cursor.getStart()) {
+                    // the slices of the other tree must not be shared, as this tree modifies its slices in place
+                    slices.add(new Node.InnerNode<>(otherCursor.getNode(), partialStateFactory));
+                    hasOtherSlice = otherCursor.next();
+                } else if (cursor.getStart() == otherCursor.getStart() && cursor.getEnd() == otherCursor.getEnd()) {
+                    slices.add(combine(cursor.getNode(), otherCursor.getNode()));
+                    hasSlice = cursor.next();
+                    hasOtherSlice = otherCursor.next();
+                } else {
+                    throw new IllegalArgumentException("The slice [" + otherCursor.getStart() + ", " + otherCursor.getEnd()
+                            + ") is not aligned with the slice [" + cursor.getStart() + ", " + cursor.getEnd() + ")");
+                }
+            }
+            this.rebuild(slices);
+        }
+
+
+        /**
+         * @return the size of the heap slots and the index holding the given number of leafs, which is excluded from
+         * the extrapolation per leaf, as it grows in steps
+         */
+        protected abstract long slotSizeInBytes(int leafCount);
+
+
+        /**
+         * @return the size of the finger aggregates and the cached results
+         */
+        protected long auxiliarySizeInBytes() {
+            long bytes = 0;
+            if (fingers != null)
+                bytes += fingers.estimatedSizeInBytes();
+            if (resultCache != null)
+                bytes += resultCache.estimatedSizeInBytes();
+            return bytes;
+        }
+
+
+        /**
+         * Applies the memory budget before a slice is added. An exact estimate is taken every few adds and
+         * extrapolated by the average size per leaf in between, such that the check costs amortized O(1).
+         *
+         * @param slice the slice to add
+         * @return the number of leafs removed from the front to make room, by which positions shift
+         * @throws MemoryBudgetExceededException if the slice does not fit and the policy cannot make room
+         */
+        protected int enforceMemoryBudget(Node<IN, ACC> slice) throws Exception {
+            if (memoryBudget == null)
+                return 0;
+
+            if (measuredLeafCount < 0 || ++addsSinceMeasurement > Math.max(16, measuredLeafCount / 8))
+                this.measure();
+
+            long required = this.projectedSizeInBytes(this.currentLeafCount + 1);
+            if (required <= memoryBudget.getMaxBytes())
+                return 0;
+
+            int leafCountBefore = this.currentLeafCount;
+            switch (memoryBudget.getPolicy()) {
+                case BACKPRESSURE:
+                    this.awaitMemory();
+                    break;
+                case COMPACT:
+                    this.compact(slice.getEnd());
+                    this.measure();
+                    required = this.projectedSizeInBytes(this.currentLeafCount + 1);
+                    if (required > memoryBudget.getMaxBytes())
+                        throw new MemoryBudgetExceededException(required, memoryBudget.getMaxBytes());
+                    break;
+                case EVICT_OLDEST:
+                    long perLeaf = Math.max(1, bytesPerLeaf);
+                    long evict = (required - memoryBudget.getMaxBytes() + perLeaf - 1) / perLeaf;
+                    while (this.currentLeafCount > 0) {
+                        this.removeUpTo((int) Math.min(this.currentLeafCount, evict) - 1);
+                        // shrinking the heap might not release as much as extrapolated, the next batch is doubled then
+                        this.measure();
+                        required = this.projectedSizeInBytes(this.currentLeafCount + 1);
+                        if (required <= memoryBudget.getMaxBytes())
+                            break;
+                        evict *= 2;
+                    }
+                    if (required > memoryBudget.getMaxBytes())
+                        throw new MemoryBudgetExceededException(required, memoryBudget.getMaxBytes());
+                    break;
+                default:
+                    throw new MemoryBudgetExceededException(required, memoryBudget.getMaxBytes());
+            }
+            return leafCountBefore - this.currentLeafCount;
+        }
+
+
+        /**
+         * Waits on the monitor of the tree, which another thread notifies when it removes slices
+         */
+        private void awaitMemory() throws Exception {
+            if (!Thread.holdsLock(this))
+                throw new IllegalStateException("Backpressure requires to access the tree while synchronizing on it");
+
+            long timeout = memoryBudget.getBackpressureTimeoutMillis();
+            long deadline = System.currentTimeMillis() + timeout;
+            long required;
+            while ((required = this.projectedSizeInBytes(this.currentLeafCount + 1)) > memoryBudget.getMaxBytes()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeout > 0 && remaining <= 0)
+                    throw new MemoryBudgetExceededException(required, memoryBudget.getMaxBytes());
+                this.wait((timeout > 0) ? remaining : 0);
+                this.measure();
+            }
+        }
+
+
+        /**
+         * Wakes up writers blocked by the memory budget, must be called after slices were removed
+         */
+        protected void releaseMemory() {
+            if (memoryBudget == null)
+                return;
+
+            // the next add measures anew
+            measuredLeafCount = -1;
+            if (memoryBudget.getPolicy() == MemoryBudget.Policy.BACKPRESSURE && Thread.holdsLock(this))
+                this.notifyAll();
+        }
+
+
+        private void measure() {
+            measuredBytes = this.estimatedSizeInBytes();
+            measuredLeafCount = this.currentLeafCount;
+            addsSinceMeasurement = 0;
+            measuredSlotBytes = this.slotSizeInBytes(measuredLeafCount);
+            bytesPerLeaf = (measuredLeafCount > 0) ? (measuredBytes - measuredSlotBytes) / measuredLeafCount
+                    : MemoryEstimation.NODE_BYTES + MemoryEstimation.DEFAULT_STATE_BYTES;
+        }
+
+
+        private long projectedSizeInBytes(int leafCount) {
+            return measuredBytes - measuredSlotBytes + this.slotSizeInBytes(leafCount)
+                    + (leafCount - measuredLeafCount) * bytesPerLeaf;
+        }
+
+
+        /**
+         * Replaces runs of slices by their merged slice
+         *
+         * @param runs the first and the last position of each run and the slice replacing it, ordered by position
+         * @throws Exception
+         */
+        protected abstract void replaceRuns(List<Triplet<Integer, Integer, Node<IN, ACC>>> runs) throws Exception;
+
+
+        /**
+         * Replaces all slices of the tree and builds its inner nodes anew in a single pass
+         *
+         * @param slices the new slices ordered by time
+         * @throws Exception
+         */
+        protected abstract void rebuild(List<Node<IN, ACC>> slices) throws Exception;
+
+
+        protected Node<IN, ACC> resolveAndAggregate(long startTime, long endTime) throws Exception {
 
             Pair<Integer, Integer> startAndStop = this.startAndStopSliceResolver.getStartAndStopForAgg(startTime, endTime);
 
@@ -289,6 +846,16 @@ public interface FlatFatTree<IN, ACC> {
         @Override
         public Node<IN, ACC> aggregateFromTo(final int startPosition, final int endPosition) throws Exception {
 
+            if (fingers != null && startPosition <= endPosition) {
+                if (endPosition == this.currentLeafPosition)
+                    return fingers.suffix(startPosition, endPosition);
+                if (startPosition == 0) {
+                    Node<IN, ACC> prefix = fingers.prefix(endPosition);
+                    if (prefix != null)
+                        return prefix;
+                }
+            }
+
             int effStartPosition = startPosition;
             int effEndPosition = endPosition;
 
@@ -338,11 +905,17 @@ public interface FlatFatTree<IN, ACC> {
 		/*
 		  Manually merge ...
 		 */
-            if (mergeStart)
+            if (mergeStart) {
+                combineCount++;
                 agg.getValueState().merge(getNode(startPosition).getValueState());
+                agg.setCount(agg.getCount() + getNode(startPosition).getCount());
+            }
 
-            if (mergeEnd)
+            if (mergeEnd) {
+                combineCount++;
                 agg.getValueState().merge(getNode(endPosition).getValueState());
+                agg.setCount(agg.getCount() + getNode(endPosition).getCount());
+            }
 
             return agg;
 
@@ -351,6 +924,162 @@ public interface FlatFatTree<IN, ACC> {
         protected abstract Node<IN, ACC> suffix(int startPosition, int endPosition) throws Exception;
 
 
+        @Override
+        public long aggregateInto(int startPosition, int endPosition, Mergeable<IN, ACC> target) throws Exception {
+            int from = Math.max(startPosition, 0);
+            int to = Math.min(endPosition, this.currentLeafPosition);
+            return (from <= to) ? this.aggregateRangeInto(from, to, target) : 0;
+        }
+
+
+        @Override
+        public long aggregateInto(long startTime, long endTime, Mergeable<IN, ACC> target) throws Exception {
+            int startPosition = this.countSlicesBefore(startTime, false);
+            int endPosition = this.countSlicesBefore(endTime, true) - 1;
+            return (startPosition <= endPosition) ? this.aggregateRangeInto(startPosition, endPosition, target) : 0;
+        }
+
+
+        /**
+         * Merges the nodes covering the range into the target in position order without allocating
+         *
+         * @param startPosition the position of the first slice, which exists
+         * @param endPosition   the position of the last slice, which exists
+         * @return the number of events aggregated
+         */
+        protected abstract long aggregateRangeInto(int startPosition, int endPosition, Mergeable<IN, ACC> target) throws Exception;
+
+
+        protected long mergeInto(Mergeable<IN, ACC> target, Node<IN, ACC> node) throws Exception {
+            combineCount++;
+            target.merge(node.getValueState());
+            return node.getCount();
+        }
+
+
+        /**
+         * Resolves a time range bound without allocating. The adaptive resolver is used if it is configured, otherwise
+         * the slices are searched binary, as their starts and tmax values ascend.
+         *
+         * @param time   the timestamp to compare with
+         * @param byTmax whether to compare the tmax of the slices instead of their start
+         * @return the number of slices whose start (or tmax) is smaller than the timestamp
+         */
+        protected int countSlicesBefore(long time, boolean byTmax) {
+            if (adaptiveResolver != null)
+                return byTmax ? adaptiveResolver.getEndPosition(time) + 1 : adaptiveResolver.getStartPosition(time);
+
+            int from = 0;
+            int to = this.currentLeafPosition + 1;
+            while (from < to) {
+                int position = (from + to) >>> 1;
+                Node<IN, ACC> slice = this.getNodeOrNull(position);
+                if ((byTmax ? slice.getTmax() : slice.getStart()) >= time)
+                    to = position;
+                else from = position + 1;
+            }
+            return to;
+        }
+
+
+        /**
+         * Aggregates the most recent <code>remaining</code> events of the boundary slice and all slices after it
+         *
+         * @param boundaryPosition the position of the slice holding the oldest requested event
+         * @param remaining        the number of events requested from the boundary slice
+         * @return the aggregate of the requested events
+         * @throws Exception
+         */
+        protected Node<IN, ACC> aggregateFromBoundary(int boundaryPosition, long remaining) throws Exception {
+            Node<IN, ACC> boundary = this.getNode(boundaryPosition);
+            // a raw event slice merged with a plain one does not hold all of its events anymore
+            if (remaining == boundary.getCount() || !(boundary instanceof Node.RawEventNode)
+                    || remaining > ((Node.RawEventNode<IN, ACC>) boundary).getEvents().size())
+                return this.aggregateFromTo(boundaryPosition, this.currentLeafPosition);
+
+            // the boundary slice is partially covered, so only its most recent events are taken from the raw event tail
+            List<IN> events = ((Node.RawEventNode<IN, ACC>) boundary).getEvents();
+            Node<IN, ACC> tail = new Node.InnerNode<>(partialStateFactory.getState(), boundary.getStart(), boundary.getEnd());
+            for (int i = events.size() - (int) remaining; i < events.size(); i++) {
+                tail.getValueState().add(events.get(i));
+            }
+            tail.setTmax(boundary.getTmax());
+            tail.setCount(remaining);
+
+            if (boundaryPosition == this.currentLeafPosition)
+                return tail;
+
+            return combine(tail, this.aggregateFromTo(boundaryPosition + 1, this.currentLeafPosition));
+        }
+
+
+        /**
+         * Accumulates the slices one by one, engines holding the aggregates of subtrees descend instead
+         */
+        @Override
+        public int findFirst(int startPosition, AggregatePredicate<IN, ACC> predicate) throws Exception {
+            if (this.currentLeafCount == 0 || startPosition > this.currentLeafPosition)
+                return -1;
+
+            Node<IN, ACC> agg = this.createEmpty();
+            LeafCursor<IN, ACC> cursor = this.newLeafCursor();
+            cursor.seek(Math.max(startPosition, 0), true);
+            while (cursor.next()) {
+                agg = combine(agg, agg, cursor.getNode());
+                if (predicate.test(agg))
+                    return cursor.getPosition();
+            }
+            return -1;
+        }
+
+
+        @Override
+        public int findFirst(long startTime, AggregatePredicate<IN, ACC> predicate) throws Exception {
+            if (this.currentLeafCount == 0)
+                return -1;
+
+            Integer position = this.getNodePositionByTimestamp(startTime);
+            if (position == null || position < 0)
+                return this.findFirst(0, predicate);
+
+            // the slice found starts at or before the timestamp, if it starts before, it is not part of the aggregate
+            return this.findFirst((this.getNode(position).getStart() < startTime) ? position + 1 : position, predicate);
+        }
+
+
+        /**
+         * Compares the slices one by one, engines holding the aggregates of subtrees descend instead
+         */
+        @Override
+        public int findExtreme(int startPosition, int endPosition, Comparator<ACC> comparator) throws Exception {
+            int extreme = -1;
+            ACC extremeValue = null;
+            LeafCursor<IN, ACC> cursor = this.newLeafCursor();
+            cursor.seek(Math.max(startPosition, 0), true);
+            while (cursor.next() && cursor.getPosition() <= endPosition) {
+                Node<IN, ACC> slice = cursor.getNode();
+                if (slice.getValueState().isEmpty())
+                    continue;
+
+                ACC value = slice.getValueState().get();
+                if (extreme < 0 || comparator.compare(value, extremeValue) > 0) {
+                    extreme = cursor.getPosition();
+                    extremeValue = value;
+                }
+            }
+            return extreme;
+        }
+
+
+        @Override
+        public int findExtreme(long startTime, long endTime, Comparator<ACC> comparator) throws Exception {
+            Pair<Integer, Integer> startAndStop = this.startAndStopSliceResolver.getStartAndStopForAgg(startTime, endTime);
+            if (startAndStop.getValue0() < 0 || startAndStop.getValue1() < 0)
+                return -1;
+            return this.findExtreme(startAndStop.getValue0(), startAndStop.getValue1(), comparator);
+        }
+
+
         @Override
         public Integer getNodePositionByTimestamp(long tc) {
             return nodeByTimestampResolver.getForTimestamp(tc, findSliceIndexByTimestampComparator);
@@ -363,6 +1092,135 @@ public interface FlatFatTree<IN, ACC> {
         }
 
 
+        @Override
+        public Integer getSessionPositionByTimestamp(long tc, long gap) {
+            Integer position = this.getNodePositionByTimestamp(tc + gap);
+            if (position == null || position < 0)
+                return null;
+
+            Node<IN, ACC> session = this.getNodeOrNull(position);
+            return (session != null && tc < session.getEnd() + gap) ? position : null;
+        }
+
+
+        @Override
+        public void addToSession(Node<IN, ACC> slice, long gap) throws Exception {
+            // the last session starting before the gap-extended end of the slice is the only candidate
+            Integer position = this.getNodePositionByTimestamp(slice.getEnd() + gap - 1);
+            Node<IN, ACC> session = (position != null && position > -1) ? this.getNodeOrNull(position) : null;
+
+            if (session == null || slice.getStart() >= session.getEnd() + gap) {
+                this.addPotentiallyOutOfOrder(slice, true);
+                return;
+            }
+
+            session.getValueState().merge(slice.getValueState());
+            session.setStart(Math.min(session.getStart(), slice.getStart()));
+            session.setEnd(Math.max(session.getEnd(), slice.getEnd()));
+            session.setTmax(Math.max(session.getTmax(), slice.getTmax()));
+            session.setCount(session.getCount() + slice.getCount());
+            if (session instanceof Node.RawEventNode && slice instanceof Node.RawEventNode)
+                ((Node.RawEventNode<IN, ACC>) session).getEvents().addAll(((Node.RawEventNode<IN, ACC>) slice).getEvents());
+            this.update(position);
+
+            /*
+              The extended session might now bridge the gap to its predecessors
+             */
+            while (position > 0) {
+                Node<IN, ACC> predecessor = this.getNodeOrNull(position - 1);
+                if (predecessor == null || session.getStart() >= predecessor.getEnd() + gap)
+                    break;
+
+                this.mergeLeaves(position - 1, position);
+                position--;
+                session = this.getNodeOrNull(position);
+            }
+        }
+
+
+        @Override
+        public boolean addToSlice(long eventTime, IN value) throws Exception {
+            int position = this.coveringPosition(eventTime);
+            if (position < 0)
+                return false;
+
+            this.applyToSlice(this.getNode(position), value, null, 1, eventTime);
+            if (fingers != null)
+                fingers.invalidate(position);
+            this.applyToAncestors(position, value, null, 1, eventTime);
+            return true;
+        }
+
+
+        @Override
+        public boolean mergeIntoSlice(long eventTime, Mergeable<IN, ACC> partial, long eventCount) throws Exception {
+            int position = this.coveringPosition(eventTime);
+            if (position < 0)
+                return false;
+
+            this.applyToSlice(this.getNode(position), null, partial, eventCount, eventTime);
+            if (fingers != null)
+                fingers.invalidate(position);
+            this.applyToAncestors(position, null, partial, eventCount, eventTime);
+            return true;
+        }
+
+
+        /**
+         * @return the position of the slice whose range contains the event time or -1 if there is none
+         */
+        private int coveringPosition(long eventTime) {
+            Integer position = this.getNodePositionByTimestamp(eventTime);
+            if (position == null || position < 0)
+                return -1;
+
+            Node<IN, ACC> slice = this.getNodeOrNull(position);
+            return (slice != null && eventTime < slice.getEnd()) ? position : -1;
+        }
+
+
+        /**
+         * Adds an event or merges a partial aggregate in place into the slice covering their event time
+         *
+         * @param slice      the covering slice
+         * @param value      the added event or null
+         * @param partial    the merged partial aggregate or null
+         * @param eventCount the number of added events
+         * @param eventTime  the time of the latest added event
+         * @throws Exception in case the event cannot be added to the state
+         */
+        protected void applyToSlice(Node<IN, ACC> slice, IN value, Mergeable<IN, ACC> partial, long eventCount, long eventTime) throws Exception {
+            if (partial != null) {
+                slice.getValueState().merge(partial);
+                slice.setCount(slice.getCount() + eventCount);
+            } else if (slice instanceof Node.RawEventNode) {
+                ((Node.RawEventNode<IN, ACC>) slice).addEvent(value);
+            } else {
+                slice.getValueState().add(value);
+                slice.setCount(slice.getCount() + 1);
+            }
+            slice.setTmax(Math.max(slice.getTmax(), eventTime));
+            // the extended tmax might exclude the slice from cached ranges that included it before
+            invalidateCachedResults(slice);
+        }
+
+
+        /**
+         * Repairs the ancestors of a slice, which received either an event or a partial aggregate in place. By default,
+         * the path of the slice is recombined.
+         *
+         * @param position   the position of the changed slice
+         * @param value      the added event or null
+         * @param partial    the merged partial aggregate or null
+         * @param eventCount the number of added events
+         * @param eventTime  the time of the latest added event
+         * @throws Exception
+         */
+        protected void applyToAncestors(int position, IN value, Mergeable<IN, ACC> partial, long eventCount, long eventTime) throws Exception {
+            this.update(position);
+        }
+
+
         @Override
         public Node<IN, ACC> getCurrentNode() {
             return this.currentNode;
@@ -424,12 +1282,30 @@ public interface FlatFatTree<IN, ACC> {
 
     class Builder<IN, ACC> {
 
-        enum StartEndNodeStrategy {
-            BTREE, LINEARSCAN_FORWARD, LINEARSCAN_BACKWARD, BINARY_SEARCH
+        /**
+         * {@link #ADAPTIVE} searches from the positions resolved last and switches to binary search if queries jump
+         */
+        public enum StartEndNodeStrategy {
+            BTREE, LINEARSCAN_FORWARD, LINEARSCAN_BACKWARD, BINARY_SEARCH, ADAPTIVE
         }
 
-        enum NodeByTimestampStrategy {
-            LINEARSCAN_BACKWARD, BINARY_SEARCH
+        public enum NodeByTimestampStrategy {
+            LINEARSCAN_BACKWARD, BINARY_SEARCH, ADAPTIVE
+        }
+
+        /**
+         * The data structure maintaining the aggregates
+         */
+        public enum Engine {
+            /**
+             * The FlatFAT circular heap, see {@link NonShiftingFlatFatTree}
+             */
+            FLAT_FAT,
+            /**
+             * The finger B-tree aggregator, which handles out-of-order slices in O(log d) for an out-of-order distance
+             * of d, see {@link FiBAFlatFatTree}
+             */
+            FIBA
         }
 
         protected Node<IN, ACC> initSlice;
@@ -437,6 +1313,15 @@ public interface FlatFatTree<IN, ACC> {
         protected StateFactory<IN, ACC> partialStateFactory;
         protected StartEndNodeStrategy startEndNodeStrategy = StartEndNodeStrategy.LINEARSCAN_FORWARD;
         protected NodeByTimestampStrategy nodeByTimestampStrategy = NodeByTimestampStrategy.BINARY_SEARCH;
+        protected int resultCacheSize = 0;
+        protected QueryResultCache.EvictionPolicy resultCacheEvictionPolicy = QueryResultCache.EvictionPolicy.LRU;
+        protected boolean fingers = false;
+        protected Engine engine = Engine.FLAT_FAT;
+        protected int fibaMaxArity = 8;
+        protected CompactionPolicy compactionPolicy;
+        protected MemoryBudget memoryBudget;
+        protected CapacityPolicy capacityPolicy = CapacityPolicy.defaultPolicy();
+        protected boolean propagationCutoff = false;
 
         private Builder(StateFactory<IN, ACC> partialStateFactory) {
             this.partialStateFactory = partialStateFactory;
@@ -466,8 +1351,107 @@ public interface FlatFatTree<IN, ACC> {
             return this;
         }
 
+        /**
+         * Enables caching of time range aggregates
+         *
+         * @param maxEntries     the maximum number of cached aggregates
+         * @param evictionPolicy the policy deciding which entry to drop when the cache is full
+         * @return the builder
+         */
+        public Builder<IN, ACC> resultCache(int maxEntries, QueryResultCache.EvictionPolicy evictionPolicy) {
+            this.resultCacheSize = maxEntries;
+            this.resultCacheEvictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * Enables finger aggregates, which answer queries anchored at the oldest or the newest leaf with an
+         * amortized constant number of combines. They require the {@link Engine#FLAT_FAT} engine, as the
+         * {@link Engine#FIBA} engine keeps fingers of its own.
+         *
+         * @param fingers whether to maintain finger aggregates
+         * @return the builder
+         */
+        public Builder<IN, ACC> fingers(boolean fingers) {
+            this.fingers = fingers;
+            return this;
+        }
+
+
+        /**
+         * @param engine the data structure maintaining the aggregates, {@link Engine#FLAT_FAT} by default
+         * @return the builder
+         */
+        public Builder<IN, ACC> engine(Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of children of a node in the {@link Engine#FIBA} engine, nodes are kept at least
+         * half full
+         *
+         * @param maxArity the maximum arity, at least 4
+         * @return the builder
+         */
+        public Builder<IN, ACC> fibaMaxArity(int maxArity) {
+            if (maxArity < 4)
+                throw new IllegalArgumentException("The maximum arity has to be at least 4");
+            this.fibaMaxArity = maxArity;
+            return this;
+        }
+
+        /**
+         * @param compactionPolicy the policy {@link FlatFatTree#compact(long)} merges old slices by
+         * @return the builder
+         */
+        public Builder<IN, ACC> compaction(CompactionPolicy compactionPolicy) {
+            this.compactionPolicy = compactionPolicy;
+            return this;
+        }
+
+        /**
+         * @param capacityPolicy the policy deciding when the capacity grows and shrinks and how far
+         * @return the builder
+         */
+        public Builder<IN, ACC> capacityPolicy(CapacityPolicy capacityPolicy) {
+            this.capacityPolicy = capacityPolicy;
+            return this;
+        }
+
+        /**
+         * @param memoryBudget the maximum estimated size of the tree and the policy applied if an add exceeds it
+         * @return the builder
+         */
+        public Builder<IN, ACC> memoryBudget(MemoryBudget memoryBudget) {
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+
+        /**
+         * Stops recombining the ancestors of a changed leaf once one of them keeps its aggregate, above which only
+         * the event counts and times are brought up to date. This pays off for idempotent or selective aggregates,
+         * whose states have to implement {@link ChangeSignal}. Only the {@link Engine#FLAT_FAT} engine supports it.
+         *
+         * @param propagationCutoff whether to cut the propagation off at unchanged ancestors
+         * @return the builder
+         */
+        public Builder<IN, ACC> propagationCutoff(boolean propagationCutoff) {
+            this.propagationCutoff = propagationCutoff;
+            return this;
+        }
+
 
         public FlatFatTree<IN, ACC> build() throws Exception {
+            if (propagationCutoff && engine == Engine.FIBA)
+                throw new IllegalArgumentException("The propagation cutoff requires the " + Engine.FLAT_FAT + " engine");
+            if (propagationCutoff && !(partialStateFactory.getState() instanceof ChangeSignal))
+                throw new IllegalArgumentException("The propagation cutoff requires states implementing " + ChangeSignal.class.getSimpleName());
+            if (fingers && engine == Engine.FIBA)
+                throw new IllegalArgumentException("Finger aggregates require the " + Engine.FLAT_FAT + " engine, the " + Engine.FIBA + " engine keeps fingers of its own");
+            if (engine == Engine.FIBA)
+                return new FiBAFlatFatTree<IN, ACC>(this);
             return new NonShiftingFlatFatTree<IN, ACC>(this);
         }
     }
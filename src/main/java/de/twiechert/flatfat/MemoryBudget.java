@@ -0,0 +1,74 @@
+package de.twiechert.flatfat;
+
+/**
+ * Bounds the estimated heap size of a tree, see {@link FlatFatTree#estimatedSizeInBytes()}. The budget is checked
+ * before a slice is added and the policy decides how a slice exceeding it is handled.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class MemoryBudget {
+
+	public enum Policy {
+		/**
+		 * Fails the add by a {@link MemoryBudgetExceededException}
+		 */
+		REJECT,
+		/**
+		 * Blocks the writer until another thread frees memory by removing or compacting slices. The tree has to be
+		 * accessed while synchronizing on it, as the writer waits on the monitor of the tree.
+		 */
+		BACKPRESSURE,
+		/**
+		 * Compacts the tree as of the end of the added slice and fails the add if that does not suffice, requires a
+		 * compaction policy
+		 */
+		COMPACT,
+		/**
+		 * Evicts the oldest slices until the added slice fits
+		 */
+		EVICT_OLDEST
+	}
+
+	private final long maxBytes;
+
+	private final Policy policy;
+
+	private final long backpressureTimeoutMillis;
+
+	/**
+	 * @param maxBytes the maximum estimated size of the tree in bytes
+	 * @param policy   the policy applied if a slice exceeds the budget
+	 */
+	public MemoryBudget(long maxBytes, Policy policy) {
+		this(maxBytes, policy, 0);
+	}
+
+	/**
+	 * @param maxBytes                  the maximum estimated size of the tree in bytes
+	 * @param policy                    the policy applied if a slice exceeds the budget
+	 * @param backpressureTimeoutMillis the time a writer waits under {@link Policy#BACKPRESSURE} before the add
+	 *                                  fails, 0 to wait indefinitely
+	 */
+	public MemoryBudget(long maxBytes, Policy policy, long backpressureTimeoutMillis) {
+		if (maxBytes < 1)
+			throw new IllegalArgumentException("The budget has to be positive");
+		if (backpressureTimeoutMillis < 0)
+			throw new IllegalArgumentException("The timeout must not be negative");
+
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		this.backpressureTimeoutMillis = backpressureTimeoutMillis;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	public long getBackpressureTimeoutMillis() {
+		return backpressureTimeoutMillis;
+	}
+}
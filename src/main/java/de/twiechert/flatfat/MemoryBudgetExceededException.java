@@ -0,0 +1,29 @@
+package de.twiechert.flatfat;
+
+/**
+ * Thrown if a slice cannot be added without exceeding the {@link MemoryBudget} of the tree
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class MemoryBudgetExceededException extends IllegalStateException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long requiredBytes;
+
+	private final long maxBytes;
+
+	public MemoryBudgetExceededException(long requiredBytes, long maxBytes) {
+		super("Adding the slice requires an estimated " + requiredBytes + " bytes, the budget is " + maxBytes + " bytes");
+		this.requiredBytes = requiredBytes;
+		this.maxBytes = maxBytes;
+	}
+
+	public long getRequiredBytes() {
+		return requiredBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+}
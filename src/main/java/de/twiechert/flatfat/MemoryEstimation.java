@@ -0,0 +1,71 @@
+package de.twiechert.flatfat;
+
+import de.twiechert.flatfat.node.Node;
+
+/**
+ * Rough heap sizes of the building blocks of a tree, assuming a 64-bit JVM with compressed references disabled
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+final class MemoryEstimation {
+
+	static final long REFERENCE_BYTES = 8;
+
+	static final long OBJECT_HEADER_BYTES = 16;
+
+	/**
+	 * An {@link Node.InnerNode} with its state reference and its four longs
+	 */
+	static final long NODE_BYTES = OBJECT_HEADER_BYTES + REFERENCE_BYTES + 4 * 8 + 8;
+
+	/**
+	 * States without a {@link SizeHint}, e.g. a boxed sum
+	 */
+	static final long DEFAULT_STATE_BYTES = 32;
+
+	/**
+	 * An entry of a linked hash map
+	 */
+	static final long MAP_ENTRY_BYTES = 56;
+
+	/**
+	 * An entry of a tree map, which also backs a tree set
+	 */
+	static final long TREE_ENTRY_BYTES = 64;
+
+	private MemoryEstimation() {
+	}
+
+	static long stateSizeInBytes(Mergeable<?, ?> state) {
+		if (state instanceof SizeHint)
+			return ((SizeHint) state).estimatedSizeInBytes();
+		return (state != null) ? DEFAULT_STATE_BYTES : 0;
+	}
+
+	static long nodeSizeInBytes(Node<?, ?> node) {
+		if (node == null)
+			return 0;
+
+		long bytes = NODE_BYTES + stateSizeInBytes(node.getValueState());
+		if (node instanceof Node.RawEventNode)
+			bytes += arraySizeInBytes(((Node.RawEventNode<?, ?>) node).getEvents().size()) + ((Node.RawEventNode<?, ?>) node).getEvents().size() * DEFAULT_STATE_BYTES;
+		return bytes;
+	}
+
+	/**
+	 * @param length the number of references
+	 * @return the size of an array of references, e.g. backing a list
+	 */
+	static long arraySizeInBytes(long length) {
+		return OBJECT_HEADER_BYTES + length * REFERENCE_BYTES;
+	}
+
+	/**
+	 * @param entries the number of entries of a hash map
+	 * @return the size of the map including its table with the default load factor
+	 */
+	static long mapSizeInBytes(int entries) {
+		long table = Math.max(16, Long.highestOneBit(Math.max(1, (long) Math.ceil(entries / 0.75)) * 2 - 1));
+		return OBJECT_HEADER_BYTES + arraySizeInBytes(table) + entries * MAP_ENTRY_BYTES;
+	}
+}
@@ -1,8 +1,11 @@
 package de.twiechert.flatfat;
 
 import com.google.common.collect.Sets;
+import de.twiechert.flatfat.node.LeafCursor;
+import de.twiechert.flatfat.node.LeafVisitor;
 import de.twiechert.flatfat.node.Node;
 import de.twiechert.flatfat.node.NodeIndexPosition;
+import org.javatuples.Triplet;
 
 import java.util.*;
 
@@ -25,24 +28,51 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 	private int back, front;
 
 	/**
-	 * Because we employ a circular heap, this map is required,a s the mapping rule from positions to indices is no longer applicable
+	 * Because we employ a circular heap, this index is required, as the mapping rule from positions to indices is no
+	 * longer applicable. It holds the heap index per position, -1 for a position removed from the middle.
 	 */
-	private Map<Integer, Integer> leafIndex;
+	private int[] leafIndex;
+
+	/**
+	 * The number of positions in the leaf index
+	 */
+	private int indexedLeafs = 0;
+
+	/**
+	 * The number of removals since the utilization dropped below the shrink utilization
+	 */
+	private int lowUtilizationRemovals = 0;
+
+	/**
+	 * Whether {@link #propagate(Integer...)} stops recombining at ancestors keeping their aggregate
+	 */
+	private final boolean propagationCutoff;
+
+	/**
+	 * Set while leafs were added without commit, whose ancestors do not reflect them yet and must not be relied on
+	 * by the cutoff
+	 */
+	private boolean uncommittedLeafs = false;
 
 
 	protected NonShiftingFlatFatTree(Builder<IN, ACC> builder) throws Exception {
 		super(builder);
-		this.back = builder.capacity - 2;
-		this.front = builder.capacity - 1;
-		this.leafIndex = new LinkedHashMap<>(builder.capacity);
-		int fullCapacity = 2 * builder.capacity - 1;
+		this.back = this.numLeafs - 2;
+		this.front = this.numLeafs - 1;
+		this.leafIndex = new int[this.numLeafs];
+		int fullCapacity = 2 * this.numLeafs - 1;
 		this.circularHeap = new ArrayList<>(Collections.nCopies(fullCapacity, identityNode));
+		this.propagationCutoff = builder.propagationCutoff;
 	}
 
 
+	/**
+	 * If the memory budget evicts slices to make room, the position is shifted by the number of evicted slices
+	 */
 	@Override
 	public void add(int position, Node<IN, ACC> node, boolean commit) throws Exception {
-		this.add(position, node, commit, true);
+		int evicted = this.enforceMemoryBudget(node);
+		this.add(Math.max(position - evicted, 0), node, commit, true);
 	}
 
 
@@ -56,22 +86,33 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 	private void add(int position, Node<IN, ACC> node, boolean commit, boolean shiftIndex) throws Exception {
 
 		if (currentCapacity() == 0) {
-			resize(2 * this.numLeafs);
+			resize(capacityPolicy.getGrownCapacity(this.numLeafs));
 		}
 
 		incrBack();
 		this.circularHeap.set(this.back, node);
+		invalidateCachedResults(node);
 
-		if (shiftIndex && position != this.currentLeafCount) {
+		boolean shifted = shiftIndex && position != this.currentLeafCount;
+		if (shifted) {
 			this.shiftIndex(position);
 		}
 
-		this.leafIndex.put(position, this.back);
+		this.indexLeaf(position, this.back);
+
+		if (fingers != null) {
+			if (shifted)
+				fingers.invalidate();
+			else
+				fingers.appended(position, node);
+		}
 
 		if (commit) {
 			if (!shiftIndex)
-				update(position);
+				propagate(position);
 			else update();
+		} else {
+			uncommittedLeafs = true;
 		}
 
 		this.currentLeafCount++;
@@ -84,78 +125,164 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 
 	@Override
 	public void addPotentiallyOutOfOrder(Node<IN, ACC> node, boolean commit) throws Exception {
-		NodeIndexPosition<IN, ACC> predecessor = this.findPredecessor(node);
-		int position = (predecessor != null) ? predecessor.getPosition() + 1 : 0;
-		if (position != currentLeafPosition + 1)
-			this.add(position, node, commit, true);
-		else add(node, commit);
+		this.enforceMemoryBudget(node);
+		int position = this.findPredecessor(node) + 1;
+		this.add(position, node, commit, position != currentLeafPosition + 1);
 	}
 
 	@Override
 	public void add(Node<IN, ACC> node, boolean commit) throws Exception {
+		this.enforceMemoryBudget(node);
 		this.add(currentLeafPosition + 1, node, commit, false);
 	}
 
 
 	@Override
 	public Node<IN, ACC> getNodeOrNull(int leafPosition) {
+		int index = this.indexOf(leafPosition);
+		if (index < 0)
+			return null;
 
-		if (leafIndex.get(leafPosition) != null && !this.circularHeap.get(leafIndex.get(leafPosition)).equals(identityNode)) {
-			return this.circularHeap.get(this.leafIndex.get(leafPosition));
-		}
-
-		return null;
+		Node<IN, ACC> node = this.circularHeap.get(index);
+		return isVacant(node) ? null : node;
 	}
 
 
 	@Override
 	public Node<IN, ACC> getNode(int leafPosition) {
+		int index = this.indexOf(leafPosition);
+		return (index > -1) ? this.circularHeap.get(index) : null;
+	}
+
+
+	/**
+	 * @param position the leaf position
+	 * @return the heap index of the leaf or -1 if there is none
+	 */
+	private int indexOf(int position) {
+		return (position >= 0 && position < this.indexedLeafs) ? this.leafIndex[position] : -1;
+	}
 
-		if (this.leafIndex.get(leafPosition) != null) {
-			return this.circularHeap.get(this.leafIndex.get(leafPosition));
-		}
 
-		return null;
+	private void indexLeaf(int position, int index) {
+		this.leafIndex[position] = index;
+		this.indexedLeafs = Math.max(this.indexedLeafs, position + 1);
 	}
 
 
 	/**
-	 * It reconstructs the heap with a new leaf space of size newCapacity
+	 * It reconstructs the heap with a new leaf space of size newCapacity. The leafs are laid out contiguously in
+	 * position order, holes left by removed leafs are closed.
 	 *
 	 * @param newCapacity the new capacity of the buffer
 	 */
 	private void resize(int newCapacity) throws Exception {
+		List<Node<IN, ACC>> leafs = new ArrayList<>(this.currentLeafCount);
+		LeafCursor<IN, ACC> cursor = this.newLeafCursor();
+		cursor.seek(0, true);
+		while (cursor.next()) {
+			leafs.add(cursor.getNode());
+		}
+		this.layout(newCapacity, leafs);
+	}
+
+
+	/**
+	 * Reconstructs the heap with a new leaf space of size newCapacity holding the given leafs
+	 *
+	 * @param newCapacity the new capacity of the buffer
+	 * @param leafs       the leafs in position order
+	 */
+	private void layout(int newCapacity, List<Node<IN, ACC>> leafs) throws Exception {
 
 		int fullCapacity = 2 * newCapacity - 1;
 		// creates new heap
 		List<Node<IN, ACC>> newHeap = new ArrayList<>(Collections.nCopies(fullCapacity, identityNode));
-
-		Integer[] updated = new Integer[this.leafIndex.size()];
+		int[] newLeafIndex = new int[newCapacity];
 
 		int indx = newCapacity - 2;
-		int updateCount = 0;
+		int position = 0;
 
-		Iterator<NodeIndexPosition<IN, ACC>> iterator = getSliceForwardsIterator();
-		NodeIndexPosition<IN, ACC> nodeIndexPosition;
-		while (iterator.hasNext()) {
-			nodeIndexPosition = iterator.next();
-			newHeap.set(++indx, nodeIndexPosition.getNode());
-			updated[updateCount++] = nodeIndexPosition.getPosition();
-			this.leafIndex.put(nodeIndexPosition.getPosition(), indx);
+		for (Node<IN, ACC> leaf : leafs) {
+			newHeap.set(++indx, leaf);
+			newLeafIndex[position++] = indx;
 		}
 
 		this.numLeafs = newCapacity;
 		this.back = indx;
 		this.front = newCapacity - 1;
 		this.circularHeap = newHeap;
-		update(updated);
+		this.leafIndex = newLeafIndex;
+		this.indexedLeafs = position;
+		this.currentLeafCount = position;
+		this.currentLeafPosition = position - 1;
+		propagate(allPositionsUpTo(position));
+	}
+
+
+	/**
+	 * As positions shift, the heap is laid out anew in a single pass, which also shrinks it to the remaining leafs
+	 */
+	@Override
+	protected void replaceRuns(List<Triplet<Integer, Integer, Node<IN, ACC>>> runs) throws Exception {
+		if (fingers != null)
+			fingers.invalidate();
+
+		List<Node<IN, ACC>> leafs = new ArrayList<>(this.currentLeafCount);
+		List<Node<IN, ACC>> replaced = new ArrayList<>();
+		Iterator<Triplet<Integer, Integer, Node<IN, ACC>>> runIterator = runs.iterator();
+		Triplet<Integer, Integer, Node<IN, ACC>> run = runIterator.next();
+		LeafCursor<IN, ACC> cursor = this.newLeafCursor();
+		cursor.seek(0, true);
+		while (cursor.next()) {
+			int position = cursor.getPosition();
+			if (run == null || position < run.getValue0()) {
+				leafs.add(cursor.getNode());
+				continue;
+			}
+
+			replaced.add(cursor.getNode());
+			if (position == run.getValue1()) {
+				leafs.add(run.getValue2());
+				run = runIterator.hasNext() ? runIterator.next() : null;
+			}
+		}
+		invalidateCachedResults(replaced);
+
+		// the heap is rebuilt anyway, so it shrinks regardless of a shrink delay
+		int newCapacity = capacityPolicy.isDeferShrink() ? this.numLeafs : capacityPolicy.getShrunkCapacity(this.numLeafs, leafs.size());
+		this.layout(newCapacity, leafs);
+		this.releaseMemory();
+	}
+
+
+	@Override
+	protected void rebuild(List<Node<IN, ACC>> slices) throws Exception {
+		if (fingers != null)
+			fingers.invalidate();
+		if (resultCache != null)
+			resultCache.clear();
+
+		int newCapacity = capacityPolicy.getCapacityFor(slices.size(), this.numLeafs);
+		if (newCapacity < slices.size())
+			throw new IllegalStateException("The capacity policy does not allow " + slices.size() + " leafs");
+		this.layout(newCapacity, slices);
+		this.releaseMemory();
 	}
 
 
 	@Override
 	public void remove(Integer... positions) throws Exception {
+		if (fingers != null)
+			fingers.invalidate();
+		this.removePositions(positions);
+	}
+
+
+	private void removePositions(Integer... positions) throws Exception {
 
 		List<Integer> leafBag = new ArrayList<>(positions.length);
+		List<Node<IN, ACC>> removed = new ArrayList<>(positions.length);
 		/*
 			Checks whether entries are removed in order (from beginning without gaps
 		 */
@@ -166,12 +293,17 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 			if (this.getNode(position) == null)
 				continue;
 
+			removed.add(this.getNode(position));
+			leafIdx = this.indexOf(position);
+			// after out-of-order inserts the back slot might hold a leaf from the middle, which cannot be cut off
+			boolean lastLeaf = leafIdx == back && position == this.currentLeafPosition;
 			this.currentLeafCount--;
 			this.currentLeafPosition--;
-			leafIdx = leafIndex.get(position);
-			if (leafIdx == back) {
+			if (lastLeaf) {
 				decrBack();
-				leafIndex.remove(position);
+				if (position == indexedLeafs - 1)
+					indexedLeafs--;
+				else leafIndex[position] = -1;
 			} else {
 				onlyRemovedFromBack = false;
 				if (removedInOrder)
@@ -181,51 +313,84 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 			this.circularHeap.set(leafIdx, this.createEmpty(true));
 			leafBag.add(position);
 		}
+		invalidateCachedResults(removed);
 
-		if (onlyRemovedFromBack) {
-			update(leafBag.toArray(new Integer[leafBag.size()]));
+		int newCapacity = this.shrunkCapacity();
+		if (onlyRemovedFromBack && newCapacity == numLeafs) {
+			propagate(leafBag.toArray(new Integer[leafBag.size()]));
 		} else {
-			this.reorderIndex();
-			update();
+			/*
+			  Leafs removed from the middle would leave holes in the circular heap, which the back pointer cannot reach
+			  anymore. Hence, the remaining leafs are laid out anew, which shrinks the heap at once if due.
+			 */
+			resize(newCapacity);
 		}
+		this.releaseMemory();
+	}
+
 
-		// shrink to half when the utilization is only one quarter
-		if (currentCapacity() > 3 * numLeafs / 4 && numLeafs >= 4) {
-			resize(numLeafs / 2);
+	/**
+	 * Applies the shrink delay of the capacity policy, it is called once per removal
+	 *
+	 * @return the capacity to shrink to or the current capacity
+	 */
+	private int shrunkCapacity() {
+		int newCapacity = capacityPolicy.isDeferShrink() ? this.numLeafs : capacityPolicy.getShrunkCapacity(this.numLeafs, this.currentLeafCount);
+		if (newCapacity == this.numLeafs) {
+			this.lowUtilizationRemovals = 0;
+			return newCapacity;
 		}
+		if (++this.lowUtilizationRemovals <= capacityPolicy.getShrinkDelay())
+			return this.numLeafs;
+
+		this.lowUtilizationRemovals = 0;
+		return newCapacity;
 	}
 
 
-	private void reorderIndex() {
-		Iterator<NodeIndexPosition<IN, ACC>> iterator = getSliceForwardsIterator();
-		NodeIndexPosition<IN, ACC> nodeIndexPosition;
-		int i = 0;
-		while (iterator.hasNext()) {
-			nodeIndexPosition = iterator.next();
-			this.leafIndex.put(i, nodeIndexPosition.getIndex());
-			i++;
-		}
+	@Override
+	public boolean trimCapacity() throws Exception {
+		int newCapacity = capacityPolicy.getShrunkCapacity(this.numLeafs, this.currentLeafCount);
+		if (newCapacity == this.numLeafs)
+			return false;
 
-		boolean cleanFront = true;
-		int j = i;
-		while (cleanFront) {
-			if (this.leafIndex.containsKey(j)) {
-				this.leafIndex.remove(j);
-				j++;
-			} else cleanFront = false;
-		}
-		this.currentLeafCount = i;
+		this.lowUtilizationRemovals = 0;
+		this.resize(newCapacity);
+		this.releaseMemory();
+		return true;
+	}
+
+
+	@Override
+	public void mergeLeaves(int leftPosition, int rightPosition) throws Exception {
+		if (rightPosition != leftPosition + 1)
+			throw new IllegalArgumentException("Only neighbouring slices can be merged");
+
+		Node<IN, ACC> left = this.getNodeOrNull(leftPosition);
+		Node<IN, ACC> right = this.getNodeOrNull(rightPosition);
+		if (left == null || right == null)
+			throw new IllegalArgumentException("Both slices have to exist in order to be merged");
+
+		this.circularHeap.set(this.indexOf(leftPosition), mergeSlices(left, right));
+		// removing the last slice only repairs its own path, so the path of the merged slice is repaired separately
+		this.remove(rightPosition);
+		update(leftPosition);
 	}
 
-	private void shiftIndex(int pos) {
-		int index = leafIndex.get(pos);
-		int leafIndexCurrSize = leafIndex.size();
 
-		for (int i = pos; i < leafIndexCurrSize; i++) {
-			int newIndex = (i != leafIndexCurrSize - 1) ? leafIndex.get(i + 1) : 0;
-			this.leafIndex.put(i + 1, index);
-			index = newIndex;
+	private Integer[] allPositionsUpTo(int leafCount) {
+		Integer[] positions = new Integer[leafCount];
+		for (int i = 0; i < leafCount; i++) {
+			positions[i] = i;
 		}
+		return positions;
+	}
+
+
+	private void shiftIndex(int pos) {
+		// the position itself is overwritten by the inserted leaf
+		System.arraycopy(this.leafIndex, pos, this.leafIndex, pos + 1, this.indexedLeafs - pos);
+		this.indexedLeafs++;
 	}
 
 
@@ -235,35 +400,91 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 			return;
 
 		List<Integer> toRemove = new ArrayList<>();
-		if (this.leafIndex.containsKey(leafPosition)) {
-
-			Iterator<NodeIndexPosition<IN, ACC>> iterator = getSliceForwardsIterator();
-			NodeIndexPosition<IN, ACC> nodeIndexPosition;
-			while (iterator.hasNext()) {
-				nodeIndexPosition = iterator.next();
-
-				if (nodeIndexPosition.getPosition() > leafPosition)
-					break;
-
-				toRemove.add(nodeIndexPosition.getPosition());
-
+		if (this.indexOf(leafPosition) > -1) {
+			for (int position = 0; position <= leafPosition; position++) {
+				if (this.getNodeOrNull(position) != null)
+					toRemove.add(position);
 			}
 		}
 
-		remove(toRemove.toArray(new Integer[toRemove.size()]));
+		removePositions(toRemove.toArray(new Integer[toRemove.size()]));
+		if (fingers != null)
+			fingers.evicted(toRemove.size());
 	}
 
 
 	protected void update() throws Exception {
-		this.update(this.leafIndex.keySet().toArray(new Integer[this.leafIndex.keySet().size()]));
+		this.propagate(allPositionsUpTo(this.indexedLeafs));
 	}
 
 
 	@Override
 	public void update(Integer... positions) throws Exception {
+		List<Node<IN, ACC>> changed = new ArrayList<>(positions.length);
+		for (Integer position : positions) {
+			changed.add(this.getNode(position));
+			if (fingers != null)
+				fingers.invalidate(position);
+		}
+		invalidateCachedResults(changed);
+		this.propagate(positions);
+	}
+
+
+	/**
+	 * The event or partial aggregate is merged into each ancestor in place, which costs O(log n) merges of a single
+	 * event and allocates nothing. With the propagation cutoff, the path is recombined instead, as an in place merge
+	 * cannot tell whether it changed the aggregate.
+	 */
+	@Override
+	protected void applyToAncestors(int position, IN value, Mergeable<IN, ACC> partial, long eventCount, long eventTime) throws Exception {
+		if (propagationCutoff) {
+			this.propagate(position);
+			return;
+		}
+
+		int index = parentForPosition(position);
+		while (true) {
+			Node<IN, ACC> ancestor = this.circularHeap.get(index);
+			if (isVacant(ancestor)) {
+				// the path was not combined yet, as the leaf was added without commit, so it is recombined as a whole
+				this.propagate(position);
+				return;
+			}
+
+			if (partial != null)
+				ancestor.getValueState().merge(partial);
+			else ancestor.getValueState().add(value);
+			ancestor.setCount(ancestor.getCount() + eventCount);
+			ancestor.setTmax(Math.max(ancestor.getTmax(), eventTime));
+
+			if (index == ROOT)
+				return;
+			index = parent(index);
+		}
+	}
+
+
+	/**
+	 * Recomputes the ancestors of the given leafs. With the propagation cutoff, a path is no longer recombined above
+	 * an ancestor keeping its aggregate. The ancestors above it merely get their event counts and times refreshed,
+	 * which costs no merge, unless another changed path reaches them.
+	 *
+	 * @param positions the positions of the changed leafs
+	 */
+	protected void propagate(Integer... positions) throws Exception {
 		if (positions.length == 0) return;
 
+		boolean cutoff = propagationCutoff && !uncommittedLeafs;
+		uncommittedLeafs = false;
+		if (cutoff && positions.length == 1) {
+			this.propagatePath(positions[0]);
+			return;
+		}
+
 		Set<Integer> next = Sets.newHashSet(positions);
+		// the nodes of the current level whose aggregate was kept
+		Set<Integer> kept = new HashSet<>();
 		boolean leafs = true;
 		do {
 			Set<Integer> tmp = new HashSet<>();
@@ -277,16 +498,81 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 
 				}
 			}
+			Set<Integer> refreshed = new HashSet<>();
+			for (Integer index : kept) {
+				if (index != ROOT && !tmp.contains(parent(index)))
+					refreshed.add(parent(index));
+			}
+
+			Set<Integer> changed = new HashSet<>();
+			kept = new HashSet<>();
 			for (Integer parent : tmp) {
-				circularHeap.set(parent, combine(circularHeap.get(leftChild(parent)), circularHeap.get(rightChild(parent))));
+				Node<IN, ACC> previous = circularHeap.get(parent);
+				Node<IN, ACC> combined = combine(nodeAt(2 * parent + 1), nodeAt(2 * parent + 2));
+				circularHeap.set(parent, combined);
+				if (cutoff && keepsAggregate(previous, combined))
+					kept.add(parent);
+				else changed.add(parent);
+			}
+			for (Integer parent : refreshed) {
+				Node<IN, ACC> node = circularHeap.get(parent);
+				if (isVacant(node)) {
+					// the node was never combined, so there is no aggregate to keep
+					circularHeap.set(parent, combine(nodeAt(2 * parent + 1), nodeAt(2 * parent + 2)));
+					changed.add(parent);
+				} else {
+					refresh(node, nodeAt(2 * parent + 1), nodeAt(2 * parent + 2));
+					kept.add(parent);
+				}
 			}
-			next = tmp;
+			next = changed;
 			leafs = false;
-		} while (!next.isEmpty());
+		} while (!next.isEmpty() || !kept.isEmpty());
 
 	}
 
 
+	/**
+	 * Recombines the ancestors of a single leaf up to the first one keeping its aggregate, which spares the level
+	 * sets of {@link #propagate(Integer...)}
+	 */
+	private void propagatePath(int position) throws Exception {
+		int index = parentForPosition(position);
+		boolean recombine = true;
+		while (true) {
+			Node<IN, ACC> ancestor = this.circularHeap.get(index);
+			if (recombine || isVacant(ancestor)) {
+				Node<IN, ACC> combined = combine(nodeAt(2 * index + 1), nodeAt(2 * index + 2));
+				this.circularHeap.set(index, combined);
+				recombine = !keepsAggregate(ancestor, combined);
+			} else {
+				refresh(ancestor, nodeAt(2 * index + 1), nodeAt(2 * index + 2));
+			}
+
+			if (index == ROOT)
+				return;
+			index = parent(index);
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private boolean keepsAggregate(Node<IN, ACC> previous, Node<IN, ACC> combined) {
+		return !isVacant(previous) && ((ChangeSignal<IN, ACC>) combined.getValueState()).hasSameAggregate(previous.getValueState());
+	}
+
+
+	/**
+	 * Recomputes all fields of the node but its aggregate, like {@link #combine(Node, Node)} does
+	 */
+	private static <IN, ACC> void refresh(Node<IN, ACC> node, Node<IN, ACC> left, Node<IN, ACC> right) {
+		node.setTmax(Math.max(left.getTmax(), right.getTmax()));
+		node.setCount(left.getCount() + right.getCount());
+		node.setStart((left.getStart() != -1L) ? left.getStart() : right.getStart());
+		node.setEnd((right.getEnd() != 0L) ? right.getEnd() : left.getEnd());
+	}
+
+
 	/**
 	 * it collects an aggregated result starting from the startleafID given until the endleafID
 	 *
@@ -296,67 +582,240 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 	 * @throws Exception
 	 */
 	protected Node<IN, ACC> suffix(int startPosition, int endPosition) throws Exception {
-		int nextS = this.leafIndex.get(startPosition);
-		int nextE = this.leafIndex.get(endPosition);
-		boolean leafs = true;
+		int nextS = getSupposedIndexFromPosition(startPosition);
+		int nextE = getSupposedIndexFromPosition(endPosition);
+
+		Node<IN, ACC> aggS = this.createEmpty();
+		Node<IN, ACC> aggE = identityNode;
+
+		while (nextS <= nextE) {
+			if (nextS == nextE) {
+				aggS = combine(aggS, aggS, nodeAt(nextS));
+				break;
+			}
+			/*
+			  A right child on the start side (or a left child on the end side) is only partially covered by its parent,
+			  so it is aggregated on its own and the boundary moves to the neighbouring subtree.
+			 */
+			if (nextS % 2 == 0)
+				aggS = combine(aggS, aggS, nodeAt(nextS++));
+
+			if (nextE % 2 == 1)
+				aggE = combine(nodeAt(nextE--), aggE);
 
-		Node<IN, ACC> aggS = getNode(startPosition);
-		Node<IN, ACC> aggE = getNode(endPosition);
+			if (nextS > nextE)
+				break;
 
+			nextS = parent(nextS);
+			nextE = parent(nextE);
+		}
+		return combine(aggS, aggE);
+	}
+
+
+	/**
+	 * Walks the same canonical decomposition as {@link #suffix(int, int)}, but merges the nodes of the start side
+	 * straight into the target. The ones of the end side are visited right to left, so they are merged while the
+	 * recursion over the levels unwinds, which keeps the query free of allocations and of shared scratch space.
+	 */
+	@Override
+	protected long aggregateRangeInto(int startPosition, int endPosition, Mergeable<IN, ACC> target) throws Exception {
+		return this.aggregateLevelInto(getSupposedIndexFromPosition(startPosition), getSupposedIndexFromPosition(endPosition), target);
+	}
+
+
+	/**
+	 * @param nextS the leftmost node of the range on this level
+	 * @param nextE the rightmost node of the range on this level
+	 * @return the number of events merged from this level and the ones above
+	 */
+	private long aggregateLevelInto(int nextS, int nextE, Mergeable<IN, ACC> target) throws Exception {
+		if (nextS > nextE)
+			return 0;
+		if (nextS == nextE)
+			return mergeInto(target, nodeAt(nextS));
+
+		long count = 0;
+		if (nextS % 2 == 0)
+			count += mergeInto(target, nodeAt(nextS++));
+
+		int endNode = -1;
+		if (nextE % 2 == 1)
+			endNode = nextE--;
+
+		if (nextS <= nextE)
+			count += this.aggregateLevelInto(parent(nextS), parent(nextE), target);
+		if (endNode > -1)
+			count += mergeInto(target, nodeAt(endNode));
+		return count;
+	}
+
+
+	@Override
+	public Node<IN, ACC> aggregateLastN(long eventCount) throws Exception {
+		if (eventCount <= 0 || this.currentLeafCount == 0)
+			return this.createEmpty();
+
+		if (nodeAt(ROOT).getCount() <= eventCount)
+			return this.aggregateFromTo(0, this.currentLeafPosition);
+
+		/*
+		  Descend from the root and prefer the right subtree as long as it holds enough events. This finds the slice
+		  holding the oldest requested event with O(log n) lookups.
+		 */
+		long remaining = eventCount;
+		int index = ROOT;
+		while (index < this.numLeafs - 1) {
+			Node<IN, ACC> right = nodeAt(2 * index + 2);
+			if (right.getCount() >= remaining) {
+				index = 2 * index + 2;
+			} else {
+				remaining -= right.getCount();
+				index = 2 * index + 1;
+			}
+		}
 
-		while (nextS != ROOT && nextS != nextE) {
-			int pS = (leafs) ? parentForPosition(startPosition) : parent(nextS);
-			int pE = (leafs) ? parentForPosition(endPosition) : parent(nextE);
+		return this.aggregateFromBoundary(getSupposedPositionFromIndex(index), remaining);
+	}
+
+
+	/**
+	 * Walks the subtrees covering the slices from the start position on from left to right and accumulates their
+	 * aggregates, until the first subtree is found at which the predicate holds. Within this subtree, the descent
+	 * continues left whenever the left child suffices, which takes O(log n) combines instead of a scan.
+	 */
+	@Override
+	public int findFirst(int startPosition, AggregatePredicate<IN, ACC> predicate) throws Exception {
+		if (this.currentLeafCount == 0 || startPosition > this.currentLeafPosition)
+			return -1;
+
+		Node<IN, ACC> agg = this.createEmpty();
+		int index = getSupposedIndexFromPosition(Math.max(startPosition, 0));
+		while (true) {
+			// a left child is covered by its parent along with its right sibling
+			if (index % 2 == 1) {
+				index = parent(index);
+				continue;
+			}
 
-			if (pS != pE) {
-				if (nextS == leftChild(pS)) {
-					aggS = circularHeap.get(pS);
+			Node<IN, ACC> candidate = combine(agg, nodeAt(index));
+			if (predicate.test(candidate))
+				break;
+
+			// the rightmost subtree of a level ends with the last leaf
+			if (((index + 2) & (index + 1)) == 0)
+				return -1;
+			agg = candidate;
+			index++;
+		}
+
+		while (index < this.numLeafs - 1) {
+			Node<IN, ACC> candidate = combine(agg, nodeAt(2 * index + 1));
+			if (predicate.test(candidate)) {
+				index = 2 * index + 1;
+			} else {
+				agg = candidate;
+				index = 2 * index + 2;
+			}
+		}
+
+		int position = getSupposedPositionFromIndex(index);
+		return (position <= this.currentLeafPosition) ? position : -1;
+	}
+
+
+	/**
+	 * Compares the subtrees covering the range and descends from the greatest into the child with the greater
+	 * aggregate, preferring the left one on ties
+	 */
+	@Override
+	public int findExtreme(int startPosition, int endPosition, Comparator<ACC> comparator) throws Exception {
+		int from = Math.max(startPosition, 0);
+		int to = Math.min(endPosition, this.currentLeafPosition);
+		if (this.currentLeafCount == 0 || from > to)
+			return -1;
+
+		int nextS = getSupposedIndexFromPosition(from);
+		int nextE = getSupposedIndexFromPosition(to);
+
+		/*
+		  The subtrees of the start side cover earlier slices than the ones of the end side, which are visited from
+		  right to left. Ties are hence won by subtrees of the start side and by later visited subtrees of the end side.
+		 */
+		int extreme = -1;
+		boolean extremeOnEndSide = false;
+		while (nextS <= nextE) {
+			if (nextS == nextE) {
+				if (this.exceeds(nextS, extreme, extremeOnEndSide, comparator))
+					extreme = nextS;
+				break;
+			}
+
+			if (nextS % 2 == 0) {
+				if (this.exceeds(nextS, extreme, extremeOnEndSide, comparator)) {
+					extreme = nextS;
+					extremeOnEndSide = false;
 				}
+				nextS++;
+			}
 
-				if (nextE == rightChild(pE)) {
-					aggE = circularHeap.get(pE);
+			if (nextE % 2 == 1) {
+				if (this.exceeds(nextE, extreme, extremeOnEndSide, comparator)) {
+					extreme = nextE;
+					extremeOnEndSide = true;
 				}
+				nextE--;
+			}
 
-			}			nextS = pS;
-			nextE = pE;
-			leafs = false;
+			if (nextS > nextE)
+				break;
+
+			nextS = parent(nextS);
+			nextE = parent(nextE);
 		}
-		return combine(aggS, aggE);
+
+		if (extreme < 0)
+			return -1;
+
+		while (extreme < this.numLeafs - 1) {
+			int left = 2 * extreme + 1;
+			extreme = this.exceeds(left + 1, left, false, comparator) ? left + 1 : left;
+		}
+		return getSupposedPositionFromIndex(extreme);
 	}
 
 
 	/**
-	 * It returns the left child of the nodeID given
-	 * h(leaf(i)) = n + i - 1 => i=  h(leaf(i))-n+1
-	 *
-	 * @param parentIndex
-	 * @return
+	 * @param candidate the heap index of the subtree compared
+	 * @param extreme   the heap index of the greatest subtree so far or -1 if there is none
+	 * @param onTies    whether the candidate wins if both are equal
+	 * @return whether the aggregate of the candidate exceeds the one of the greatest subtree so far
 	 */
-	private int leftChild(int parentIndex) {
-		int properIndex = 2 * parentIndex + 1;
-		int position = getSupposedPositionFromIndex(properIndex);
-		// resolve to index, which might be different due to ordering
-		if (this.leafIndex.get(position) != null)
-			return this.leafIndex.get(position);
-		else
-			return properIndex;
+	private boolean exceeds(int candidate, int extreme, boolean onTies, Comparator<ACC> comparator) throws Exception {
+		Mergeable<IN, ACC> state = nodeAt(candidate).getValueState();
+		if (state.isEmpty())
+			return false;
+		if (extreme < 0 || nodeAt(extreme).getValueState().isEmpty())
+			return true;
+
+		int order = comparator.compare(state.get(), nodeAt(extreme).getValueState().get());
+		return order > 0 || (order == 0 && onTies);
 	}
 
+
 	/**
-	 * It returns the right child of the nodeID given
+	 * Returns the node at the given (proper) heap index. Leaf slots are resolved via the leaf index, leaf positions
+	 * that are not occupied are treated as identity, as their slot might meanwhile be used by another leaf.
 	 *
-	 * @param parentIndex
-	 * @return
+	 * @param properIndex the index as given by the heap structure
+	 * @return the node at the index
 	 */
-	private int rightChild(int parentIndex) {
-		//return 2 * leafIndex + 2;
-		int properIndex = 2 * parentIndex + 2;
-		int position = getSupposedPositionFromIndex(properIndex);
-		// resolve to index, which might be different due to ordering
-		if (this.leafIndex.get(position) != null)
-			return this.leafIndex.get(position);
-		else
-			return properIndex;
+	private Node<IN, ACC> nodeAt(int properIndex) {
+		if (properIndex < this.numLeafs - 1)
+			return this.circularHeap.get(properIndex);
+
+		int index = this.indexOf(getSupposedPositionFromIndex(properIndex));
+		return (index > -1) ? this.circularHeap.get(index) : identityNode;
 	}
 
 	protected void incrBack() {
@@ -365,7 +824,8 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 
 
 	protected void decrBack() {
-		back = ((back - numLeafs + 2) % numLeafs) + numLeafs - 3;
+		// with back = n - 1 + k, this yields the slot n - 1 + ((k - 1) mod n)
+		back = (back % numLeafs) + numLeafs - 1;
 	}
 
 
@@ -373,9 +833,60 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 		front = ((front - numLeafs + 2) % numLeafs) + numLeafs - 1;
 	}
 
+	@Override
+	public long estimatedSizeInBytes() {
+		long bytes = MemoryEstimation.OBJECT_HEADER_BYTES + this.slotSizeInBytes(this.currentLeafCount);
+		for (Node<IN, ACC> node : this.circularHeap) {
+			if (node != identityNode)
+				bytes += MemoryEstimation.nodeSizeInBytes(node);
+		}
+		return bytes + MemoryEstimation.nodeSizeInBytes(identityNode) + this.auxiliarySizeInBytes();
+	}
+
+
+	/**
+	 * The heap holds 2n - 1 slots and the index n positions for a capacity of n leafs, which grows once it is
+	 * exhausted
+	 */
+	@Override
+	protected long slotSizeInBytes(int leafCount) {
+		long capacity = capacityPolicy.getCapacityFor(leafCount, this.numLeafs);
+		// the heap references and the leaf index of ints
+		return MemoryEstimation.arraySizeInBytes(2 * capacity - 1) + MemoryEstimation.OBJECT_HEADER_BYTES + 4 * capacity;
+	}
+
+
 	@Override
 	public int currentCapacity() {
-		return numLeafs - leafIndex.size();
+		return numLeafs - indexedLeafs;
+	}
+
+
+	@Override
+	public LeafCursor<IN, ACC> newLeafCursor() {
+		return new HeapLeafCursor();
+	}
+
+
+	@Override
+	public void forEachLeaf(int fromPosition, int toPosition, LeafVisitor<IN, ACC> visitor) throws Exception {
+		for (int position = Math.max(fromPosition, 0); position <= toPosition; position++) {
+			int index = this.indexOf(position);
+			if (index < 0)
+				return;
+
+			Node<IN, ACC> leaf = this.circularHeap.get(index);
+			if (!isVacant(leaf) && !visitor.visit(position, leaf))
+				return;
+		}
+	}
+
+
+	/**
+	 * Removed leafs leave identity nodes in their slots until the heap is laid out anew
+	 */
+	private static boolean isVacant(Node<?, ?> node) {
+		return node instanceof Node.InnerNode && ((Node.InnerNode<?, ?>) node).isIdentity();
 	}
 
 
@@ -398,7 +909,7 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 
 		@Override
 		public NodeIndexPosition<IN, ACC> next() {
-			int currentIndex = leafIndex.get(currentPosition);
+			int currentIndex = indexOf(currentPosition);
 			return new NodeIndexPosition<>(circularHeap.get(currentIndex), currentIndex, currentPosition--);
 		}
 
@@ -412,7 +923,7 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 
 		@Override
 		public NodeIndexPosition<IN, ACC> next() {
-			int currentIndex = leafIndex.get(currentPosition);
+			int currentIndex = indexOf(currentPosition);
 			return new NodeIndexPosition<>(circularHeap.get(currentIndex), currentIndex, currentPosition++);
 		}
 
@@ -428,14 +939,83 @@ public class NonShiftingFlatFatTree<IN, ACC> extends FlatFatTree.BaseFlatFatTree
 
 		@Override
 		public boolean hasNext() {
-			if (leafIndex.containsKey(currentPosition) && !circularHeap.get(leafIndex.get(currentPosition)).equals(identityNode))
-				return true;
-			else if (leafIndex.containsKey(currentPosition)) {
+			int index;
+			while ((index = indexOf(currentPosition)) > -1) {
+				if (!isVacant(circularHeap.get(index)))
+					return true;
+				// vacant slots are skipped in the direction of the iterator
 				next();
-				return hasNext();
 			}
 			return false;
 		}
 	}
 
+
+	private class HeapLeafCursor implements LeafCursor<IN, ACC> {
+
+		private int nextPosition;
+
+		private int step;
+
+		private int position = -1;
+
+		private int index = -1;
+
+		private Node<IN, ACC> node;
+
+		@Override
+		public void seek(int position, boolean forwards) {
+			this.nextPosition = position;
+			this.step = forwards ? 1 : -1;
+			this.node = null;
+		}
+
+		@Override
+		public boolean next() {
+			int nextIndex;
+			while ((nextIndex = indexOf(nextPosition)) > -1) {
+				Node<IN, ACC> next = circularHeap.get(nextIndex);
+				position = nextPosition;
+				nextPosition += step;
+				if (!isVacant(next)) {
+					index = nextIndex;
+					node = next;
+					return true;
+				}
+			}
+			node = null;
+			return false;
+		}
+
+		@Override
+		public int getPosition() {
+			return position;
+		}
+
+		@Override
+		public int getIndex() {
+			return index;
+		}
+
+		@Override
+		public Node<IN, ACC> getNode() {
+			return node;
+		}
+
+		@Override
+		public long getStart() {
+			return node.getStart();
+		}
+
+		@Override
+		public long getEnd() {
+			return node.getEnd();
+		}
+
+		@Override
+		public long getTmax() {
+			return node.getTmax();
+		}
+	}
+
 }
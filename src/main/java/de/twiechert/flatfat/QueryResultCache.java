@@ -0,0 +1,203 @@
+package de.twiechert.flatfat;
+
+import de.twiechert.flatfat.node.Node;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * A bounded cache of time range aggregates. Entries are not invalidated by every change of the tree, but only
+ * when a leaf overlapping their range is added, removed or updated.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class QueryResultCache<IN, ACC> {
+
+	public enum EvictionPolicy {
+		/**
+		 * Evicts the least recently used entry
+		 */
+		LRU,
+		/**
+		 * Evicts the least recently inserted entry
+		 */
+		FIFO
+	}
+
+	private final Map<Range, CachedResult<IN, ACC>> entries;
+
+	/**
+	 * The ranges of the entries ordered by their start time, such that an invalidation only visits the ranges
+	 * starting before the changed leafs end
+	 */
+	private final NavigableSet<Range> rangesByStart = new TreeSet<>();
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	private long savedCombines = 0;
+
+	private long invalidations = 0;
+
+	public QueryResultCache(final int maxEntries, EvictionPolicy evictionPolicy) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("The cache should hold at least one entry");
+
+		this.entries = new LinkedHashMap<Range, CachedResult<IN, ACC>>(16, 0.75f, evictionPolicy == EvictionPolicy.LRU) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Range, CachedResult<IN, ACC>> eldest) {
+				if (size() <= maxEntries)
+					return false;
+				rangesByStart.remove(eldest.getKey());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached aggregate of the range or null if there is none
+	 */
+	Node<IN, ACC> get(long startTime, long endTime) {
+		CachedResult<IN, ACC> cachedResult = entries.get(new Range(startTime, endTime));
+		if (cachedResult == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		savedCombines += cachedResult.combines;
+		return cachedResult.result;
+	}
+
+	/**
+	 * @param combines the number of combines it took to compute the result
+	 */
+	void put(long startTime, long endTime, Node<IN, ACC> result, long combines) {
+		Range range = new Range(startTime, endTime);
+		entries.put(range, new CachedResult<>(result, combines));
+		rangesByStart.add(range);
+	}
+
+	/**
+	 * Drops all entries whose range overlaps the given leaf. Range queries select slices by their start and their
+	 * tmax, so both bound the leaf, which also covers slices whose tmax was never set and defaults to 0.
+	 *
+	 * @param leaf the leaf that was changed
+	 */
+	void invalidate(Node<IN, ACC> leaf) {
+		invalidate(Math.min(leaf.getStart(), leaf.getTmax()), Math.max(leaf.getStart(), leaf.getTmax()));
+	}
+
+	/**
+	 * Drops all entries whose range overlaps the given time span, which allows to invalidate a batch of leafs at once
+	 *
+	 * @param firstTime the smallest start or tmax of the changed leafs
+	 * @param lastTime  the largest start or tmax of the changed leafs
+	 */
+	void invalidate(long firstTime, long lastTime) {
+		Iterator<Range> iterator = rangesByStart.headSet(new Range(lastTime, Long.MAX_VALUE), true).iterator();
+		while (iterator.hasNext()) {
+			Range range = iterator.next();
+			if (range.endTime > firstTime) {
+				iterator.remove();
+				entries.remove(range);
+				invalidations++;
+			}
+		}
+	}
+
+	public void clear() {
+		invalidations += entries.size();
+		entries.clear();
+		rangesByStart.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the estimated heap size of the cached aggregates and their ranges
+	 */
+	long estimatedSizeInBytes() {
+		// an entry holds its range, the cached result and the aggregate, its range is indexed by its start time too
+		long bytes = MemoryEstimation.mapSizeInBytes(entries.size()) + entries.size() * MemoryEstimation.TREE_ENTRY_BYTES
+				+ entries.size() * 2 * (MemoryEstimation.OBJECT_HEADER_BYTES + 16);
+		for (CachedResult<IN, ACC> cachedResult : entries.values()) {
+			bytes += MemoryEstimation.nodeSizeInBytes(cachedResult.result);
+		}
+		return bytes;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public double getHitRate() {
+		return (hits + misses == 0) ? 0d : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * @return the number of combines, that cache hits did not have to perform
+	 */
+	public long getSavedCombines() {
+		return savedCombines;
+	}
+
+	public long getInvalidations() {
+		return invalidations;
+	}
+
+	private static class Range implements Comparable<Range> {
+
+		private final long startTime;
+
+		private final long endTime;
+
+		private Range(long startTime, long endTime) {
+			this.startTime = startTime;
+			this.endTime = endTime;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			Range range = (Range) o;
+			return startTime == range.startTime && endTime == range.endTime;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = (int) (startTime ^ (startTime >>> 32));
+			result = 31 * result + (int) (endTime ^ (endTime >>> 32));
+			return result;
+		}
+
+		@Override
+		public int compareTo(Range other) {
+			int byStart = Long.compare(startTime, other.startTime);
+			return byStart != 0 ? byStart : Long.compare(endTime, other.endTime);
+		}
+	}
+
+	private static class CachedResult<IN, ACC> {
+
+		private final Node<IN, ACC> result;
+
+		private final long combines;
+
+		private CachedResult(Node<IN, ACC> result, long combines) {
+			this.result = result;
+			this.combines = combines;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package de.twiechert.flatfat;
+
+/**
+ * May be implemented by {@link Mergeable} states, whose size depends on their configuration or content, such as
+ * sketches. The memory accounting of the tree assumes a small fixed size for all other states.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface SizeHint {
+
+	/**
+	 * @return the approximate number of bytes the state occupies on the heap, including its arrays
+	 */
+	long estimatedSizeInBytes();
+}
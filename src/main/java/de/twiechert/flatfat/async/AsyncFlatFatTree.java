@@ -0,0 +1,296 @@
+package de.twiechert.flatfat.async;
+
+import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.node.Node;
+import org.javatuples.Pair;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An asynchronous facade over a {@link FlatFatTree}, which serves range queries of many concurrent clients without
+ * a waiting thread per query.
+ * <p>
+ * Queries are queued and answered in batches, either by a drain task on the query executor while the tree is idle or
+ * by the writer at the safe point after each ingest batch. Queries for the same range within a batch are computed
+ * once. The query executor uses virtual threads if the JVM provides them and a single daemon thread otherwise.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class AsyncFlatFatTree<IN, ACC> implements AutoCloseable {
+
+	/**
+	 * The most queries answered while holding the tree, such that neither a writer nor a drain task is kept busy by
+	 * clients queueing queries faster than they are answered. The remaining ones are left to the next drain task.
+	 */
+	static final int MAX_BATCH_SIZE = 1024;
+
+	private final FlatFatTree<IN, ACC> tree;
+
+	private final StateFactory<IN, ACC> stateFactory;
+
+	private final Executor executor;
+
+	private final boolean ownsExecutor;
+
+	/**
+	 * Guards the tree, which is not thread-safe
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Queue<PendingQuery<IN, ACC>> pending = new ConcurrentLinkedQueue<>();
+
+	private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drainScheduled.set(false);
+			// if the writer holds the tree, it answers the queries at its next safe point
+			if (!lock.tryLock())
+				return;
+
+			List<PendingQuery<IN, ACC>> answered;
+			try {
+				answered = answerPending();
+			} finally {
+				lock.unlock();
+			}
+			complete(answered);
+			scheduleDrainIfPending();
+		}
+	};
+
+	private volatile long answeredQueries = 0;
+
+	private volatile long coalescedQueries = 0;
+
+
+	/**
+	 * Creates the facade with the default query executor
+	 *
+	 * @param tree         the tree to serve, it must not be accessed other than through this facade afterwards
+	 * @param stateFactory the state factory of the tree, which is used to hand out copies of coalesced results
+	 */
+	public AsyncFlatFatTree(FlatFatTree<IN, ACC> tree, StateFactory<IN, ACC> stateFactory) {
+		this(tree, stateFactory, defaultExecutor(), true);
+	}
+
+
+	/**
+	 * @param tree         the tree to serve, it must not be accessed other than through this facade afterwards
+	 * @param stateFactory the state factory of the tree, which is used to hand out copies of coalesced results
+	 * @param executor     the executor answering queries while no writer is active
+	 */
+	public AsyncFlatFatTree(FlatFatTree<IN, ACC> tree, StateFactory<IN, ACC> stateFactory, Executor executor) {
+		this(tree, stateFactory, executor, false);
+	}
+
+
+	private AsyncFlatFatTree(FlatFatTree<IN, ACC> tree, StateFactory<IN, ACC> stateFactory, Executor executor, boolean ownsExecutor) {
+		this.tree = tree;
+		this.stateFactory = stateFactory;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+
+	/**
+	 * @param startTime the start of the range
+	 * @param endTime   the end of the range
+	 * @return a future completed with the aggregate of the range, as by {@link FlatFatTree#aggregateFromTo(long, long)}
+	 */
+	public CompletableFuture<Node<IN, ACC>> aggregateFromTo(long startTime, long endTime) {
+		PendingQuery<IN, ACC> query = new PendingQuery<>(startTime, endTime);
+		pending.add(query);
+		this.scheduleDrain();
+		return query.future;
+	}
+
+
+	/**
+	 * Adds a batch of slices, potentially out-of-order. Afterwards, the queries queued meanwhile are answered before
+	 * the tree is released.
+	 *
+	 * @param slices the slices to add
+	 * @throws Exception in case a slice cannot be added
+	 */
+	public void ingest(Iterable<? extends Node<IN, ACC>> slices) throws Exception {
+		List<PendingQuery<IN, ACC>> answered;
+		lock.lock();
+		try {
+			for (Node<IN, ACC> slice : slices) {
+				tree.addPotentiallyOutOfOrder(slice, true);
+			}
+			answered = this.answerPending();
+		} finally {
+			lock.unlock();
+		}
+		this.complete(answered);
+		this.scheduleDrainIfPending();
+	}
+
+
+	/**
+	 * Evicts all slices up to the given position, the queries queued meanwhile are answered afterwards
+	 *
+	 * @param leafPosition the leaf position up to which to delete
+	 * @throws Exception in case deletion is not possible
+	 */
+	public void removeUpTo(int leafPosition) throws Exception {
+		List<PendingQuery<IN, ACC>> answered;
+		lock.lock();
+		try {
+			tree.removeUpTo(leafPosition);
+			answered = this.answerPending();
+		} finally {
+			lock.unlock();
+		}
+		this.complete(answered);
+		this.scheduleDrainIfPending();
+	}
+
+
+	/**
+	 * @return the number of queries answered so far
+	 */
+	public long getAnsweredQueries() {
+		return answeredQueries;
+	}
+
+
+	/**
+	 * @return the number of queries answered by the result of an identical query in the same batch
+	 */
+	public long getCoalescedQueries() {
+		return coalescedQueries;
+	}
+
+
+	/**
+	 * Shuts the query executor down if it was created by the facade
+	 */
+	@Override
+	public void close() {
+		if (ownsExecutor)
+			((ExecutorService) executor).shutdown();
+	}
+
+
+	/**
+	 * Answers up to {@link #MAX_BATCH_SIZE} queued queries, must be called while holding the lock. The futures are
+	 * completed later on, such that dependent actions do not run while the tree is locked.
+	 *
+	 * @return the answered queries
+	 */
+	private List<PendingQuery<IN, ACC>> answerPending() {
+		Map<Pair<Long, Long>, List<PendingQuery<IN, ACC>>> byRange = new LinkedHashMap<>();
+		PendingQuery<IN, ACC> query;
+		for (int polled = 0; polled < MAX_BATCH_SIZE && (query = pending.poll()) != null; polled++) {
+			Pair<Long, Long> range = new Pair<>(query.startTime, query.endTime);
+			List<PendingQuery<IN, ACC>> queries = byRange.get(range);
+			if (queries == null) {
+				queries = new ArrayList<>();
+				byRange.put(range, queries);
+			}
+			queries.add(query);
+		}
+
+		List<PendingQuery<IN, ACC>> answered = new ArrayList<>();
+		for (List<PendingQuery<IN, ACC>> queries : byRange.values()) {
+			PendingQuery<IN, ACC> first = queries.get(0);
+			try {
+				first.result = tree.aggregateFromTo(first.startTime, first.endTime);
+				// every client gets a copy of its own, as it might modify the result
+				for (int i = 1; i < queries.size(); i++) {
+					queries.get(i).result = new Node.InnerNode<>(first.result, stateFactory);
+				}
+			} catch (Exception e) {
+				for (PendingQuery<IN, ACC> failed : queries) {
+					failed.error = e;
+				}
+			}
+			answered.addAll(queries);
+			coalescedQueries += queries.size() - 1;
+		}
+		answeredQueries += answered.size();
+		return answered;
+	}
+
+
+	private void complete(List<PendingQuery<IN, ACC>> answered) {
+		for (PendingQuery<IN, ACC> query : answered) {
+			if (query.error != null)
+				query.future.completeExceptionally(query.error);
+			else query.future.complete(query.result);
+		}
+	}
+
+
+	private void scheduleDrain() {
+		if (drainScheduled.compareAndSet(false, true))
+			executor.execute(drainTask);
+	}
+
+
+	/**
+	 * Queries queued while the tree was locked or beyond the batch size are otherwise left behind, if no further write
+	 * follows
+	 */
+	private void scheduleDrainIfPending() {
+		if (!pending.isEmpty())
+			this.scheduleDrain();
+	}
+
+
+	/**
+	 * @return an executor starting a virtual thread per task if available, a single daemon thread otherwise
+	 */
+	private static ExecutorService defaultExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "flatfat-async-query");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+
+	private static class PendingQuery<IN, ACC> {
+
+		private final long startTime;
+
+		private final long endTime;
+
+		private final CompletableFuture<Node<IN, ACC>> future = new CompletableFuture<>();
+
+		private Node<IN, ACC> result;
+
+		private Exception error;
+
+		private PendingQuery(long startTime, long endTime) {
+			this.startTime = startTime;
+			this.endTime = endTime;
+		}
+	}
+}
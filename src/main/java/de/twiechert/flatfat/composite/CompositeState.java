@@ -0,0 +1,136 @@
+package de.twiechert.flatfat.composite;
+
+import de.twiechert.flatfat.ChangeSignal;
+import de.twiechert.flatfat.Mergeable;
+import de.twiechert.flatfat.SizeHint;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A state holding several aggregates at once, such that a single tree, a single resolver search and a single
+ * aggregation yield all of them. Primitive aggregates are stored column-wise in one array, all other aggregates
+ * are kept as nested states.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class CompositeState<IN> implements Mergeable<IN, Object[]>, SizeHint, ChangeSignal<IN, Object[]> {
+
+	private final CompositeStateFactory<IN> factory;
+
+	private final double[] columns;
+
+	private final List<Mergeable<IN, ?>> nested;
+
+	private boolean empty = true;
+
+	CompositeState(CompositeStateFactory<IN> factory, List<Mergeable<IN, ?>> nested) {
+		this.factory = factory;
+		this.nested = nested;
+		this.columns = new double[factory.primitiveAggregates.length];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = factory.primitiveAggregates[i].identity();
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Mergeable<IN, Object[]> merge(Mergeable<IN, Object[]> other) throws Exception {
+		CompositeState<IN> otherState = (CompositeState<IN>) other;
+		if (otherState.empty)
+			return this;
+
+		PrimitiveAggregate[] aggregates = factory.primitiveAggregates;
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = aggregates[i].merge(columns[i], otherState.columns[i]);
+		}
+		for (int i = 0; i < nested.size(); i++) {
+			((Mergeable) nested.get(i)).merge(otherState.nested.get(i));
+		}
+		this.empty = false;
+		return this;
+	}
+
+	/**
+	 * @return the results of all aggregates in declaration order, primitive ones as {@link Double}
+	 * @throws Exception
+	 */
+	@Override
+	public Object[] get() throws Exception {
+		Object[] results = new Object[factory.layout.length];
+		for (int i = 0; i < results.length; i++) {
+			int slot = factory.layout[i];
+			results[i] = (slot >= 0) ? columns[slot] : nested.get(-slot - 1).get();
+		}
+		return results;
+	}
+
+	/**
+	 * @param aggregate the declaration index of a primitive aggregate
+	 * @return its current value
+	 */
+	public double getPrimitive(int aggregate) {
+		int slot = factory.layout[aggregate];
+		if (slot < 0)
+			throw new IllegalArgumentException("Aggregate " + aggregate + " is no primitive aggregate");
+		return columns[slot];
+	}
+
+	/**
+	 * @param aggregate the declaration index of a nested aggregate
+	 * @return its state
+	 */
+	public Mergeable<IN, ?> getNested(int aggregate) {
+		int slot = factory.layout[aggregate];
+		if (slot >= 0)
+			throw new IllegalArgumentException("Aggregate " + aggregate + " is no nested aggregate");
+		return nested.get(-slot - 1);
+	}
+
+	@Override
+	public void add(IN value) throws Exception {
+		PrimitiveAggregate[] aggregates = factory.primitiveAggregates;
+		List<ValueExtractor<IN>> extractors = factory.extractors;
+		for (int i = 0; i < columns.length; i++) {
+			ValueExtractor<IN> extractor = extractors.get(i);
+			columns[i] = aggregates[i].add(columns[i], (extractor != null) ? extractor.extract(value) : 0d);
+		}
+		for (Mergeable<IN, ?> state : nested) {
+			state.add(value);
+		}
+		this.empty = false;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	@Override
+	public long estimatedSizeInBytes() {
+		// the object with its fields and the headers of its arrays
+		long bytes = 16 + 16 + 8L * columns.length + 16 + 8L * nested.size();
+		for (Mergeable<IN, ?> state : nested) {
+			bytes += (state instanceof SizeHint) ? ((SizeHint) state).estimatedSizeInBytes() : 32;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Nested states not implementing {@link ChangeSignal} are always reported as changed
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean hasSameAggregate(Mergeable<IN, Object[]> other) {
+		CompositeState<IN> otherState = (CompositeState<IN>) other;
+		if (otherState.empty != this.empty || !Arrays.equals(otherState.columns, columns))
+			return false;
+
+		for (int i = 0; i < nested.size(); i++) {
+			Mergeable<IN, ?> state = nested.get(i);
+			if (!(state instanceof ChangeSignal) || !((ChangeSignal) state).hasSameAggregate(otherState.nested.get(i)))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,111 @@
+package de.twiechert.flatfat.composite;
+
+import de.twiechert.flatfat.Mergeable;
+import de.twiechert.flatfat.StateFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates {@link CompositeState}s, which compute several aggregates in a single tree. The aggregates are
+ * addressed by the order in which they were declared on the builder.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class CompositeStateFactory<IN> implements StateFactory<IN, Object[]> {
+
+	final PrimitiveAggregate[] primitiveAggregates;
+
+	final List<ValueExtractor<IN>> extractors;
+
+	final List<StateFactory<IN, ?>> nestedFactories;
+
+	/**
+	 * Maps each declared aggregate to its slot. Primitive aggregates are stored in slot <code>i >= 0</code> of the
+	 * primitive columns, nested ones in slot <code>-i - 1</code> of the nested states.
+	 */
+	final int[] layout;
+
+	private CompositeStateFactory(Builder<IN> builder) {
+		this.primitiveAggregates = builder.primitiveAggregates.toArray(new PrimitiveAggregate[builder.primitiveAggregates.size()]);
+		this.extractors = new ArrayList<>(builder.extractors);
+		this.nestedFactories = new ArrayList<>(builder.nestedFactories);
+		this.layout = new int[builder.layout.size()];
+		for (int i = 0; i < layout.length; i++) {
+			layout[i] = builder.layout.get(i);
+		}
+	}
+
+	@Override
+	public CompositeState<IN> getState() throws Exception {
+		List<Mergeable<IN, ?>> nested = new ArrayList<>(nestedFactories.size());
+		for (StateFactory<IN, ?> nestedFactory : nestedFactories) {
+			nested.add(nestedFactory.getState());
+		}
+		return new CompositeState<>(this, nested);
+	}
+
+	/**
+	 * @return the number of declared aggregates
+	 */
+	public int size() {
+		return layout.length;
+	}
+
+	public static class Builder<IN> {
+
+		private final List<PrimitiveAggregate> primitiveAggregates = new ArrayList<>();
+		private final List<ValueExtractor<IN>> extractors = new ArrayList<>();
+		private final List<StateFactory<IN, ?>> nestedFactories = new ArrayList<>();
+		private final List<Integer> layout = new ArrayList<>();
+
+		private Builder() {
+		}
+
+		public static <IN> Builder<IN> newBuilder() {
+			return new Builder<>();
+		}
+
+		public Builder<IN> sum(ValueExtractor<IN> extractor) {
+			return this.primitive(PrimitiveAggregate.SUM, extractor);
+		}
+
+		public Builder<IN> count() {
+			return this.primitive(PrimitiveAggregate.COUNT, null);
+		}
+
+		public Builder<IN> min(ValueExtractor<IN> extractor) {
+			return this.primitive(PrimitiveAggregate.MIN, extractor);
+		}
+
+		public Builder<IN> max(ValueExtractor<IN> extractor) {
+			return this.primitive(PrimitiveAggregate.MAX, extractor);
+		}
+
+		public Builder<IN> primitive(PrimitiveAggregate aggregate, ValueExtractor<IN> extractor) {
+			if (aggregate != PrimitiveAggregate.COUNT && extractor == null)
+				throw new IllegalArgumentException("An extractor is required for " + aggregate);
+
+			this.layout.add(this.primitiveAggregates.size());
+			this.primitiveAggregates.add(aggregate);
+			this.extractors.add(extractor);
+			return this;
+		}
+
+		/**
+		 * Adds an arbitrary aggregate, e.g. a sketch, which is kept as a state of its own
+		 *
+		 * @param stateFactory the factory of the nested state
+		 * @return the builder
+		 */
+		public Builder<IN> nested(StateFactory<IN, ?> stateFactory) {
+			this.layout.add(-this.nestedFactories.size() - 1);
+			this.nestedFactories.add(stateFactory);
+			return this;
+		}
+
+		public CompositeStateFactory<IN> build() {
+			return new CompositeStateFactory<>(this);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package de.twiechert.flatfat.composite;
+
+/**
+ * Aggregates that are kept as a single primitive column of a {@link CompositeState}
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public enum PrimitiveAggregate {
+
+	SUM(0d) {
+		@Override
+		double add(double aggregate, double value) {
+			return aggregate + value;
+		}
+
+		@Override
+		double merge(double left, double right) {
+			return left + right;
+		}
+	},
+	COUNT(0d) {
+		@Override
+		double add(double aggregate, double value) {
+			return aggregate + 1;
+		}
+
+		@Override
+		double merge(double left, double right) {
+			return left + right;
+		}
+	},
+	MIN(Double.POSITIVE_INFINITY) {
+		@Override
+		double add(double aggregate, double value) {
+			return Math.min(aggregate, value);
+		}
+
+		@Override
+		double merge(double left, double right) {
+			return Math.min(left, right);
+		}
+	},
+	MAX(Double.NEGATIVE_INFINITY) {
+		@Override
+		double add(double aggregate, double value) {
+			return Math.max(aggregate, value);
+		}
+
+		@Override
+		double merge(double left, double right) {
+			return Math.max(left, right);
+		}
+	};
+
+	private final double identity;
+
+	PrimitiveAggregate(double identity) {
+		this.identity = identity;
+	}
+
+	double identity() {
+		return identity;
+	}
+
+	abstract double add(double aggregate, double value);
+
+	abstract double merge(double left, double right);
+}
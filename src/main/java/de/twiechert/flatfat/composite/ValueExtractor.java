@@ -0,0 +1,11 @@
+package de.twiechert.flatfat.composite;
+
+/**
+ * Extracts the numeric value a primitive aggregate is computed over
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface ValueExtractor<IN> {
+
+	double extract(IN value);
+}
@@ -0,0 +1,561 @@
+package de.twiechert.flatfat.ingest;
+
+import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.node.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Feeds a single {@link FlatFatTree} from many producer threads through a bounded lock-free ring buffer, which a
+ * single drainer applies to the tree in batches.
+ * <p>
+ * Each slot of the ring carries a sequence number (as in Vyukov's bounded queue): a producer claims the next slot by
+ * a single CAS on the tail, writes the event or slice and publishes it by a release store of the slot's sequence, so
+ * producers neither lock nor wait for each other. The drainer reads the published slots in order and frees them the
+ * same way. Events of a batch are merged into their slices in place and the ancestors of all changed slices are
+ * repaired by a single propagation pass at the end of the batch. Slices arriving out-of-order end the pass early, as
+ * they shift the positions of the following slices.
+ * <p>
+ * Events are assigned to slices aligned on the slice length. Late events whose slice was evicted already are
+ * dropped. The tree is locked while a batch is applied and by queries and evictions through this class.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class RingBufferIngestion<IN, ACC> implements AutoCloseable {
+
+	public enum WaitStrategy {
+		/**
+		 * Retries immediately, which has the lowest latency but occupies a core while waiting, so it requires more
+		 * cores than spinning threads
+		 */
+		BUSY_SPIN,
+		/**
+		 * Yields the core to other threads between retries
+		 */
+		YIELDING,
+		/**
+		 * Spins and yields shortly, then parks for a fixed time between retries, which saves the core at the cost of
+		 * latency
+		 */
+		PARKING
+	}
+
+	public enum Backpressure {
+		/**
+		 * Producers wait by the wait strategy until the drainer frees a slot
+		 */
+		BLOCK,
+		/**
+		 * Producers drop the event or slice if the ring is full
+		 */
+		DROP
+	}
+
+	private static final int SPIN_TRIES = 100;
+
+	private static final int YIELD_TRIES = 200;
+
+	private static final long PARK_NANOS = 50000;
+
+	private final FlatFatTree<IN, ACC> tree;
+
+	private final StateFactory<IN, ACC> stateFactory;
+
+	private final long sliceLength;
+
+	private final int maxBatch;
+
+	private final WaitStrategy waitStrategy;
+
+	private final Backpressure backpressure;
+
+	private final int mask;
+
+	/**
+	 * The sequence of slot i is the position the slot is free for, or that position plus one once it is published
+	 */
+	private final AtomicLongArray sequences;
+
+	private final long[] timestamps;
+
+	private final Object[] values;
+
+	/**
+	 * Holds the slice of a slot or null if the slot holds an event
+	 */
+	private final Object[] slices;
+
+	/**
+	 * The position the next producer claims
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * The position the drainer reads next, only accessed by the drainer
+	 */
+	private long head = 0;
+
+	/**
+	 * Guards the tree
+	 */
+	private final ReentrantLock treeLock = new ReentrantLock();
+
+	/**
+	 * The positions of the slices changed by the current batch, only accessed by the drainer
+	 */
+	private final List<Integer> changedPositions = new ArrayList<>();
+
+	private Thread drainer;
+
+	private volatile boolean running = false;
+
+	private volatile Exception failure;
+
+	private final AtomicLong droppedEntries = new AtomicLong();
+
+	private volatile long drainedEntries = 0;
+
+	private volatile long drainedBatches = 0;
+
+	private volatile long droppedLateEvents = 0;
+
+
+	private RingBufferIngestion(Builder<IN, ACC> builder) {
+		this.tree = builder.tree;
+		this.stateFactory = builder.stateFactory;
+		this.sliceLength = builder.sliceLength;
+		this.maxBatch = builder.maxBatch;
+		this.waitStrategy = builder.waitStrategy;
+		this.backpressure = builder.backpressure;
+		this.mask = builder.capacity - 1;
+		this.sequences = new AtomicLongArray(builder.capacity);
+		for (int i = 0; i < builder.capacity; i++) {
+			sequences.set(i, i);
+		}
+		this.timestamps = new long[builder.capacity];
+		this.values = new Object[builder.capacity];
+		this.slices = new Object[builder.capacity];
+	}
+
+
+	/**
+	 * @param tree         the tree to feed, it must not be accessed other than through this class afterwards
+	 * @param stateFactory the state factory of the tree
+	 * @param sliceLength  the length of the slices events are aggregated into
+	 */
+	public static <IN, ACC> Builder<IN, ACC> newBuilder(FlatFatTree<IN, ACC> tree, StateFactory<IN, ACC> stateFactory, long sliceLength) {
+		return new Builder<>(tree, stateFactory, sliceLength);
+	}
+
+
+	/**
+	 * Starts a daemon thread draining the ring until the ingestion is closed
+	 */
+	public synchronized void start() {
+		if (drainer != null)
+			throw new IllegalStateException("The drainer is started already");
+
+		running = true;
+		drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int idle = 0;
+				while (running) {
+					try {
+						// capped, such that the counter of a long idle ring does not overflow and skip waiting
+						idle = (drain() > 0) ? 0 : Math.min(idle + 1, YIELD_TRIES + 1);
+					} catch (Exception e) {
+						failure = e;
+						running = false;
+						return;
+					}
+					if (idle > 0)
+						await(idle);
+				}
+			}
+		}, "flatfat-ring-drainer");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+
+	/**
+	 * Enqueues an event, which may be called by any thread
+	 *
+	 * @param timestamp the event time
+	 * @param value     the event
+	 * @return whether the event was enqueued, false if it was dropped as the ring is full
+	 * @throws IllegalStateException if the drainer failed
+	 */
+	public boolean addEvent(long timestamp, IN value) {
+		long position = this.claim();
+		if (position < 0)
+			return false;
+
+		int index = (int) position & mask;
+		timestamps[index] = timestamp;
+		values[index] = value;
+		sequences.lazySet(index, position + 1);
+		return true;
+	}
+
+
+	/**
+	 * Enqueues a slice, which may be called by any thread. The slice is added to the tree as it is, potentially
+	 * out-of-order.
+	 *
+	 * @param slice the slice
+	 * @return whether the slice was enqueued, false if it was dropped as the ring is full
+	 * @throws IllegalStateException if the drainer failed
+	 */
+	public boolean addSlice(Node<IN, ACC> slice) {
+		long position = this.claim();
+		if (position < 0)
+			return false;
+
+		int index = (int) position & mask;
+		slices[index] = slice;
+		sequences.lazySet(index, position + 1);
+		return true;
+	}
+
+
+	/**
+	 * Applies the enqueued entries up to the batch size to the tree. It is called by the drainer thread once started,
+	 * otherwise by a single thread of the caller's choice.
+	 *
+	 * @return the number of entries applied
+	 * @throws Exception in case the tree cannot be changed
+	 */
+	public int drain() throws Exception {
+		int drained = 0;
+		treeLock.lock();
+		try {
+			while (drained < maxBatch) {
+				int index = (int) head & mask;
+				if (sequences.get(index) != head + 1)
+					break;
+
+				@SuppressWarnings("unchecked")
+				Node<IN, ACC> slice = (Node<IN, ACC>) slices[index];
+				@SuppressWarnings("unchecked")
+				IN value = (IN) values[index];
+				long timestamp = timestamps[index];
+				slices[index] = null;
+				values[index] = null;
+				// frees the slot for the producer wrapping around
+				sequences.lazySet(index, head + mask + 1);
+				head++;
+				drained++;
+
+				if (slice != null)
+					this.applySlice(slice);
+				else this.applyEvent(timestamp, value);
+			}
+			this.propagate();
+		} finally {
+			treeLock.unlock();
+		}
+
+		if (drained > 0) {
+			drainedEntries += drained;
+			drainedBatches++;
+		}
+		return drained;
+	}
+
+
+	/**
+	 * @see FlatFatTree#aggregateFromTo(long, long)
+	 */
+	public Node<IN, ACC> aggregateFromTo(long startTime, long endTime) throws Exception {
+		treeLock.lock();
+		try {
+			return tree.aggregateFromTo(startTime, endTime);
+		} finally {
+			treeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * @see FlatFatTree#removeUpTo(int)
+	 */
+	public void removeUpTo(int leafPosition) throws Exception {
+		treeLock.lock();
+		try {
+			tree.removeUpTo(leafPosition);
+		} finally {
+			treeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Stops the drainer after it applied all entries enqueued so far
+	 *
+	 * @throws IllegalStateException if the drainer failed, if the thread was interrupted while waiting for the
+	 *                               drainer to stop, or if the remaining entries cannot be applied
+	 */
+	@Override
+	public void close() {
+		Thread stopped;
+		synchronized (this) {
+			stopped = drainer;
+			running = false;
+			drainer = null;
+		}
+		if (stopped != null) {
+			try {
+				stopped.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the drainer to stop", e);
+			}
+		}
+		if (failure != null)
+			throw new IllegalStateException("The drainer failed", failure);
+
+		// entries enqueued after the drainer stopped are applied by the closing thread
+		try {
+			int drained;
+			do {
+				drained = this.drain();
+			} while (drained > 0);
+		} catch (Exception e) {
+			throw new IllegalStateException("The remaining entries cannot be applied", e);
+		}
+	}
+
+
+	/**
+	 * @return the number of entries currently enqueued
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+
+	public long getDrainedEntries() {
+		return drainedEntries;
+	}
+
+
+	public long getDrainedBatches() {
+		return drainedBatches;
+	}
+
+
+	/**
+	 * @return the number of events and slices dropped as the ring was full
+	 */
+	public long getDroppedEntries() {
+		return droppedEntries.get();
+	}
+
+
+	/**
+	 * @return the number of late events dropped, because their slice was evicted from the tree already
+	 */
+	public long getDroppedLateEvents() {
+		return droppedLateEvents;
+	}
+
+
+	/**
+	 * @return the claimed position or -1 if the ring is full and entries are dropped
+	 */
+	private long claim() {
+		if (failure != null)
+			throw new IllegalStateException("The drainer failed", failure);
+
+		int attempt = 0;
+		while (true) {
+			long position = tail.get();
+			long sequence = sequences.get((int) position & mask);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1))
+					return position;
+			} else if (sequence < position) {
+				// the slot still holds the entry of the previous lap, so the ring is full
+				if (backpressure == Backpressure.DROP) {
+					droppedEntries.incrementAndGet();
+					return -1;
+				}
+				if (failure != null)
+					throw new IllegalStateException("The drainer failed", failure);
+				attempt = Math.min(attempt + 1, YIELD_TRIES + 1);
+				this.await(attempt);
+			}
+			// otherwise another producer claimed the position meanwhile
+		}
+	}
+
+
+	private void await(int attempt) {
+		switch (waitStrategy) {
+			case BUSY_SPIN:
+				break;
+			case YIELDING:
+				Thread.yield();
+				break;
+			default:
+				if (attempt > YIELD_TRIES)
+					LockSupport.parkNanos(PARK_NANOS);
+				else if (attempt > SPIN_TRIES)
+					Thread.yield();
+		}
+	}
+
+
+	private void applySlice(Node<IN, ACC> slice) throws Exception {
+		if (tree.getCurrentLeafCount() == 0 || slice.getStart() >= this.lastSlice().getEnd()) {
+			tree.add(slice, false);
+			changedPositions.add(tree.getCurrentLeafPosition());
+			return;
+		}
+		// positions shift, so the slices changed so far are repaired before
+		this.propagate();
+		tree.addPotentiallyOutOfOrder(slice, true);
+	}
+
+
+	private void applyEvent(long timestamp, IN value) throws Exception {
+		int position = this.coveringPosition(timestamp);
+		if (position > -1) {
+			Node<IN, ACC> slice = tree.getNode(position);
+			if (slice instanceof Node.RawEventNode) {
+				((Node.RawEventNode<IN, ACC>) slice).addEvent(value);
+			} else {
+				slice.getValueState().add(value);
+				slice.setCount(slice.getCount() + 1);
+			}
+			slice.setTmax(Math.max(slice.getTmax(), timestamp));
+			if (changedPositions.isEmpty() || changedPositions.get(changedPositions.size() - 1) != position)
+				changedPositions.add(position);
+			return;
+		}
+
+		long sliceStart = Math.floorDiv(timestamp, sliceLength) * sliceLength;
+		Node<IN, ACC> slice = new Node.InnerNode<>(stateFactory.getState(), sliceStart, sliceStart + sliceLength);
+		slice.getValueState().add(value);
+		slice.setCount(1);
+		slice.setTmax(timestamp);
+
+		if (tree.getCurrentLeafCount() == 0 || sliceStart >= this.lastSlice().getEnd()) {
+			tree.add(slice, false);
+			changedPositions.add(tree.getCurrentLeafPosition());
+		} else if (sliceStart > tree.getNode(0).getStart()) {
+			// no event fell into the slice so far
+			this.propagate();
+			tree.addPotentiallyOutOfOrder(slice, true);
+		} else {
+			droppedLateEvents++;
+		}
+	}
+
+
+	/**
+	 * @return the position of the slice holding the event time, -1 if there is none
+	 */
+	private int coveringPosition(long timestamp) {
+		if (tree.getCurrentLeafCount() == 0)
+			return -1;
+
+		// events mostly fall into the newest slice
+		Node<IN, ACC> last = this.lastSlice();
+		if (timestamp >= last.getStart())
+			return (timestamp < last.getEnd()) ? tree.getCurrentLeafPosition() : -1;
+
+		Integer position = tree.getNodePositionByTimestamp(timestamp);
+		if (position == null || position < 0)
+			return -1;
+		return (timestamp < tree.getNode(position).getEnd()) ? position : -1;
+	}
+
+
+	private Node<IN, ACC> lastSlice() {
+		return tree.getNode(tree.getCurrentLeafPosition());
+	}
+
+
+	/**
+	 * Repairs the ancestors of all slices changed since the last pass at once
+	 */
+	private void propagate() throws Exception {
+		if (changedPositions.isEmpty())
+			return;
+		tree.update(changedPositions.toArray(new Integer[changedPositions.size()]));
+		changedPositions.clear();
+	}
+
+
+	public static class Builder<IN, ACC> {
+
+		private final FlatFatTree<IN, ACC> tree;
+
+		private final StateFactory<IN, ACC> stateFactory;
+
+		private final long sliceLength;
+
+		private int capacity = 1 << 16;
+
+		private int maxBatch = 1024;
+
+		private WaitStrategy waitStrategy = WaitStrategy.PARKING;
+
+		private Backpressure backpressure = Backpressure.BLOCK;
+
+		private Builder(FlatFatTree<IN, ACC> tree, StateFactory<IN, ACC> stateFactory, long sliceLength) {
+			if (sliceLength < 1)
+				throw new IllegalArgumentException("The slice length has to be positive");
+
+			this.tree = tree;
+			this.stateFactory = stateFactory;
+			this.sliceLength = sliceLength;
+		}
+
+		/**
+		 * @param capacity the number of slots of the ring, a power of two
+		 */
+		public Builder<IN, ACC> capacity(int capacity) {
+			if (capacity < 2 || (capacity & -capacity) != capacity)
+				throw new IllegalArgumentException("Capacity should be a power of two");
+			this.capacity = capacity;
+			return this;
+		}
+
+		/**
+		 * @param maxBatch the maximum number of entries applied by one propagation pass
+		 */
+		public Builder<IN, ACC> maxBatch(int maxBatch) {
+			if (maxBatch < 1)
+				throw new IllegalArgumentException("The batch size has to be positive");
+			this.maxBatch = maxBatch;
+			return this;
+		}
+
+		/**
+		 * @param waitStrategy how the drainer waits for entries and blocked producers wait for free slots
+		 */
+		public Builder<IN, ACC> waitStrategy(WaitStrategy waitStrategy) {
+			this.waitStrategy = waitStrategy;
+			return this;
+		}
+
+		public Builder<IN, ACC> backpressure(Backpressure backpressure) {
+			this.backpressure = backpressure;
+			return this;
+		}
+
+		public RingBufferIngestion<IN, ACC> build() {
+			return new RingBufferIngestion<>(this);
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package de.twiechert.flatfat.ingest;
+
+import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.node.Node;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Feeds a single {@link FlatFatTree} from several writer threads. Every writer aggregates its events into slices of
+ * its own, which are aligned on the common slice boundaries, and hands closed slices over to the combiner through a
+ * lock-free queue. The combiner merges the partial slices of all writers once every writer has passed them, i.e. once
+ * they are below the watermark, and adds them to the tree.
+ * <p>
+ * The per-event path only touches writer-local state. The tree is locked when a slice is combined, which a writer
+ * attempts whenever it closes a slice, and by queries and evictions through this class.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class StripedIngestion<IN, ACC> {
+
+	private final FlatFatTree<IN, ACC> tree;
+
+	private final StateFactory<IN, ACC> stateFactory;
+
+	private final long sliceLength;
+
+	private final List<Writer> writers = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Guards the tree and the pending slices
+	 */
+	private final ReentrantLock treeLock = new ReentrantLock();
+
+	/**
+	 * Partial slices not yet below the watermark, merged per slice start
+	 */
+	private final TreeMap<Long, Node<IN, ACC>> pendingSlices = new TreeMap<>();
+
+	/**
+	 * Slices starting before are part of the tree already
+	 */
+	private long combinedUpTo = Long.MIN_VALUE;
+
+	/**
+	 * Written while holding the tree lock only, but read by any thread
+	 */
+	private volatile long combinedSlices = 0;
+
+	private volatile long droppedLateSlices = 0;
+
+
+	/**
+	 * @param tree         the tree to feed, it must not be accessed other than through this class afterwards
+	 * @param stateFactory the state factory of the tree
+	 * @param sliceLength  the length of the slices all writers align on
+	 */
+	public StripedIngestion(FlatFatTree<IN, ACC> tree, StateFactory<IN, ACC> stateFactory, long sliceLength) {
+		if (sliceLength < 1)
+			throw new IllegalArgumentException("The slice length has to be positive");
+
+		this.tree = tree;
+		this.stateFactory = stateFactory;
+		this.sliceLength = sliceLength;
+	}
+
+
+	/**
+	 * Registers a new writer. As the watermark is the minimum of all writers, idle writers should signal their progress
+	 * by {@link Writer#advance(long)} or be closed.
+	 *
+	 * @return the writer, which must only be used by a single thread
+	 */
+	public Writer newWriter() {
+		Writer writer = new Writer();
+		writers.add(writer);
+		return writer;
+	}
+
+
+	/**
+	 * Adds all slices below the watermark to the tree
+	 *
+	 * @return the number of slices added or merged into the tree
+	 * @throws Exception in case a slice cannot be added
+	 */
+	public int combine() throws Exception {
+		treeLock.lock();
+		try {
+			return this.combineLocked();
+		} finally {
+			treeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * @return the start of the oldest slice a writer might still add events to
+	 */
+	public long getWatermark() {
+		long watermark = Long.MAX_VALUE;
+		for (Writer writer : writers) {
+			watermark = Math.min(watermark, writer.watermark);
+		}
+		return watermark;
+	}
+
+
+	/**
+	 * @see FlatFatTree#aggregateFromTo(long, long)
+	 */
+	public Node<IN, ACC> aggregateFromTo(long startTime, long endTime) throws Exception {
+		treeLock.lock();
+		try {
+			return tree.aggregateFromTo(startTime, endTime);
+		} finally {
+			treeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * @see FlatFatTree#removeUpTo(int)
+	 */
+	public void removeUpTo(int leafPosition) throws Exception {
+		treeLock.lock();
+		try {
+			tree.removeUpTo(leafPosition);
+		} finally {
+			treeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * @return the number of slices added or merged into the tree so far
+	 */
+	public long getCombinedSlices() {
+		return combinedSlices;
+	}
+
+
+	/**
+	 * @return the number of late partial slices dropped, because their slice was evicted from the tree already
+	 */
+	public long getDroppedLateSlices() {
+		return droppedLateSlices;
+	}
+
+
+	private int combineLocked() throws Exception {
+		// the watermark has to be read before draining, as writers hand slices off before advancing it
+		long watermark = this.getWatermark();
+		for (Writer writer : writers) {
+			Node<IN, ACC> partial;
+			while ((partial = writer.handoff.poll()) != null) {
+				this.addPending(partial);
+			}
+			if (writer.closed && writer.handoff.isEmpty())
+				writers.remove(writer);
+		}
+
+		int combined = 0;
+		Iterator<Map.Entry<Long, Node<IN, ACC>>> iterator = pendingSlices.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Long, Node<IN, ACC>> entry = iterator.next();
+			if (entry.getKey() >= watermark)
+				break;
+
+			if (entry.getKey() < combinedUpTo)
+				this.mergeLate(entry.getValue());
+			else tree.addPotentiallyOutOfOrder(entry.getValue(), true);
+
+			combinedUpTo = Math.max(combinedUpTo, entry.getKey() + sliceLength);
+			iterator.remove();
+			combined++;
+		}
+		combinedSlices += combined;
+		return combined;
+	}
+
+
+	private void addPending(Node<IN, ACC> partial) throws Exception {
+		Node<IN, ACC> pending = pendingSlices.get(partial.getStart());
+		if (pending == null) {
+			pendingSlices.put(partial.getStart(), partial);
+			return;
+		}
+		pending.getValueState().merge(partial.getValueState());
+		pending.setTmax(Math.max(pending.getTmax(), partial.getTmax()));
+		pending.setCount(pending.getCount() + partial.getCount());
+	}
+
+
+	/**
+	 * Merges a partial slice of late events into its slice in the tree
+	 */
+	private void mergeLate(Node<IN, ACC> partial) throws Exception {
+		if (tree.mergeIntoSlice(partial.getTmax(), partial.getValueState(), partial.getCount()))
+			return;
+
+		if (tree.getCurrentLeafCount() > 0 && partial.getStart() > tree.getNode(0).getStart()) {
+			// no event fell into the slice so far
+			tree.addPotentiallyOutOfOrder(partial, true);
+		} else {
+			droppedLateSlices++;
+		}
+	}
+
+
+	private long sliceStartOf(long timestamp) {
+		return Math.floorDiv(timestamp, sliceLength) * sliceLength;
+	}
+
+
+	/**
+	 * Aggregates the events of a single thread into slices
+	 */
+	public class Writer {
+
+		private final Queue<Node<IN, ACC>> handoff = new ConcurrentLinkedQueue<>();
+
+		private Node<IN, ACC> current;
+
+		/**
+		 * All events before are handed off
+		 */
+		private volatile long watermark = Long.MIN_VALUE;
+
+		private volatile boolean closed = false;
+
+		private Writer() {
+		}
+
+		/**
+		 * @param timestamp the event time
+		 * @param value     the event
+		 * @throws Exception in case the event cannot be added to the state
+		 */
+		public void add(long timestamp, IN value) throws Exception {
+			long sliceStart = sliceStartOf(timestamp);
+			if (sliceStart < watermark) {
+				// a late event is handed off on its own and merged into its slice by the combiner
+				Node<IN, ACC> late = this.createSlice(sliceStart);
+				this.addToSlice(late, timestamp, value);
+				handoff.add(late);
+				return;
+			}
+
+			if (current == null || sliceStart > current.getStart()) {
+				this.advance(sliceStart);
+				current = this.createSlice(sliceStart);
+			}
+			this.addToSlice(current, timestamp, value);
+		}
+
+
+		/**
+		 * Signals that no events before the timestamp follow, which closes the current slice if it ends before
+		 *
+		 * @param timestamp the event time the writer has progressed to
+		 * @throws Exception in case combining fails
+		 */
+		public void advance(long timestamp) throws Exception {
+			long sliceStart = sliceStartOf(timestamp);
+			if (sliceStart <= watermark)
+				return;
+
+			if (current != null && current.getStart() < sliceStart) {
+				handoff.add(current);
+				current = null;
+			}
+			watermark = sliceStart;
+			this.tryCombine();
+		}
+
+
+		/**
+		 * Hands off the current slice and removes the writer from the watermark
+		 *
+		 * @throws Exception in case combining fails
+		 */
+		public void close() throws Exception {
+			if (current != null)
+				handoff.add(current);
+			current = null;
+			watermark = Long.MAX_VALUE;
+			closed = true;
+			this.tryCombine();
+		}
+
+
+		private void tryCombine() throws Exception {
+			// the slice close is the only point a writer touches the tree, and it never waits for it
+			if (!treeLock.tryLock())
+				return;
+			try {
+				combineLocked();
+			} finally {
+				treeLock.unlock();
+			}
+		}
+
+
+		private Node<IN, ACC> createSlice(long sliceStart) throws Exception {
+			Node<IN, ACC> slice = new Node.InnerNode<>(stateFactory.getState(), sliceStart, sliceStart + sliceLength);
+			slice.setTmax(sliceStart);
+			return slice;
+		}
+
+
+		private void addToSlice(Node<IN, ACC> slice, long timestamp, IN value) throws Exception {
+			slice.getValueState().add(value);
+			slice.setTmax(Math.max(slice.getTmax(), timestamp));
+			slice.setCount(slice.getCount() + 1);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package de.twiechert.flatfat.loadtest;
+
+/**
+ * A keyed event, which an {@link EventSource} fills in place to avoid an allocation per event
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class Event {
+
+	long timestamp;
+
+	long key;
+
+	long value;
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getKey() {
+		return key;
+	}
+
+	public long getValue() {
+		return value;
+	}
+}
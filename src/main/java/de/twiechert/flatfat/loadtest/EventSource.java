@@ -0,0 +1,18 @@
+package de.twiechert.flatfat.loadtest;
+
+import java.io.Closeable;
+
+/**
+ * A stream of events driving a {@link LoadTest}
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface EventSource extends Closeable {
+
+	/**
+	 * @param event the event to fill
+	 * @return whether an event was read, false once the stream is exhausted
+	 * @throws Exception in case the event cannot be read
+	 */
+	boolean next(Event event) throws Exception;
+}
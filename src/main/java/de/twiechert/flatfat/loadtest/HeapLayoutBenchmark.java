@@ -0,0 +1,71 @@
+package de.twiechert.flatfat.loadtest;
+
+import de.twiechert.flatfat.numeric.NumericFlatFatTree;
+import de.twiechert.flatfat.numeric.NumericOperator;
+
+import java.util.Random;
+
+/**
+ * Compares the heap arities of the {@link NumericFlatFatTree} for growing trees. Per tree size and arity, it reports
+ * the time of appending all leafs one by one, of point updates and of range queries at random positions. Each
+ * configuration runs twice, only the second run is reported, such that the first one warms up the JIT.
+ * <p>
+ * Usage: <code>HeapLayoutBenchmark [operations] [operator]</code>, by default 1000000 operations of MAX.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class HeapLayoutBenchmark {
+
+	private static final int[] LEAF_COUNTS = {1 << 10, 1 << 14, 1 << 18, 1 << 20, 1 << 22};
+
+	private static final int[] ARITIES = {2, 8, 16};
+
+	public static void main(String[] args) {
+		int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		NumericOperator operator = (args.length > 1) ? NumericOperator.valueOf(args[1].toUpperCase()) : NumericOperator.MAX;
+
+		System.out.printf("%10s %6s %12s %12s %12s%n", "leafs", "arity", "add ns/op", "set ns/op", "query ns/op");
+		for (int leafs : LEAF_COUNTS) {
+			for (int arity : ARITIES) {
+				double[] result = null;
+				for (int run = 0; run < 2; run++) {
+					result = run(leafs, arity, operations, operator);
+				}
+				System.out.printf("%10d %6d %12.1f %12.1f %12.1f%n", leafs, arity, result[0], result[1], result[2]);
+			}
+		}
+	}
+
+	/**
+	 * @return the nanoseconds per append, per update and per query
+	 */
+	private static double[] run(int leafs, int arity, int operations, NumericOperator operator) {
+		Random random = new Random(leafs);
+		NumericFlatFatTree tree = new NumericFlatFatTree(operator, 1, arity);
+		double checksum = 0;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < leafs; i++) {
+			tree.add(random.nextInt(1000));
+		}
+		double add = (double) (System.nanoTime() - start) / leafs;
+
+		start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			tree.set(random.nextInt(leafs), random.nextInt(1000));
+		}
+		double set = (double) (System.nanoTime() - start) / operations;
+
+		start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			int first = random.nextInt(leafs);
+			checksum += tree.aggregateFromTo(first, first + random.nextInt(leafs - first));
+		}
+		double query = (double) (System.nanoTime() - start) / operations;
+
+		// keeps the JIT from eliminating the queries
+		if (checksum == Double.MIN_VALUE)
+			System.out.println(checksum);
+		return new double[]{add, set, query};
+	}
+}
@@ -0,0 +1,93 @@
+package de.twiechert.flatfat.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Records latencies into log-linear buckets of a fixed size, which keeps the relative error of the reported
+ * percentiles below 1/32 without allocating per recorded value.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final long[] counts = new long[64 * SUB_BUCKETS];
+
+	private long totalCount = 0;
+
+	private long sum = 0;
+
+	private long max = 0;
+
+	/**
+	 * @param value the latency in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		long latency = Math.max(value, 0);
+		counts[bucketOf(latency)]++;
+		totalCount++;
+		sum += latency;
+		max = Math.max(max, latency);
+	}
+
+	/**
+	 * @param quantile the quantile, e.g. 0.99
+	 * @return the upper bound of the bucket holding the quantile or 0 if nothing was recorded
+	 */
+	public long getValueAtQuantile(double quantile) {
+		if (totalCount == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * totalCount));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(upperBoundOf(i), max);
+		}
+		return max;
+	}
+
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	public double getMean() {
+		return (totalCount == 0) ? 0 : (double) sum / totalCount;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		totalCount = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	/**
+	 * Values below the sub bucket count have a bucket of their own, larger ones share a bucket with the values of the
+	 * same magnitude and the same leading bits
+	 */
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+		long subBucket = bucket & (SUB_BUCKETS - 1);
+		return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,505 @@
+package de.twiechert.flatfat.loadtest;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import de.twiechert.flatfat.CapacityPolicy;
+import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.QueryResultCache;
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.node.Node;
+import de.twiechert.flatfat.resolver.NodeByTimestampResolver;
+import org.javatuples.Pair;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives keyed sliding windows backed by one {@link FlatFatTree} per key with a generated or replayed event stream
+ * and reports the sustained throughput, the latency percentiles per operation, the GC pauses and the memory over time.
+ * <p>
+ * Events are aggregated into the open slice of their key, which is added to the tree once an event of a later slice
+ * arrives. Late events are upserted into their slice in the tree, or added as a slice of their own if their slice
+ * holds no events so far. The watermark trails the most recent event time by the allowed lateness, events behind it
+ * are dropped. Once the watermark passes the end of a window, the window is queried for every key and slices no
+ * longer covered by any window are evicted.
+ * <p>
+ * The latency of an event is measured from the time it was due to be sent at the configured rate, hence falling
+ * behind the rate shows in the latencies instead of being hidden by a slower sender.
+ * <pre>
+ * java -cp target/classes:&lt;dependencies&gt; de.twiechert.flatfat.loadtest.LoadTest --rate=200000 --keys=1000 \
+ *     --windows=60000/1000,3600000/60000 --lateness=EXPONENTIAL --late-fraction=0.1 --engine=FIBA
+ * </pre>
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class LoadTest {
+
+	/**
+	 * The operations whose latencies are recorded
+	 */
+	public enum Operation {
+		/**
+		 * Processing an event, including the slice additions, upserts, queries and evictions it triggers
+		 */
+		INGEST,
+		/**
+		 * Adding a closed slice to the tree of its key
+		 */
+		SLICE_ADD,
+		/**
+		 * Adding a late event to its slice in the tree
+		 */
+		LATE_UPSERT,
+		/**
+		 * Aggregating a window of a key
+		 */
+		QUERY,
+		/**
+		 * Removing the slices of a key no window covers anymore
+		 */
+		EVICT
+	}
+
+	/**
+	 * Events due within are sent right away, as parking for shorter overshoots the due time
+	 */
+	private static final long PARK_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private final LoadTestConfig config;
+
+	private final StateFactory<Long, Object> stateFactory;
+
+	private final PrintStream out;
+
+	private final Map<Long, KeyedWindows> windowsByKey = new HashMap<>();
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+
+	/**
+	 * The GC pauses in milliseconds, recorded by the notification thread of the JVM
+	 */
+	private final LatencyHistogram gcPauses = new LatencyHistogram();
+
+	private final List<Pair<NotificationEmitter, NotificationListener>> gcListeners = new ArrayList<>();
+
+	private final long[] nextWindowEnds;
+
+	private long maxEventTime = Long.MIN_VALUE;
+
+	private long runStart;
+
+	private long lateEvents = 0;
+
+	private long droppedEvents = 0;
+
+	private long windowResults = 0;
+
+	/**
+	 * Consumes the window results, so they are not optimized away
+	 */
+	private long resultChecksum = 0;
+
+	private long peakHeapBytes = 0;
+
+	private long peakTreeBytes = 0;
+
+	@SuppressWarnings("unchecked")
+	public LoadTest(LoadTestConfig config, PrintStream out) {
+		this.config = config;
+		this.out = out;
+		this.stateFactory = (StateFactory<Long, Object>) config.getAggregateType().createStateFactory();
+		this.nextWindowEnds = new long[config.getWindows().size()];
+		Arrays.fill(nextWindowEnds, Long.MIN_VALUE);
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadTestConfig config;
+		try {
+			config = LoadTestConfig.fromArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		}
+		new LoadTest(config, System.out).run();
+	}
+
+
+	/**
+	 * Runs the warmup and the measured phase, which ends after the configured duration, the configured number of
+	 * events or the end of the replayed file, whatever comes first
+	 *
+	 * @throws Exception in case the source cannot be read or a tree operation fails
+	 */
+	public void run() throws Exception {
+		out.println("# " + config);
+		this.registerGcListeners();
+		EventSource source = (config.getReplayFile() != null) ? new ReplayEventSource(config.getReplayFile()) : new SyntheticEventSource(config);
+		try {
+			this.drive(source);
+		} finally {
+			source.close();
+			this.unregisterGcListeners();
+		}
+	}
+
+
+	private void drive(EventSource source) throws Exception {
+		Event event = new Event();
+		long nanosPerEvent = TimeUnit.SECONDS.toNanos(1) / config.getRate();
+		this.runStart = System.nanoTime();
+		long warmupEnd = runStart + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+		long runEnd = warmupEnd + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+		long reportInterval = TimeUnit.SECONDS.toNanos(config.getReportIntervalSeconds());
+		long nextReport = runStart + reportInterval;
+
+		boolean warm = config.getWarmupSeconds() == 0;
+		long measuredStart = runStart;
+		long measuredEvents = 0;
+		long sent = 0;
+		Interval interval = new Interval(runStart, 0);
+
+		while (sent < config.getMaxEvents() && source.next(event)) {
+			long due = runStart + sent * nanosPerEvent;
+			long start = System.nanoTime();
+			if (config.isThrottle() && due - start > PARK_THRESHOLD_NANOS) {
+				LockSupport.parkNanos(due - start);
+				start = System.nanoTime();
+			}
+
+			this.process(event);
+			long end = System.nanoTime();
+			latencies[Operation.INGEST.ordinal()].record(end - (config.isThrottle() ? Math.min(due, start) : start));
+			sent++;
+
+			if (end >= nextReport) {
+				this.report(interval, end, sent, warm);
+				interval = new Interval(end, sent);
+				nextReport += reportInterval;
+			}
+			if (!warm && end >= warmupEnd) {
+				warm = true;
+				measuredStart = end;
+				measuredEvents = sent;
+				this.resetMeasurements();
+			}
+			if (end >= runEnd)
+				break;
+		}
+
+		long measuredNanos = System.nanoTime() - measuredStart;
+		// runs shorter than the report interval would otherwise report no memory at all
+		this.samplePeakMemory(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), this.treeBytes());
+		this.summarize(measuredNanos, sent - measuredEvents);
+	}
+
+
+	private void process(Event event) throws Exception {
+		long timestamp = event.getTimestamp();
+		maxEventTime = Math.max(maxEventTime, timestamp);
+		if (timestamp < this.watermark()) {
+			droppedEvents++;
+			return;
+		}
+
+		KeyedWindows keyed = windowsByKey.get(event.getKey());
+		if (keyed == null) {
+			keyed = new KeyedWindows(this.createTree());
+			windowsByKey.put(event.getKey(), keyed);
+		}
+
+		long sliceStart = Math.floorDiv(timestamp, config.getSliceLength()) * config.getSliceLength();
+		if (sliceStart > keyed.latestSliceStart) {
+			this.closeSlice(keyed);
+			keyed.open = new Node.InnerNode<>(stateFactory.getState(), sliceStart, sliceStart + config.getSliceLength());
+			keyed.open.setTmax(timestamp);
+			keyed.latestSliceStart = sliceStart;
+		}
+
+		if (keyed.open != null && sliceStart == keyed.open.getStart()) {
+			keyed.open.getValueState().add(event.getValue());
+			keyed.open.setTmax(Math.max(keyed.open.getTmax(), timestamp));
+			keyed.open.setCount(keyed.open.getCount() + 1);
+		} else {
+			this.addLate(keyed.tree, sliceStart, timestamp, event.getValue());
+		}
+
+		this.fireWindows();
+	}
+
+
+	private void addLate(FlatFatTree<Long, Object> tree, long sliceStart, long timestamp, long value) throws Exception {
+		lateEvents++;
+		long start = System.nanoTime();
+		if (!tree.addToSlice(timestamp, value)) {
+			// no event fell into the slice so far, it is not evicted yet as it is not behind the watermark
+			Node<Long, Object> slice = new Node.InnerNode<>(stateFactory.getState(), sliceStart, sliceStart + config.getSliceLength());
+			slice.getValueState().add(value);
+			slice.setTmax(timestamp);
+			slice.setCount(1);
+			tree.addPotentiallyOutOfOrder(slice, true);
+		}
+		latencies[Operation.LATE_UPSERT.ordinal()].record(System.nanoTime() - start);
+	}
+
+
+	private void closeSlice(KeyedWindows keyed) throws Exception {
+		if (keyed.open == null)
+			return;
+
+		long start = System.nanoTime();
+		keyed.tree.addPotentiallyOutOfOrder(keyed.open, true);
+		latencies[Operation.SLICE_ADD.ordinal()].record(System.nanoTime() - start);
+		keyed.open = null;
+	}
+
+
+	/**
+	 * Queries every window the watermark has passed for all keys and evicts the slices no window covers anymore
+	 */
+	private void fireWindows() throws Exception {
+		long watermark = this.watermark();
+		boolean fired = false;
+		for (int i = 0; i < nextWindowEnds.length; i++) {
+			long length = config.getWindows().get(i).getValue0();
+			long slide = config.getWindows().get(i).getValue1();
+			if (nextWindowEnds[i] == Long.MIN_VALUE)
+				nextWindowEnds[i] = (Math.floorDiv(maxEventTime, slide) + 1) * slide;
+
+			while (nextWindowEnds[i] <= watermark) {
+				this.fireWindow(nextWindowEnds[i] - length, nextWindowEnds[i]);
+				nextWindowEnds[i] += slide;
+				fired = true;
+			}
+		}
+
+		if (fired)
+			this.evict(watermark - config.getMaxWindowLength());
+	}
+
+
+	private void fireWindow(long windowStart, long windowEnd) throws Exception {
+		for (KeyedWindows keyed : windowsByKey.values()) {
+			if (keyed.open != null && keyed.open.getEnd() <= windowEnd)
+				this.closeSlice(keyed);
+
+			long start = System.nanoTime();
+			Node<Long, Object> result = keyed.tree.aggregateFromTo(windowStart, windowEnd);
+			latencies[Operation.QUERY.ordinal()].record(System.nanoTime() - start);
+			resultChecksum += result.getCount();
+			windowResults++;
+		}
+	}
+
+
+	/**
+	 * @param horizon slices ending at or before are evicted
+	 */
+	private void evict(long horizon) throws Exception {
+		NodeByTimestampResolver.Comparator comparator = new NodeByTimestampResolver.RemoveSlicesComparator();
+		for (KeyedWindows keyed : windowsByKey.values()) {
+			FlatFatTree<Long, Object> tree = keyed.tree;
+			if (tree.getCurrentLeafCount() == 0 || tree.getNode(0).getEnd() > horizon)
+				continue;
+
+			long start = System.nanoTime();
+			Integer position = tree.getNodePositionByTimestampAndComparator(horizon, comparator);
+			// the linear resolver finds the last slice starting before, which might still end after the horizon
+			if (position != null && position > -1 && tree.getNode(position).getEnd() > horizon)
+				position--;
+			if (position != null && position > -1)
+				tree.removeUpTo(position);
+			latencies[Operation.EVICT.ordinal()].record(System.nanoTime() - start);
+		}
+	}
+
+
+	private long watermark() {
+		return (maxEventTime == Long.MIN_VALUE) ? Long.MIN_VALUE : maxEventTime - config.getMaxLateness();
+	}
+
+
+	private FlatFatTree<Long, Object> createTree() throws Exception {
+		long retainedLength = config.getMaxWindowLength() + config.getMaxLateness() + 2 * config.getSliceLength();
+		FlatFatTree.Builder<Long, Object> builder = FlatFatTree.Builder.newBuilder(stateFactory)
+				.capacity(2)
+				.capacityPolicy(CapacityPolicy.newBuilder().expectedLeafs((int) Math.min(retainedLength / config.getSliceLength(), 1 << 20)).build())
+				.engine(config.getEngine())
+				.startEndNodeStrategy(config.getStartEndNodeStrategy())
+				.nodeByTimestampStrategy(config.getNodeByTimestampStrategy())
+				.fingers(config.isFingers());
+		if (config.getResultCacheSize() > 0)
+			builder.resultCache(config.getResultCacheSize(), QueryResultCache.EvictionPolicy.LRU);
+		return builder.build();
+	}
+
+
+	private void report(Interval interval, long now, long sent, boolean warm) {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long heapBytes = memory.getHeapMemoryUsage().getUsed();
+		long treeBytes = this.treeBytes();
+		if (warm)
+			this.samplePeakMemory(heapBytes, treeBytes);
+
+		double seconds = (now - interval.start) / 1e9;
+		out.printf("%s t=%.0fs events/s=%.0f ingest p99=%.1fus heap=%.1fMB trees=%.1fMB gc=%dms/%d%n",
+				warm ? "run   " : "warmup",
+				(now - runStart) / 1e9, (sent - interval.sent) / seconds,
+				latencies[Operation.INGEST.ordinal()].getValueAtQuantile(0.99) / 1e3,
+				heapBytes / 1048576d, treeBytes / 1048576d,
+				totalGcMillis() - interval.gcMillis, totalGcCount() - interval.gcCount);
+	}
+
+
+	private long treeBytes() {
+		long treeBytes = 0;
+		for (KeyedWindows keyed : windowsByKey.values()) {
+			treeBytes += keyed.tree.estimatedSizeInBytes();
+		}
+		return treeBytes;
+	}
+
+
+	private void samplePeakMemory(long heapBytes, long treeBytes) {
+		peakHeapBytes = Math.max(peakHeapBytes, heapBytes);
+		peakTreeBytes = Math.max(peakTreeBytes, treeBytes);
+	}
+
+
+	private void summarize(long measuredNanos, long measuredEvents) {
+		double seconds = measuredNanos / 1e9;
+		out.printf("# measured %.1fs: events=%d throughput=%.0f/s late=%d dropped=%d window-results=%d checksum=%d%n",
+				seconds, measuredEvents, measuredEvents / seconds, lateEvents, droppedEvents, windowResults, resultChecksum);
+		out.printf("# %-12s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "mean(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+		for (Operation operation : Operation.values()) {
+			LatencyHistogram histogram = latencies[operation.ordinal()];
+			out.printf("# %-12s %10d %10.2f %10.2f %10.2f %10.2f %10.2f%n", operation, histogram.getTotalCount(),
+					histogram.getMean() / 1e3, histogram.getValueAtQuantile(0.5) / 1e3, histogram.getValueAtQuantile(0.99) / 1e3,
+					histogram.getValueAtQuantile(0.999) / 1e3, histogram.getMax() / 1e3);
+		}
+		synchronized (gcPauses) {
+			out.printf("# gc pauses: count=%d total=%.0fms p50=%dms p99=%dms max=%dms%n", gcPauses.getTotalCount(),
+					gcPauses.getMean() * gcPauses.getTotalCount(), gcPauses.getValueAtQuantile(0.5),
+					gcPauses.getValueAtQuantile(0.99), gcPauses.getMax());
+		}
+		out.printf("# memory: peak heap=%.1fMB peak trees=%.1fMB keys=%d%n", peakHeapBytes / 1048576d, peakTreeBytes / 1048576d,
+				windowsByKey.size());
+	}
+
+
+	private void resetMeasurements() {
+		for (LatencyHistogram histogram : latencies) {
+			histogram.reset();
+		}
+		synchronized (gcPauses) {
+			gcPauses.reset();
+		}
+		lateEvents = 0;
+		droppedEvents = 0;
+		windowResults = 0;
+	}
+
+
+	private void registerGcListeners() {
+		NotificationListener listener = new NotificationListener() {
+			@Override
+			public void handleNotification(Notification notification, Object handback) {
+				if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+					return;
+
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+				synchronized (gcPauses) {
+					gcPauses.record(info.getGcInfo().getDuration());
+				}
+			}
+		};
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (collector instanceof NotificationEmitter) {
+				((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+				gcListeners.add(new Pair<>((NotificationEmitter) collector, listener));
+			}
+		}
+	}
+
+
+	private void unregisterGcListeners() throws Exception {
+		for (Pair<NotificationEmitter, NotificationListener> gcListener : gcListeners) {
+			gcListener.getValue0().removeNotificationListener(gcListener.getValue1());
+		}
+		gcListeners.clear();
+	}
+
+
+	private static long totalGcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(collector.getCollectionTime(), 0);
+		}
+		return millis;
+	}
+
+
+	private static long totalGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(collector.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+
+	/**
+	 * The counters at the start of a report interval
+	 */
+	private static class Interval {
+
+		private final long start;
+
+		private final long sent;
+
+		private final long gcMillis = totalGcMillis();
+
+		private final long gcCount = totalGcCount();
+
+		private Interval(long start, long sent) {
+			this.start = start;
+			this.sent = sent;
+		}
+	}
+
+
+	/**
+	 * The tree and the open slice of a key
+	 */
+	private static class KeyedWindows {
+
+		private final FlatFatTree<Long, Object> tree;
+
+		/**
+		 * The slice of the most recent events, which is added to the tree once a later slice opens or a window
+		 * covering it fires
+		 */
+		private Node<Long, Object> open;
+
+		private long latestSliceStart = Long.MIN_VALUE;
+
+		private KeyedWindows(FlatFatTree<Long, Object> tree) {
+			this.tree = tree;
+		}
+	}
+}
@@ -0,0 +1,570 @@
+package de.twiechert.flatfat.loadtest;
+
+import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.composite.CompositeStateFactory;
+import de.twiechert.flatfat.composite.ValueExtractor;
+import de.twiechert.flatfat.sketch.CountMinState;
+import de.twiechert.flatfat.sketch.HyperLogLogState;
+import de.twiechert.flatfat.sketch.QuantileSketchState;
+import org.javatuples.Pair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The configuration of a {@link LoadTest}. All times are in milliseconds of event time, except for the duration, the
+ * warmup and the report interval, which are in seconds of wall clock time.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class LoadTestConfig {
+
+	private static final ValueExtractor<Long> VALUE = new ValueExtractor<Long>() {
+		@Override
+		public double extract(Long value) {
+			return value;
+		}
+	};
+
+	/**
+	 * The aggregates the windows compute over the event values
+	 */
+	public enum AggregateType {
+		SUM {
+			@Override
+			StateFactory<Long, ?> createStateFactory() {
+				return CompositeStateFactory.Builder.<Long>newBuilder().sum(VALUE).build();
+			}
+		},
+		MAX {
+			@Override
+			StateFactory<Long, ?> createStateFactory() {
+				return CompositeStateFactory.Builder.<Long>newBuilder().max(VALUE).build();
+			}
+		},
+		DISTINCT {
+			@Override
+			StateFactory<Long, ?> createStateFactory() {
+				return new HyperLogLogState.Factory<>(12);
+			}
+		},
+		QUANTILE {
+			@Override
+			StateFactory<Long, ?> createStateFactory() {
+				return new QuantileSketchState.Factory<>(VALUE, 0.99, 0.01, 1, 1e12);
+			}
+		},
+		HEAVY_HITTERS {
+			@Override
+			StateFactory<Long, ?> createStateFactory() {
+				return new CountMinState.Factory<>(4, 1024, 16);
+			}
+		};
+
+		abstract StateFactory<Long, ?> createStateFactory();
+	}
+
+	/**
+	 * The distribution of the delay of late events behind the most recent event time
+	 */
+	public enum LatenessDistribution {
+		NONE {
+			@Override
+			long sample(Random random, long maxLateness) {
+				return 0;
+			}
+		},
+		UNIFORM {
+			@Override
+			long sample(Random random, long maxLateness) {
+				return (long) (random.nextDouble() * maxLateness);
+			}
+		},
+		/**
+		 * Most events are slightly late and few are close to the maximum lateness, with a mean of a quarter of it
+		 */
+		EXPONENTIAL {
+			@Override
+			long sample(Random random, long maxLateness) {
+				return Math.min(maxLateness, (long) (-Math.log(1 - random.nextDouble()) * maxLateness / 4));
+			}
+		};
+
+		abstract long sample(Random random, long maxLateness);
+	}
+
+	private final long rate;
+	private final boolean throttle;
+	private final int keys;
+	private final long valueRange;
+	private final long sliceLength;
+	private final List<Pair<Long, Long>> windows;
+	private final LatenessDistribution latenessDistribution;
+	private final double lateFraction;
+	private final long maxLateness;
+	private final AggregateType aggregateType;
+	private final FlatFatTree.Builder.Engine engine;
+	private final FlatFatTree.Builder.StartEndNodeStrategy startEndNodeStrategy;
+	private final FlatFatTree.Builder.NodeByTimestampStrategy nodeByTimestampStrategy;
+	private final boolean fingers;
+	private final int resultCacheSize;
+	private final long durationSeconds;
+	private final long warmupSeconds;
+	private final long maxEvents;
+	private final long reportIntervalSeconds;
+	private final long seed;
+	private final String replayFile;
+
+	private LoadTestConfig(Builder builder) {
+		this.rate = builder.rate;
+		this.throttle = builder.throttle;
+		this.keys = builder.keys;
+		this.valueRange = builder.valueRange;
+		this.sliceLength = builder.sliceLength;
+		this.windows = Collections.unmodifiableList(new ArrayList<>(builder.windows));
+		this.latenessDistribution = builder.latenessDistribution;
+		this.lateFraction = builder.lateFraction;
+		this.maxLateness = builder.maxLateness;
+		this.aggregateType = builder.aggregateType;
+		this.engine = builder.engine;
+		this.startEndNodeStrategy = builder.startEndNodeStrategy;
+		this.nodeByTimestampStrategy = builder.nodeByTimestampStrategy;
+		this.fingers = builder.fingers;
+		this.resultCacheSize = builder.resultCacheSize;
+		this.durationSeconds = builder.durationSeconds;
+		this.warmupSeconds = builder.warmupSeconds;
+		this.maxEvents = builder.maxEvents;
+		this.reportIntervalSeconds = builder.reportIntervalSeconds;
+		this.seed = builder.seed;
+		this.replayFile = builder.replayFile;
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/**
+	 * Parses arguments of the form <code>--name=value</code>, see {@link #usage()}
+	 *
+	 * @param args the command line arguments
+	 * @return the configuration
+	 * @throws IllegalArgumentException in case an argument is unknown or malformed
+	 */
+	public static LoadTestConfig fromArgs(String[] args) {
+		Builder builder = new Builder();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (!arg.startsWith("--"))
+				throw new IllegalArgumentException("Malformed argument " + arg);
+
+			String name = arg.substring(2, (separator > -1) ? separator : arg.length());
+			String value = (separator > -1) ? arg.substring(separator + 1) : "true";
+			switch (name) {
+				case "rate":
+					builder.rate(Long.parseLong(value));
+					break;
+				case "throttle":
+					builder.throttle(Boolean.parseBoolean(value));
+					break;
+				case "keys":
+					builder.keys(Integer.parseInt(value));
+					break;
+				case "value-range":
+					builder.valueRange(Long.parseLong(value));
+					break;
+				case "slice":
+					builder.sliceLength(Long.parseLong(value));
+					break;
+				case "windows":
+					builder.windows.clear();
+					for (String window : value.split(",")) {
+						String[] lengthAndSlide = window.split("/");
+						if (lengthAndSlide.length != 2)
+							throw new IllegalArgumentException("Windows are given as length/slide, e.g. 60000/1000");
+						builder.window(Long.parseLong(lengthAndSlide[0]), Long.parseLong(lengthAndSlide[1]));
+					}
+					break;
+				case "lateness":
+					builder.latenessDistribution = LatenessDistribution.valueOf(value.toUpperCase());
+					break;
+				case "late-fraction":
+					builder.lateness(builder.latenessDistribution, Double.parseDouble(value), builder.maxLateness);
+					break;
+				case "max-lateness":
+					builder.lateness(builder.latenessDistribution, builder.lateFraction, Long.parseLong(value));
+					break;
+				case "aggregate":
+					builder.aggregateType(AggregateType.valueOf(value.toUpperCase()));
+					break;
+				case "engine":
+					builder.engine(FlatFatTree.Builder.Engine.valueOf(value.toUpperCase()));
+					break;
+				case "strategy":
+					builder.startEndNodeStrategy(FlatFatTree.Builder.StartEndNodeStrategy.valueOf(value.toUpperCase()));
+					break;
+				case "timestamp-strategy":
+					builder.nodeByTimestampStrategy(FlatFatTree.Builder.NodeByTimestampStrategy.valueOf(value.toUpperCase()));
+					break;
+				case "fingers":
+					builder.fingers(Boolean.parseBoolean(value));
+					break;
+				case "cache":
+					builder.resultCacheSize(Integer.parseInt(value));
+					break;
+				case "duration":
+					builder.durationSeconds(Long.parseLong(value));
+					break;
+				case "warmup":
+					builder.warmupSeconds(Long.parseLong(value));
+					break;
+				case "events":
+					builder.maxEvents(Long.parseLong(value));
+					break;
+				case "report-interval":
+					builder.reportIntervalSeconds(Long.parseLong(value));
+					break;
+				case "seed":
+					builder.seed(Long.parseLong(value));
+					break;
+				case "replay":
+					builder.replayFile(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown argument " + arg + "\n" + usage());
+			}
+		}
+		return builder.build();
+	}
+
+	public static String usage() {
+		return "Arguments, all optional:\n" +
+				"  --rate=<events per second>          the event rate, which also spaces the synthetic event times\n" +
+				"  --throttle=<true|false>             whether the rate is enforced on the wall clock or events are sent as fast as possible\n" +
+				"  --keys=<count>                      the number of keys, each of which has a tree of its own\n" +
+				"  --value-range=<count>               the number of distinct event values\n" +
+				"  --slice=<ms>                        the slice length\n" +
+				"  --windows=<ms>/<ms>,...             the length and the slide of each window\n" +
+				"  --lateness=<NONE|UNIFORM|EXPONENTIAL>\n" +
+				"  --late-fraction=<0..1>              the fraction of late events\n" +
+				"  --max-lateness=<ms>                 the allowed lateness, later events are dropped\n" +
+				"  --aggregate=<SUM|MAX|DISTINCT|QUANTILE|HEAVY_HITTERS>\n" +
+				"  --engine=<FLAT_FAT|FIBA>\n" +
+				"  --strategy=<LINEARSCAN_FORWARD|LINEARSCAN_BACKWARD|BINARY_SEARCH|ADAPTIVE>\n" +
+				"  --timestamp-strategy=<LINEARSCAN_BACKWARD|BINARY_SEARCH|ADAPTIVE>\n" +
+				"  --fingers=<true|false>              finger aggregates, FLAT_FAT only\n" +
+				"  --cache=<entries>                   the size of the result cache, 0 disables it\n" +
+				"  --duration=<s>                      the wall clock time to run for\n" +
+				"  --warmup=<s>                        the wall clock time before the latencies are recorded\n" +
+				"  --events=<count>                    the number of events to send at most\n" +
+				"  --report-interval=<s>\n" +
+				"  --seed=<seed>\n" +
+				"  --replay=<file>                     replays the events of a file with lines timestamp,key,value";
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	public boolean isThrottle() {
+		return throttle;
+	}
+
+	public int getKeys() {
+		return keys;
+	}
+
+	public long getValueRange() {
+		return valueRange;
+	}
+
+	public long getSliceLength() {
+		return sliceLength;
+	}
+
+	/**
+	 * @return the length and the slide of each window
+	 */
+	public List<Pair<Long, Long>> getWindows() {
+		return windows;
+	}
+
+	/**
+	 * @return the length of the longest window
+	 */
+	public long getMaxWindowLength() {
+		long max = 0;
+		for (Pair<Long, Long> window : windows) {
+			max = Math.max(max, window.getValue0());
+		}
+		return max;
+	}
+
+	public LatenessDistribution getLatenessDistribution() {
+		return latenessDistribution;
+	}
+
+	public double getLateFraction() {
+		return lateFraction;
+	}
+
+	public long getMaxLateness() {
+		return maxLateness;
+	}
+
+	public AggregateType getAggregateType() {
+		return aggregateType;
+	}
+
+	public FlatFatTree.Builder.Engine getEngine() {
+		return engine;
+	}
+
+	public FlatFatTree.Builder.StartEndNodeStrategy getStartEndNodeStrategy() {
+		return startEndNodeStrategy;
+	}
+
+	public FlatFatTree.Builder.NodeByTimestampStrategy getNodeByTimestampStrategy() {
+		return nodeByTimestampStrategy;
+	}
+
+	public boolean isFingers() {
+		return fingers;
+	}
+
+	public int getResultCacheSize() {
+		return resultCacheSize;
+	}
+
+	public long getDurationSeconds() {
+		return durationSeconds;
+	}
+
+	public long getWarmupSeconds() {
+		return warmupSeconds;
+	}
+
+	public long getMaxEvents() {
+		return maxEvents;
+	}
+
+	public long getReportIntervalSeconds() {
+		return reportIntervalSeconds;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * @return the file to replay or null if events are generated
+	 */
+	public String getReplayFile() {
+		return replayFile;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder description = new StringBuilder();
+		description.append("source=").append((replayFile != null) ? "replay " + replayFile : "synthetic")
+				.append(" rate=").append(rate).append(throttle ? "/s" : "/s unthrottled")
+				.append(" keys=").append(keys)
+				.append(" slice=").append(sliceLength).append("ms windows=");
+		for (int i = 0; i < windows.size(); i++) {
+			description.append((i > 0) ? "," : "").append(windows.get(i).getValue0()).append('/').append(windows.get(i).getValue1());
+		}
+		return description.append(" lateness=").append(latenessDistribution)
+				.append(" late-fraction=").append(lateFraction)
+				.append(" max-lateness=").append(maxLateness).append("ms")
+				.append(" aggregate=").append(aggregateType)
+				.append(" engine=").append(engine)
+				.append(" strategy=").append(startEndNodeStrategy)
+				.append(" timestamp-strategy=").append(nodeByTimestampStrategy)
+				.append(" fingers=").append(fingers)
+				.append(" cache=").append(resultCacheSize).toString();
+	}
+
+
+	public static class Builder {
+
+		private long rate = 100000;
+		private boolean throttle = true;
+		private int keys = 100;
+		private long valueRange = 1000000;
+		private long sliceLength = 1000;
+		private final List<Pair<Long, Long>> windows = new ArrayList<>();
+		private LatenessDistribution latenessDistribution = LatenessDistribution.EXPONENTIAL;
+		private double lateFraction = 0.05;
+		private long maxLateness = 5000;
+		private AggregateType aggregateType = AggregateType.SUM;
+		private FlatFatTree.Builder.Engine engine = FlatFatTree.Builder.Engine.FLAT_FAT;
+		private FlatFatTree.Builder.StartEndNodeStrategy startEndNodeStrategy = FlatFatTree.Builder.StartEndNodeStrategy.BINARY_SEARCH;
+		private FlatFatTree.Builder.NodeByTimestampStrategy nodeByTimestampStrategy = FlatFatTree.Builder.NodeByTimestampStrategy.BINARY_SEARCH;
+		private boolean fingers = false;
+		private int resultCacheSize = 0;
+		private long durationSeconds = 60;
+		private long warmupSeconds = 10;
+		private long maxEvents = Long.MAX_VALUE;
+		private long reportIntervalSeconds = 1;
+		private long seed = 42;
+		private String replayFile;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param rate the events per second, which also spaces the event times of generated events
+		 * @return the builder
+		 */
+		public Builder rate(long rate) {
+			if (rate < 1)
+				throw new IllegalArgumentException("The rate has to be positive");
+			this.rate = rate;
+			return this;
+		}
+
+		/**
+		 * @param throttle whether the rate is enforced on the wall clock, otherwise events are sent as fast as possible
+		 * @return the builder
+		 */
+		public Builder throttle(boolean throttle) {
+			this.throttle = throttle;
+			return this;
+		}
+
+		public Builder keys(int keys) {
+			if (keys < 1)
+				throw new IllegalArgumentException("At least one key is required");
+			this.keys = keys;
+			return this;
+		}
+
+		public Builder valueRange(long valueRange) {
+			if (valueRange < 1)
+				throw new IllegalArgumentException("The value range has to be positive");
+			this.valueRange = valueRange;
+			return this;
+		}
+
+		public Builder sliceLength(long sliceLength) {
+			if (sliceLength < 1)
+				throw new IllegalArgumentException("The slice length has to be positive");
+			this.sliceLength = sliceLength;
+			return this;
+		}
+
+		/**
+		 * Adds a sliding window, a tumbling window has a slide equal to its length
+		 *
+		 * @param length the length of the window
+		 * @param slide  the slide of the window
+		 * @return the builder
+		 */
+		public Builder window(long length, long slide) {
+			if (length < 1 || slide < 1)
+				throw new IllegalArgumentException("The window length and slide have to be positive");
+			this.windows.add(new Pair<>(length, slide));
+			return this;
+		}
+
+		/**
+		 * @param distribution the distribution of the delay of late events
+		 * @param lateFraction the fraction of late events
+		 * @param maxLateness  the allowed lateness, events delayed further are dropped
+		 * @return the builder
+		 */
+		public Builder lateness(LatenessDistribution distribution, double lateFraction, long maxLateness) {
+			if (lateFraction < 0 || lateFraction > 1 || maxLateness < 0)
+				throw new IllegalArgumentException("The late fraction has to be in [0, 1] and the lateness must not be negative");
+			this.latenessDistribution = distribution;
+			this.lateFraction = lateFraction;
+			this.maxLateness = maxLateness;
+			return this;
+		}
+
+		public Builder aggregateType(AggregateType aggregateType) {
+			this.aggregateType = aggregateType;
+			return this;
+		}
+
+		public Builder engine(FlatFatTree.Builder.Engine engine) {
+			this.engine = engine;
+			return this;
+		}
+
+		public Builder startEndNodeStrategy(FlatFatTree.Builder.StartEndNodeStrategy startEndNodeStrategy) {
+			if (startEndNodeStrategy == FlatFatTree.Builder.StartEndNodeStrategy.BTREE)
+				throw new IllegalArgumentException("The trees do not implement the " + startEndNodeStrategy + " strategy");
+			this.startEndNodeStrategy = startEndNodeStrategy;
+			return this;
+		}
+
+		public Builder nodeByTimestampStrategy(FlatFatTree.Builder.NodeByTimestampStrategy nodeByTimestampStrategy) {
+			this.nodeByTimestampStrategy = nodeByTimestampStrategy;
+			return this;
+		}
+
+		public Builder fingers(boolean fingers) {
+			this.fingers = fingers;
+			return this;
+		}
+
+		public Builder resultCacheSize(int resultCacheSize) {
+			if (resultCacheSize < 0)
+				throw new IllegalArgumentException("The cache size must not be negative");
+			this.resultCacheSize = resultCacheSize;
+			return this;
+		}
+
+		public Builder durationSeconds(long durationSeconds) {
+			this.durationSeconds = durationSeconds;
+			return this;
+		}
+
+		public Builder warmupSeconds(long warmupSeconds) {
+			this.warmupSeconds = warmupSeconds;
+			return this;
+		}
+
+		public Builder maxEvents(long maxEvents) {
+			this.maxEvents = maxEvents;
+			return this;
+		}
+
+		public Builder reportIntervalSeconds(long reportIntervalSeconds) {
+			if (reportIntervalSeconds < 1)
+				throw new IllegalArgumentException("The report interval has to be positive");
+			this.reportIntervalSeconds = reportIntervalSeconds;
+			return this;
+		}
+
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/**
+		 * @param replayFile a file of lines <code>timestamp,key,value</code> ordered by arrival, which is replayed
+		 *                   instead of generating events
+		 * @return the builder
+		 */
+		public Builder replayFile(String replayFile) {
+			this.replayFile = replayFile;
+			return this;
+		}
+
+		public LoadTestConfig build() {
+			if (windows.isEmpty())
+				windows.add(new Pair<>(60000L, 1000L));
+			for (Pair<Long, Long> window : windows) {
+				if (window.getValue0() % sliceLength != 0 || window.getValue1() % sliceLength != 0)
+					throw new IllegalArgumentException("Window lengths and slides have to be multiples of the slice length");
+			}
+			if (fingers && engine == FlatFatTree.Builder.Engine.FIBA)
+				throw new IllegalArgumentException("Finger aggregates require the " + FlatFatTree.Builder.Engine.FLAT_FAT + " engine");
+			return new LoadTestConfig(this);
+		}
+	}
+}
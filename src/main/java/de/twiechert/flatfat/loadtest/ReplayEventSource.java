@@ -0,0 +1,57 @@
+package de.twiechert.flatfat.loadtest;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Replays recorded events from a file of lines <code>timestamp,key,value</code> in the order of the file, i.e. their
+ * arrival order. Keys which are not numeric are mapped by their hash code, empty lines and lines starting with
+ * <code>#</code> are skipped.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class ReplayEventSource implements EventSource {
+
+	private final BufferedReader reader;
+
+	private long lineNumber = 0;
+
+	public ReplayEventSource(String file) throws IOException {
+		this.reader = new BufferedReader(new FileReader(file));
+	}
+
+	@Override
+	public boolean next(Event event) throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			String[] fields = line.split(",");
+			if (fields.length != 3)
+				throw new IllegalArgumentException("Line " + lineNumber + " is not of the form timestamp,key,value");
+
+			event.timestamp = Long.parseLong(fields[0].trim());
+			event.key = parseKey(fields[1].trim());
+			event.value = Long.parseLong(fields[2].trim());
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private static long parseKey(String key) {
+		try {
+			return Long.parseLong(key);
+		} catch (NumberFormatException e) {
+			return key.hashCode();
+		}
+	}
+}
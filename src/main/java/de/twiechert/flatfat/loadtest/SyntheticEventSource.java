@@ -0,0 +1,39 @@
+package de.twiechert.flatfat.loadtest;
+
+import java.util.Random;
+
+/**
+ * Generates events with uniformly distributed keys and values. The event times advance by the configured rate, late
+ * events are delayed behind the most recent event time according to the lateness distribution.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class SyntheticEventSource implements EventSource {
+
+	private final LoadTestConfig config;
+
+	private final Random random;
+
+	private long sequence = 0;
+
+	public SyntheticEventSource(LoadTestConfig config) {
+		this.config = config;
+		this.random = new Random(config.getSeed());
+	}
+
+	@Override
+	public boolean next(Event event) {
+		long eventTime = sequence++ * 1000 / config.getRate();
+		if (config.getMaxLateness() > 0 && random.nextDouble() < config.getLateFraction())
+			eventTime -= 1 + config.getLatenessDistribution().sample(random, config.getMaxLateness() - 1);
+
+		event.timestamp = eventTime;
+		event.key = random.nextInt(config.getKeys());
+		event.value = (long) (random.nextDouble() * config.getValueRange());
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,37 @@
+package de.twiechert.flatfat.node;
+
+/**
+ * A reusable cursor over the leafs of a tree, which, unlike the slice iterators, does not allocate per step. A cursor
+ * is positioned by {@link #seek(int, boolean)} and moved onto the first leaf by the first call to {@link #next()}.
+ * It must not be used across modifications of the tree without seeking anew.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface LeafCursor<IN, ACC> {
+
+	/**
+	 * @param position the position of the first leaf to visit
+	 * @param forwards whether to move towards newer leafs
+	 */
+	void seek(int position, boolean forwards);
+
+	/**
+	 * @return whether the cursor moved onto a leaf, false if there are no more leafs in its direction
+	 */
+	boolean next();
+
+	int getPosition();
+
+	/**
+	 * @return the technical index of the leaf, which is the position for trees without a heap index
+	 */
+	int getIndex();
+
+	Node<IN, ACC> getNode();
+
+	long getStart();
+
+	long getEnd();
+
+	long getTmax();
+}
@@ -0,0 +1,17 @@
+package de.twiechert.flatfat.node;
+
+/**
+ * Visits the leafs of a range in position order, see {@link de.twiechert.flatfat.FlatFatTree#forEachLeaf}
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface LeafVisitor<IN, ACC> {
+
+	/**
+	 * @param position the position of the leaf
+	 * @param leaf     the leaf, which must not be modified
+	 * @return whether to continue with the next leaf
+	 * @throws Exception in case the visitor fails, which stops the traversal
+	 */
+	boolean visit(int position, Node<IN, ACC> leaf) throws Exception;
+}
@@ -3,6 +3,9 @@ package de.twiechert.flatfat.node;
 import de.twiechert.flatfat.Mergeable;
 import de.twiechert.flatfat.StateFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
@@ -25,6 +28,13 @@ public interface Node<IN, OUT> {
 
 	void setTmax(long tmax);
 
+	/**
+	 * @return the number of events aggregated in this node, for inner nodes the number of events in its subtree
+	 */
+	long getCount();
+
+	void setCount(long count);
+
 	class InnerNode<IN, OUT> implements Node<IN, OUT> {
 
 		private  Mergeable<IN, OUT> Mergeable;
@@ -32,6 +42,7 @@ public interface Node<IN, OUT> {
 		private long start = -1l;
 		private long end = 0l;
 		private long tmax = 0l;
+		private long count = 0l;
 		private boolean identity = false;
 
 
@@ -50,6 +61,8 @@ public interface Node<IN, OUT> {
 						 StateFactory<IN, OUT> partialStateFactory) {
 			this.start = node.getStart();
 			this.end = node.getEnd();
+			this.tmax = node.getTmax();
+			this.count = node.getCount();
 			try {
 				Mergeable = partialStateFactory.getState().merge(node.getValueState());
 
@@ -107,6 +120,23 @@ public interface Node<IN, OUT> {
 			return tmax;
 		}
 
+		@Override
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public void setCount(long count) {
+			this.count = count;
+		}
+
+		/**
+		 * @return whether the node is a neutral placeholder, e.g. for a vacant leaf slot
+		 */
+		public boolean isIdentity() {
+			return identity;
+		}
+
 
 		@Override
 		public boolean equals(Object o) {
@@ -140,4 +170,36 @@ public interface Node<IN, OUT> {
 			return result;
 		}
 	}
+
+	/**
+	 * A slice that additionally keeps its raw events (the raw event tail). Count-based windows use it to aggregate
+	 * exactly the covered events of a slice at the window boundary.
+	 */
+	class RawEventNode<IN, OUT> extends InnerNode<IN, OUT> {
+
+		private final List<IN> events = new ArrayList<>();
+
+		public RawEventNode(Mergeable<IN, OUT> Mergeable, long start, long end) {
+			super(Mergeable, start, end);
+		}
+
+		/**
+		 * Adds the event to the state of the slice and to its raw event tail
+		 *
+		 * @param value the event
+		 * @throws Exception
+		 */
+		public void addEvent(IN value) throws Exception {
+			this.getValueState().add(value);
+			this.events.add(value);
+			this.setCount(this.getCount() + 1);
+		}
+
+		/**
+		 * @return the raw events in arrival order
+		 */
+		public List<IN> getEvents() {
+			return events;
+		}
+	}
 }
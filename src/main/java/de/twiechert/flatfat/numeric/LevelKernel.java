@@ -0,0 +1,29 @@
+package de.twiechert.flatfat.numeric;
+
+/**
+ * Recomputes a contiguous range of parents on one level of an implicit binary heap, i.e.
+ * <code>heap[p] = op(heap[2p + 1], heap[2p + 2])</code> for all parents p of the range.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface LevelKernel {
+
+	/**
+	 * @param heap        the heap
+	 * @param firstParent the first parent to recompute
+	 * @param lastParent  the last parent to recompute (inclusive)
+	 * @param operator    the operator combining both children
+	 */
+	void combineLevel(double[] heap, int firstParent, int lastParent, NumericOperator operator);
+
+
+	class ScalarLevelKernel implements LevelKernel {
+
+		@Override
+		public void combineLevel(double[] heap, int firstParent, int lastParent, NumericOperator operator) {
+			for (int p = firstParent; p <= lastParent; p++) {
+				heap[p] = operator.apply(heap[2 * p + 1], heap[2 * p + 2]);
+			}
+		}
+	}
+}
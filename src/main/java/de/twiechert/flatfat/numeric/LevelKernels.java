@@ -0,0 +1,17 @@
+package de.twiechert.flatfat.numeric;
+
+/**
+ * Selects the level kernel of the running JVM. This is the fallback for JVMs older than 17, the multi-release
+ * variant of this class picks a vectorized kernel if the Vector API is available.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public final class LevelKernels {
+
+	private LevelKernels() {
+	}
+
+	public static LevelKernel get() {
+		return new LevelKernel.ScalarLevelKernel();
+	}
+}
@@ -0,0 +1,366 @@
+package de.twiechert.flatfat.numeric;
+
+import java.util.Arrays;
+
+/**
+ * A FlatFat tree specialised for numeric aggregates. Values are kept unboxed in a single array, such that whole
+ * levels of the heap can be recomputed by a (possibly vectorized) {@link LevelKernel}. Batched inserts, bulk loads,
+ * evictions and resizes therefore recompute each level once instead of walking the path of every leaf.
+ * <p>
+ * The heap is binary by default. With a higher arity, the children of a node are <code>arity</code> consecutive
+ * values, i.e. 8 children fill a 64 byte cache line. An update or a query then touches log_arity(n) levels, each
+ * costing a single cache miss, at the price of combining all children of a node. Large trees, whose upper levels do
+ * not stay in the cache, benefit most.
+ * <p>
+ * Like the {@link de.twiechert.flatfat.NonShiftingFlatFatTree}, the leafs form a circular buffer, such that evicting
+ * the oldest leafs resets their slots and recomputes their ancestors only, instead of shifting all leafs. The root
+ * then combines the leafs in slot order rather than in position order, which the commutative operators allow.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class NumericFlatFatTree {
+
+	private final NumericOperator operator;
+
+	private final LevelKernel kernel;
+
+	/**
+	 * The number of children per inner node, a power of two
+	 */
+	private final int arity;
+
+	private final int arityBits;
+
+	private double[] heap;
+
+	/**
+	 * The number of inner nodes, which precede the leafs in the heap
+	 */
+	private int innerNodes;
+
+	/**
+	 * Corresponds to the max number of leafs, the tree can currently hold
+	 */
+	private int numLeafs;
+
+	/**
+	 * Corresponds to the current number of leafs
+	 */
+	private int leafCount = 0;
+
+	/**
+	 * The slot of the leaf at position 0
+	 */
+	private int front = 0;
+
+	public NumericFlatFatTree(NumericOperator operator, int capacity) {
+		this(operator, capacity, LevelKernels.get());
+	}
+
+	public NumericFlatFatTree(NumericOperator operator, int capacity, LevelKernel kernel) {
+		this(operator, capacity, 2, kernel);
+	}
+
+	/**
+	 * @param arity the number of children per inner node, a power of two, the capacity is rounded up to a power of it
+	 */
+	public NumericFlatFatTree(NumericOperator operator, int capacity, int arity) {
+		this(operator, capacity, arity, LevelKernels.get());
+	}
+
+	/**
+	 * @param arity  the number of children per inner node, a power of two, the capacity is rounded up to a power of it
+	 * @param kernel the kernel recomputing the levels of a binary heap, heaps of a higher arity are recomputed scalar
+	 */
+	public NumericFlatFatTree(NumericOperator operator, int capacity, int arity, LevelKernel kernel) {
+		if (capacity < 1 || (capacity & -capacity) != capacity)
+			throw new IllegalArgumentException("Capacity should be a power of two");
+		if (arity < 2 || (arity & -arity) != arity)
+			throw new IllegalArgumentException("Arity should be a power of two");
+
+		this.operator = operator;
+		this.kernel = kernel;
+		this.arity = arity;
+		this.arityBits = Integer.numberOfTrailingZeros(arity);
+		this.numLeafs = this.powerOfArity(capacity);
+		this.innerNodes = this.innerNodesFor(numLeafs);
+		this.heap = new double[innerNodes + numLeafs];
+		Arrays.fill(heap, operator.identity());
+	}
+
+	/**
+	 * Appends a single value and repairs its path
+	 *
+	 * @param value the value of the new leaf
+	 */
+	public void add(double value) {
+		if (leafCount == numLeafs)
+			resize(arity * numLeafs);
+
+		int index = leafIndex(leafCount++);
+		heap[index] = value;
+		while (index > 0) {
+			index = parent(index);
+			heap[index] = this.combineChildren(index);
+		}
+	}
+
+	/**
+	 * Appends a batch of values, the affected parents are recomputed level by level
+	 *
+	 * @param values the values of the new leafs
+	 */
+	public void addAll(double[] values) {
+		this.addAll(values, 0, values.length);
+	}
+
+	public void addAll(double[] values, int offset, int length) {
+		if (length == 0)
+			return;
+
+		if (leafCount + length > numLeafs) {
+			int newCapacity = numLeafs;
+			while (newCapacity < leafCount + length) {
+				newCapacity *= arity;
+			}
+			resize(newCapacity);
+		}
+
+		int firstSlot = slot(leafCount);
+		int tailLength = Math.min(length, numLeafs - firstSlot);
+		System.arraycopy(values, offset, heap, innerNodes + firstSlot, tailLength);
+		System.arraycopy(values, offset + tailLength, heap, innerNodes, length - tailLength);
+		leafCount += length;
+		recomputeSlots(firstSlot, length);
+	}
+
+	/**
+	 * Replaces the content of the tree by the given values
+	 *
+	 * @param values the values of the leafs
+	 */
+	public void bulkLoad(double[] values) {
+		this.numLeafs = Math.max(this.powerOfArity(values.length), numLeafs);
+		this.innerNodes = this.innerNodesFor(numLeafs);
+		this.heap = new double[innerNodes + numLeafs];
+		Arrays.fill(heap, operator.identity());
+		this.front = 0;
+		System.arraycopy(values, 0, heap, leafIndex(0), values.length);
+		this.leafCount = values.length;
+		if (leafCount > 0)
+			recompute(leafIndex(0), leafIndex(leafCount - 1));
+	}
+
+	/**
+	 * @param position the position of the leaf
+	 * @param value    its new value
+	 */
+	public void set(int position, double value) {
+		checkPosition(position);
+		int first = leafIndex(position);
+		heap[first] = value;
+		recompute(first, first);
+	}
+
+	/**
+	 * Removes all leafs up to position <code>leafPosition</code>. Their slots are reset to the identity and only their
+	 * ancestors are recomputed, the remaining leafs stay in their slots.
+	 *
+	 * @param leafPosition the leaf position up to which to delete
+	 */
+	public void removeUpTo(int leafPosition) {
+		checkPosition(leafPosition);
+		int removed = leafPosition + 1;
+		int firstSlot = front;
+		int tailLength = Math.min(removed, numLeafs - firstSlot);
+		Arrays.fill(heap, innerNodes + firstSlot, innerNodes + firstSlot + tailLength, operator.identity());
+		Arrays.fill(heap, innerNodes, innerNodes + removed - tailLength, operator.identity());
+		this.front = slot(removed);
+		this.leafCount -= removed;
+		recomputeSlots(firstSlot, removed);
+	}
+
+	/**
+	 * @param startPosition the first leaf to aggregate
+	 * @param endPosition   the last leaf to aggregate (inclusive)
+	 * @return the aggregate of the leafs in between
+	 */
+	public double aggregateFromTo(int startPosition, int endPosition) {
+		checkPosition(startPosition);
+		checkPosition(endPosition);
+
+		int startSlot = slot(startPosition);
+		int endSlot = slot(endPosition);
+		if (startSlot <= endSlot)
+			return this.aggregateSlots(startSlot, endSlot);
+		// the range wraps around the end of the leaf slots
+		return operator.apply(this.aggregateSlots(startSlot, numLeafs - 1), this.aggregateSlots(0, endSlot));
+	}
+
+	/**
+	 * @param startSlot the first leaf slot to aggregate
+	 * @param endSlot   the last leaf slot to aggregate (inclusive), not before the first one
+	 * @return the aggregate of the leaf slots in between
+	 */
+	private double aggregateSlots(int startSlot, int endSlot) {
+		int nextS = innerNodes + startSlot;
+		int nextE = innerNodes + endSlot;
+		double aggS = operator.identity();
+		double aggE = operator.identity();
+
+		while (true) {
+			int parentS = parent(nextS);
+			int parentE = parent(nextE);
+			if (nextS == nextE || parentS == parentE) {
+				for (int i = nextS; i <= nextE; i++) {
+					aggS = operator.apply(aggS, heap[i]);
+				}
+				break;
+			}
+			/*
+			  A start that is not the first child (or an end that is not the last child) is only partially covered by
+			  its parent, so it is aggregated with its siblings towards the range and the boundary moves to the
+			  neighbouring parent.
+			 */
+			if (nextS != firstChild(parentS)) {
+				for (int i = nextS; i < firstChild(parentS) + arity; i++) {
+					aggS = operator.apply(aggS, heap[i]);
+				}
+				parentS++;
+			}
+			if (nextE != firstChild(parentE) + arity - 1) {
+				for (int i = nextE; i >= firstChild(parentE); i--) {
+					aggE = operator.apply(heap[i], aggE);
+				}
+				parentE--;
+			}
+
+			if (parentS > parentE)
+				break;
+
+			nextS = parentS;
+			nextE = parentE;
+		}
+		return operator.apply(aggS, aggE);
+	}
+
+	/**
+	 * @return the aggregate of all leafs
+	 */
+	public double aggregate() {
+		return heap[0];
+	}
+
+	public double get(int position) {
+		checkPosition(position);
+		return heap[leafIndex(position)];
+	}
+
+	public int getCurrentLeafCount() {
+		return leafCount;
+	}
+
+	public int currentCapacity() {
+		return numLeafs - leafCount;
+	}
+
+	/**
+	 * It reconstructs the heap with a new leaf space of size newCapacity
+	 *
+	 * @param newCapacity the new capacity of the buffer
+	 */
+	private void resize(int newCapacity) {
+		int newInnerNodes = this.innerNodesFor(newCapacity);
+		double[] newHeap = new double[newInnerNodes + newCapacity];
+		Arrays.fill(newHeap, operator.identity());
+		// the leafs are laid out from slot 0 again
+		int tailLength = Math.min(leafCount, numLeafs - front);
+		System.arraycopy(heap, innerNodes + front, newHeap, newInnerNodes, tailLength);
+		System.arraycopy(heap, innerNodes, newHeap, newInnerNodes + tailLength, leafCount - tailLength);
+		this.front = 0;
+		this.heap = newHeap;
+		this.numLeafs = newCapacity;
+		this.innerNodes = newInnerNodes;
+		if (leafCount > 0)
+			recompute(leafIndex(0), leafIndex(leafCount - 1));
+	}
+
+	/**
+	 * Recomputes all ancestors of the given number of leaf slots starting at the given slot, which may wrap around
+	 * the end of the leaf slots
+	 */
+	private void recomputeSlots(int firstSlot, int length) {
+		int tailLength = Math.min(length, numLeafs - firstSlot);
+		recompute(innerNodes + firstSlot, innerNodes + firstSlot + tailLength - 1);
+		if (tailLength < length)
+			recompute(innerNodes, innerNodes + length - tailLength - 1);
+	}
+
+	/**
+	 * Recomputes all ancestors of the given contiguous range of leafs, one level at a time
+	 */
+	private void recompute(int firstIndex, int lastIndex) {
+		while (firstIndex > 0) {
+			firstIndex = parent(firstIndex);
+			lastIndex = parent(lastIndex);
+			if (arity == 2) {
+				kernel.combineLevel(heap, firstIndex, lastIndex, operator);
+				continue;
+			}
+			for (int p = firstIndex; p <= lastIndex; p++) {
+				heap[p] = this.combineChildren(p);
+			}
+		}
+	}
+
+	private double combineChildren(int parent) {
+		int first = firstChild(parent);
+		double agg = heap[first];
+		for (int i = first + 1; i < first + arity; i++) {
+			agg = operator.apply(agg, heap[i]);
+		}
+		return agg;
+	}
+
+	private int parent(int index) {
+		return (index - 1) >> arityBits;
+	}
+
+	private int firstChild(int parent) {
+		return (parent << arityBits) + 1;
+	}
+
+	private int leafIndex(int position) {
+		return innerNodes + slot(position);
+	}
+
+	/**
+	 * The number of leafs is a power of two, so the slots wrap around by masking
+	 */
+	private int slot(int position) {
+		return (front + position) & (numLeafs - 1);
+	}
+
+	/**
+	 * @return the smallest power of the arity holding the given number of leafs
+	 */
+	private int powerOfArity(int leafs) {
+		int capacity = 1;
+		while (capacity < leafs) {
+			capacity *= arity;
+		}
+		return capacity;
+	}
+
+	/**
+	 * The inner nodes of a full heap number 1 + arity + arity^2 + ... up to the level above the leafs
+	 */
+	private int innerNodesFor(int leafs) {
+		return (leafs - 1) / (arity - 1);
+	}
+
+	private void checkPosition(int position) {
+		if (position < 0 || position >= leafCount)
+			throw new IndexOutOfBoundsException("No leaf at position " + position);
+	}
+}
@@ -0,0 +1,40 @@
+package de.twiechert.flatfat.numeric;
+
+/**
+ * The associative operators supported by the {@link NumericFlatFatTree}
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public enum NumericOperator {
+
+	SUM(0d) {
+		@Override
+		public double apply(double left, double right) {
+			return left + right;
+		}
+	},
+	MIN(Double.POSITIVE_INFINITY) {
+		@Override
+		public double apply(double left, double right) {
+			return Math.min(left, right);
+		}
+	},
+	MAX(Double.NEGATIVE_INFINITY) {
+		@Override
+		public double apply(double left, double right) {
+			return Math.max(left, right);
+		}
+	};
+
+	private final double identity;
+
+	NumericOperator(double identity) {
+		this.identity = identity;
+	}
+
+	public double identity() {
+		return identity;
+	}
+
+	public abstract double apply(double left, double right);
+}
@@ -0,0 +1,202 @@
+package de.twiechert.flatfat.resolver;
+
+import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.node.Node;
+import org.javatuples.Pair;
+
+/**
+ * Resolves timestamps to positions starting from the positions resolved by the previous query, which serve as
+ * fingers. Sliding queries move their bounds by a few slices only, so the resolver first scans linearly away from a
+ * finger and only gallops, i.e. probes at doubling distances before searching the bracketed range binary, if the
+ * position is further away. As galloping costs twice the probes of a binary search over the whole tree for far jumps,
+ * the resolver tracks how many of the recent queries were local and falls back to binary search if few were.
+ * Monotonically sliding queries thereby take an amortized constant number of probes.
+ * <p>
+ * The fingers are hints only: positions shift as slices are removed, which costs probes but never correctness.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class AdaptiveResolver<IN, ACC> implements NodeByTimestampResolver, StartAndStopSliceResolver {
+
+	/**
+	 * The number of slices scanned linearly from a finger before galloping
+	 */
+	private static final int LINEAR_PROBES = 4;
+
+	/**
+	 * The locality counter saturates at twice the threshold, such that a changed query pattern is detected after at
+	 * most as many queries as the threshold
+	 */
+	private static final int LOCALITY_THRESHOLD = 8;
+
+	private static final int START = 0;
+
+	private static final int END = 1;
+
+	private static final int TIMESTAMP = 2;
+
+	private final FlatFatTree<IN, ACC> flatFatTree;
+
+	/**
+	 * The positions resolved last per kind of search, -1 if there are none
+	 */
+	private final int[] fingers = {-1, -1, -1};
+
+	private int locality = 0;
+
+	private long probes = 0;
+
+	public AdaptiveResolver(FlatFatTree<IN, ACC> flatFatTree) {
+		this.flatFatTree = flatFatTree;
+	}
+
+
+	@Override
+	public Pair<Integer, Integer> getStartAndStopForAgg(long startTime, long endTime) {
+		int startPosition = this.getStartPosition(startTime);
+		int endPosition = this.getEndPosition(endTime);
+
+		if (startPosition <= endPosition)
+			return new Pair<>(startPosition, endPosition);
+		return new Pair<>(-1, -1);
+	}
+
+
+	/**
+	 * @return the position of the first slice starting at or after the start time, the leaf count if there is none
+	 */
+	public int getStartPosition(long startTime) {
+		return this.firstMatching(START, startTime, null);
+	}
+
+
+	/**
+	 * @return the position of the last slice whose tmax is before the end time, -1 if there is none
+	 */
+	public int getEndPosition(long endTime) {
+		// the slice before the first one reaching the end time is the last one within the range
+		return this.firstMatching(END, endTime, null) - 1;
+	}
+
+
+	@Override
+	public Integer getForTimestamp(long timestamp, NodeByTimestampResolver.Comparator comparator) {
+		// the comparator matches a prefix of the slices, so the last matching one precedes the first one not matching
+		return this.firstMatching(TIMESTAMP, timestamp, comparator) - 1;
+	}
+
+
+	/**
+	 * @return the number of slices visited, for the evaluation of query patterns
+	 */
+	public long getProbes() {
+		return probes;
+	}
+
+	public boolean isLocal() {
+		return locality >= LOCALITY_THRESHOLD;
+	}
+
+
+	/**
+	 * @return the first position whose slice matches, or the leaf count if none does. The slices matching form a
+	 * suffix of the tree.
+	 */
+	private int firstMatching(int kind, long time, NodeByTimestampResolver.Comparator comparator) {
+		int leafCount = flatFatTree.getCurrentLeafPosition() + 1;
+		int finger = fingers[kind];
+
+		int position;
+		if (finger < 0 || !this.isLocal()) {
+			position = this.binary(kind, time, comparator, 0, leafCount);
+		} else {
+			finger = Math.min(finger, leafCount);
+			position = this.matches(kind, time, comparator, finger)
+					? this.searchLeft(kind, time, comparator, finger)
+					: this.searchRight(kind, time, comparator, finger, leafCount);
+		}
+
+		if (finger > -1)
+			locality = (Math.abs(position - finger) <= LINEAR_PROBES) ? Math.min(locality + 1, 2 * LOCALITY_THRESHOLD)
+					: Math.max(locality - 1, 0);
+		fingers[kind] = position;
+		return position;
+	}
+
+
+	/**
+	 * @param matching a matching position
+	 */
+	private int searchLeft(int kind, long time, NodeByTimestampResolver.Comparator comparator, int matching) {
+		for (int i = 0; i < LINEAR_PROBES; i++) {
+			if (matching == 0 || !this.matches(kind, time, comparator, matching - 1))
+				return matching;
+			matching--;
+		}
+
+		for (int distance = 2 * LINEAR_PROBES; ; distance *= 2) {
+			int position = matching - distance;
+			if (position < 0)
+				return this.binary(kind, time, comparator, 0, matching);
+			if (!this.matches(kind, time, comparator, position))
+				return this.binary(kind, time, comparator, position + 1, matching);
+			matching = position;
+		}
+	}
+
+
+	/**
+	 * @param notMatching a position not matching
+	 */
+	private int searchRight(int kind, long time, NodeByTimestampResolver.Comparator comparator, int notMatching, int leafCount) {
+		for (int i = 0; i < LINEAR_PROBES; i++) {
+			if (this.matches(kind, time, comparator, notMatching + 1))
+				return notMatching + 1;
+			notMatching++;
+		}
+
+		for (int distance = 2 * LINEAR_PROBES; ; distance *= 2) {
+			int position = notMatching + distance;
+			if (position >= leafCount)
+				return this.binary(kind, time, comparator, notMatching + 1, leafCount);
+			if (this.matches(kind, time, comparator, position))
+				return this.binary(kind, time, comparator, notMatching + 1, position);
+			notMatching = position;
+		}
+	}
+
+
+	/**
+	 * @param from the first position that might match
+	 * @param to   a matching position or the leaf count
+	 */
+	private int binary(int kind, long time, NodeByTimestampResolver.Comparator comparator, int from, int to) {
+		while (from < to) {
+			int position = (from + to) >>> 1;
+			if (this.matches(kind, time, comparator, position))
+				to = position;
+			else from = position + 1;
+		}
+		return to;
+	}
+
+
+	/**
+	 * Positions beyond the last slice match, as the search for the first matching slice ends there
+	 */
+	private boolean matches(int kind, long time, NodeByTimestampResolver.Comparator comparator, int position) {
+		if (position > flatFatTree.getCurrentLeafPosition())
+			return true;
+
+		probes++;
+		Node<IN, ACC> node = flatFatTree.getNodeOrNull(position);
+		switch (kind) {
+			case START:
+				return node.getStart() >= time;
+			case END:
+				return node.getTmax() >= time;
+			default:
+				return comparator.compare(node, time) != 0;
+		}
+	}
+}
@@ -1,10 +1,8 @@
 package de.twiechert.flatfat.resolver;
 
 import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.node.LeafCursor;
 import de.twiechert.flatfat.node.Node;
-import de.twiechert.flatfat.node.NodeIndexPosition;
-
-import java.util.Iterator;
 
 /**
  * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
@@ -50,17 +48,19 @@ public interface NodeByTimestampResolver {
 			this.flatFatTree = flatFatTree;
 		}
 
+		/**
+		 * The cursor is created per call, such that concurrent queries do not share it
+		 */
 		@Override
 		public Integer getForTimestamp(long timestamp, NodeByTimestampResolver.Comparator comparator) {
-			Iterator<NodeIndexPosition> iterator = flatFatTree.getSliceBackwardsIterator();
-			NodeIndexPosition nodeIndexPosition;
+			LeafCursor<?, ?> cursor = flatFatTree.newLeafCursor();
+			cursor.seek(flatFatTree.getCurrentLeafPosition(), false);
 
 			//startTime <= currNode.getStart() && endTime > currNode.getTmax()
 
-			while (iterator.hasNext()) {
-				nodeIndexPosition = iterator.next();
-				if (nodeIndexPosition.getNode().getStart() <= timestamp)
-					return nodeIndexPosition.getPosition();
+			while (cursor.next()) {
+				if (cursor.getStart() <= timestamp)
+					return cursor.getPosition();
 			}
 			return null;
 		}
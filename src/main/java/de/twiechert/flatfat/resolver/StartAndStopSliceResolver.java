@@ -1,12 +1,10 @@
 package de.twiechert.flatfat.resolver;
 
 import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.node.LeafCursor;
 import de.twiechert.flatfat.node.Node;
-import de.twiechert.flatfat.node.NodeIndexPosition;
 import org.javatuples.Pair;
 
-import java.util.Iterator;
-
 /**
  * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
  */
@@ -24,27 +22,33 @@ public interface StartAndStopSliceResolver {
 
 		@Override
 		public Pair<Integer, Integer> getStartAndStopForAgg(long startTime, long endTime) {
-			return this.getStartAndStopForAgg(startTime, endTime, flatFatTree.getSliceForwardsIterator());
+			return this.getStartAndStopForAgg(startTime, endTime, true);
 		}
 
-		public Pair<Integer, Integer> getStartAndStopForAgg(long startTime, long endTime, Iterator<NodeIndexPosition<IN, ACC>> iterator) {
+		/**
+		 * The cursor is created per call, such that concurrent queries do not share it
+		 *
+		 * @param forwards whether to scan from the oldest leaf, otherwise the start and the end are swapped
+		 */
+		public Pair<Integer, Integer> getStartAndStopForAgg(long startTime, long endTime, boolean forwards) {
+			LeafCursor<IN, ACC> cursor = flatFatTree.newLeafCursor();
+			cursor.seek(forwards ? 0 : flatFatTree.getCurrentLeafPosition(), forwards);
+
 			int startPosition = -1;
 			int endPosition = -1;
-			NodeIndexPosition<IN, ACC> nodeIndexPosition;
 			boolean condition;
-			while (iterator.hasNext()) {
-				nodeIndexPosition = iterator.next();
-				condition = startTime <= nodeIndexPosition.getNode().getStart() && endTime > nodeIndexPosition.getNode().getTmax();
+			while (cursor.next()) {
+				condition = startTime <= cursor.getStart() && endTime > cursor.getTmax();
 
 				if (startPosition > -1 && endPosition > -1 && !condition) {
 					break;
 				}
 
 				if (startPosition == -1 && condition) {
-					startPosition = nodeIndexPosition.getPosition();
+					startPosition = cursor.getPosition();
 				}
 				if (startPosition > -1 && condition) {
-					endPosition = nodeIndexPosition.getPosition();
+					endPosition = cursor.getPosition();
 				}
 
 			}
@@ -70,7 +74,7 @@ public interface StartAndStopSliceResolver {
 		@Override
 		public Pair<Integer, Integer> getStartAndStopForAgg(long startTime, long endTime) {
 
-			Pair<Integer, Integer> tuple2 = forwardResolver.getStartAndStopForAgg(startTime, endTime, flatFatTree.getSliceBackwardsIterator());
+			Pair<Integer, Integer> tuple2 = forwardResolver.getStartAndStopForAgg(startTime, endTime, false);
 			return new Pair<>(tuple2.getValue1(), tuple2.getValue0());
 
 		}
@@ -0,0 +1,181 @@
+package de.twiechert.flatfat.rollup;
+
+import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.node.LeafCursor;
+import de.twiechert.flatfat.node.Node;
+import de.twiechert.flatfat.tiered.StateSerializer;
+import org.javatuples.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact binary format for shipping the slices of a tree, or the suffix of slices changed since a point in time,
+ * from a worker to the tree rolling up the partial window state of several workers.
+ * <p>
+ * A message starts with the format version, the time the suffix starts at and the number of slices. Each slice is
+ * encoded relative to its predecessor: the gap between the end of the predecessor and its start, the difference of
+ * its length to the one of the predecessor, its tmax relative to its start, its event count and its serialized state.
+ * All numbers are variable-length encoded and signed ones are zigzag encoded, so contiguous slices of equal length
+ * take a few bytes besides their state.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class TreeWireFormat<IN, ACC> {
+
+	private static final byte FORMAT_VERSION = 1;
+
+	private final StateSerializer<IN, ACC> serializer;
+
+	public TreeWireFormat(StateSerializer<IN, ACC> serializer) {
+		this.serializer = serializer;
+	}
+
+	/**
+	 * @param tree the tree to ship
+	 * @return all slices of the tree
+	 * @throws Exception in case a state cannot be serialized
+	 */
+	public byte[] encode(FlatFatTree<IN, ACC> tree) throws Exception {
+		return this.encodeSuffix(tree, Long.MIN_VALUE);
+	}
+
+	/**
+	 * @param tree     the tree to ship
+	 * @param fromTime the time from which on slices were changed since the last shipment
+	 * @return the slices of the tree starting at or after fromTime
+	 * @throws Exception in case a state cannot be serialized
+	 */
+	public byte[] encodeSuffix(FlatFatTree<IN, ACC> tree, long fromTime) throws Exception {
+		LeafCursor<IN, ACC> cursor = tree.newLeafCursor();
+		int firstPosition = tree.getCurrentLeafPosition() + 1;
+		if (tree.getCurrentLeafCount() > 0) {
+			cursor.seek(tree.getCurrentLeafPosition(), false);
+			while (cursor.next() && cursor.getStart() >= fromTime) {
+				firstPosition = cursor.getPosition();
+			}
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(FORMAT_VERSION);
+		writeSigned(out, fromTime);
+		writeUnsigned(out, tree.getCurrentLeafPosition() + 1 - firstPosition);
+
+		long previousEnd = 0;
+		long previousLength = 0;
+		cursor.seek(firstPosition, true);
+		while (firstPosition <= tree.getCurrentLeafPosition() && cursor.next()) {
+			Node<IN, ACC> slice = cursor.getNode();
+			long length = slice.getEnd() - slice.getStart();
+			writeSigned(out, slice.getStart() - previousEnd);
+			writeSigned(out, length - previousLength);
+			writeSigned(out, slice.getTmax() - slice.getStart());
+			writeUnsigned(out, slice.getCount());
+			byte[] state = serializer.serialize(slice.getValueState());
+			writeUnsigned(out, state.length);
+			out.write(state);
+			previousEnd = slice.getEnd();
+			previousLength = length;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param bytes a message created by this format
+	 * @return the time the shipped suffix starts at and its slices ordered by time
+	 * @throws IllegalArgumentException if the message has an unknown format version
+	 * @throws Exception                in case a state cannot be deserialized
+	 */
+	public Pair<Long, List<Node<IN, ACC>>> decode(byte[] bytes) throws Exception {
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		byte version = in.get();
+		if (version != FORMAT_VERSION)
+			throw new IllegalArgumentException("Unknown format version " + version);
+
+		long fromTime = readSigned(in);
+		int count = (int) readUnsigned(in);
+		List<Node<IN, ACC>> slices = new ArrayList<>(count);
+		long previousEnd = 0;
+		long previousLength = 0;
+		for (int i = 0; i < count; i++) {
+			long start = previousEnd + readSigned(in);
+			long length = previousLength + readSigned(in);
+			long tmax = start + readSigned(in);
+			long eventCount = readUnsigned(in);
+			byte[] state = new byte[(int) readUnsigned(in)];
+			in.get(state);
+
+			Node.InnerNode<IN, ACC> slice = new Node.InnerNode<>(serializer.deserialize(state), start, start + length);
+			slice.setTmax(tmax);
+			slice.setCount(eventCount);
+			slices.add(slice);
+			previousEnd = start + length;
+			previousLength = length;
+		}
+		return new Pair<>(fromTime, slices);
+	}
+
+	/**
+	 * Brings a replica of the shipping tree up to date, by replacing its slices starting at or after the time the
+	 * shipped suffix starts at with the shipped ones.
+	 *
+	 * @param bytes   a message created by this format
+	 * @param replica the replica of the shipping tree
+	 * @return the number of slices shipped
+	 * @throws Exception in case a state cannot be deserialized
+	 */
+	public int applyTo(byte[] bytes, FlatFatTree<IN, ACC> replica) throws Exception {
+		Pair<Long, List<Node<IN, ACC>>> suffix = this.decode(bytes);
+
+		List<Integer> replaced = new ArrayList<>();
+		if (replica.getCurrentLeafCount() > 0) {
+			LeafCursor<IN, ACC> cursor = replica.newLeafCursor();
+			cursor.seek(replica.getCurrentLeafPosition(), false);
+			while (cursor.next() && cursor.getStart() >= suffix.getValue0()) {
+				replaced.add(cursor.getPosition());
+			}
+		}
+		if (!replaced.isEmpty()) {
+			Collections.reverse(replaced);
+			replica.remove(replaced.toArray(new Integer[replaced.size()]));
+		}
+
+		for (Node<IN, ACC> slice : suffix.getValue1()) {
+			replica.add(slice, true);
+		}
+		return suffix.getValue1().size();
+	}
+
+
+	private static void writeSigned(ByteArrayOutputStream out, long value) {
+		writeUnsigned(out, (value << 1) ^ (value >> 63));
+	}
+
+	private static void writeUnsigned(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readSigned(ByteBuffer in) {
+		long value = readUnsigned(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static long readUnsigned(ByteBuffer in) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
@@ -0,0 +1,281 @@
+package de.twiechert.flatfat.sketch;
+
+import de.twiechert.flatfat.Mergeable;
+import de.twiechert.flatfat.SizeHint;
+import de.twiechert.flatfat.StateFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Estimates element frequencies with a Count-Min sketch and keeps the k most frequent elements seen as heavy hitter
+ * candidates. Counters and candidates live in fixed size arrays, merging adds the counters in place and re-ranks
+ * the candidates of both sketches against the merged counters.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class CountMinState<IN> implements Mergeable<IN, List<IN>>, SizeHint {
+
+	private final SketchHasher<IN> hasher;
+
+	/**
+	 * Encodes the candidates in the compact form, null if the sketch cannot be serialized along with its candidates
+	 */
+	private final ElementCodec<IN> codec;
+
+	private final int depth;
+
+	private final int width;
+
+	private final long[] counters;
+
+	private final Object[] candidates;
+
+	private final long[] candidateHashes;
+
+	private final long[] candidateEstimates;
+
+	private long total = 0;
+
+	public CountMinState(int depth, int width, int heavyHitters, SketchHasher<IN> hasher) {
+		this(depth, width, heavyHitters, hasher, null);
+	}
+
+	public CountMinState(int depth, int width, int heavyHitters, SketchHasher<IN> hasher, ElementCodec<IN> codec) {
+		this.depth = depth;
+		this.width = width;
+		this.hasher = hasher;
+		this.codec = codec;
+		this.counters = new long[depth * width];
+		this.candidates = new Object[heavyHitters];
+		this.candidateHashes = new long[heavyHitters];
+		this.candidateEstimates = new long[heavyHitters];
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Mergeable<IN, List<IN>> merge(Mergeable<IN, List<IN>> other) throws Exception {
+		CountMinState<IN> otherState = (CountMinState<IN>) other;
+		if (otherState.counters.length != counters.length || otherState.candidates.length != candidates.length)
+			throw new IllegalArgumentException("Only sketches of equal dimensions can be merged");
+
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] += otherState.counters[i];
+		}
+		this.total += otherState.total;
+
+		for (int i = 0; i < candidates.length; i++) {
+			if (candidates[i] != null)
+				candidateEstimates[i] = estimate(candidateHashes[i]);
+		}
+		for (int i = 0; i < otherState.candidates.length; i++) {
+			if (otherState.candidates[i] != null)
+				offer((IN) otherState.candidates[i], otherState.candidateHashes[i], estimate(otherState.candidateHashes[i]));
+		}
+		return this;
+	}
+
+	/**
+	 * @return the heavy hitter candidates, most frequent first
+	 * @throws Exception
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<IN> get() throws Exception {
+		List<IN> heavyHitters = new ArrayList<>(candidates.length);
+		boolean[] taken = new boolean[candidates.length];
+		for (int n = 0; n < candidates.length; n++) {
+			int best = -1;
+			for (int i = 0; i < candidates.length; i++) {
+				if (candidates[i] != null && !taken[i] && (best == -1 || candidateEstimates[i] > candidateEstimates[best]))
+					best = i;
+			}
+			if (best == -1)
+				break;
+			taken[best] = true;
+			heavyHitters.add((IN) candidates[best]);
+		}
+		return heavyHitters;
+	}
+
+	/**
+	 * @param value the element
+	 * @return an upper bound of its frequency
+	 */
+	public long estimate(IN value) {
+		return estimate(hasher.hash(value));
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	@Override
+	public void add(IN value) throws Exception {
+		long hash = hasher.hash(value);
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			int counter = row * width + bucket(hash, row);
+			estimate = Math.min(estimate, ++counters[counter]);
+		}
+		total++;
+		offer(value, hash, estimate);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return total == 0;
+	}
+
+	@Override
+	public long estimatedSizeInBytes() {
+		// the object with its fields and the headers of its arrays
+		return 16 + 48 + 4 * 16 + 8L * (counters.length + candidates.length + candidateHashes.length + candidateEstimates.length);
+	}
+
+	/**
+	 * @return the compact form: the dimensions and the total followed by the counters and the heavy hitter
+	 * candidates, each with its hash, its estimate and its encoded element
+	 * @throws IllegalStateException if the sketch holds candidates, but has no {@link ElementCodec} to encode them
+	 * @throws Exception             in case a candidate cannot be encoded
+	 */
+	public byte[] toBytes() throws Exception {
+		List<byte[]> encoded = new ArrayList<>(candidates.length);
+		int candidateBytes = 0;
+		for (int i = 0; i < candidates.length; i++) {
+			if (candidates[i] == null)
+				continue;
+			if (codec == null)
+				throw new IllegalStateException("The heavy hitter candidates require an element codec to be serialized");
+
+			@SuppressWarnings("unchecked")
+			byte[] element = codec.encode((IN) candidates[i]);
+			encoded.add(element);
+			candidateBytes += 8 + 8 + 4 + element.length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 4 + 8 + 8 * counters.length + 4 + candidateBytes);
+		buffer.putInt(depth).putInt(width).putInt(candidates.length).putLong(total);
+		for (long counter : counters) {
+			buffer.putLong(counter);
+		}
+		buffer.putInt(encoded.size());
+		int next = 0;
+		for (int i = 0; i < candidates.length; i++) {
+			if (candidates[i] == null)
+				continue;
+			byte[] element = encoded.get(next++);
+			buffer.putLong(candidateHashes[i]).putLong(candidateEstimates[i]).putInt(element.length).put(element);
+		}
+		return buffer.array();
+	}
+
+	private long estimate(long hash) {
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < depth; row++) {
+			estimate = Math.min(estimate, counters[row * width + bucket(hash, row)]);
+		}
+		return estimate;
+	}
+
+	/**
+	 * Derives the bucket of each row from two halves of the hash (double hashing)
+	 */
+	private int bucket(long hash, int row) {
+		int combined = (int) hash + row * (int) (hash >>> 32);
+		return (combined & Integer.MAX_VALUE) % width;
+	}
+
+	private void offer(IN value, long hash, long estimate) {
+		int weakest = -1;
+		for (int i = 0; i < candidates.length; i++) {
+			if (candidates[i] == null) {
+				// free slots are preferred over evicting a candidate
+				if (weakest == -1 || candidates[weakest] != null)
+					weakest = i;
+				continue;
+			}
+			if (candidateHashes[i] == hash && candidates[i].equals(value)) {
+				candidateEstimates[i] = estimate;
+				return;
+			}
+			if (weakest == -1 || (candidates[weakest] != null && candidateEstimates[i] < candidateEstimates[weakest]))
+				weakest = i;
+		}
+		if (weakest != -1 && (candidates[weakest] == null || candidateEstimates[weakest] < estimate)) {
+			candidates[weakest] = value;
+			candidateHashes[weakest] = hash;
+			candidateEstimates[weakest] = estimate;
+		}
+	}
+
+	public static class Factory<IN> implements StateFactory<IN, List<IN>> {
+
+		private final int depth;
+
+		private final int width;
+
+		private final int heavyHitters;
+
+		private final SketchHasher<IN> hasher;
+
+		private final ElementCodec<IN> codec;
+
+		/**
+		 * @param depth        the number of hash rows
+		 * @param width        the number of counters per row
+		 * @param heavyHitters the number of heavy hitter candidates kept
+		 */
+		public Factory(int depth, int width, int heavyHitters) {
+			this(depth, width, heavyHitters, new SketchHasher.Default<IN>());
+		}
+
+		public Factory(int depth, int width, int heavyHitters, SketchHasher<IN> hasher) {
+			this(depth, width, heavyHitters, hasher, null);
+		}
+
+		/**
+		 * @param codec encodes the heavy hitter candidates in the compact form of the sketches
+		 */
+		public Factory(int depth, int width, int heavyHitters, SketchHasher<IN> hasher, ElementCodec<IN> codec) {
+			this.depth = depth;
+			this.width = width;
+			this.heavyHitters = heavyHitters;
+			this.hasher = hasher;
+			this.codec = codec;
+		}
+
+		@Override
+		public CountMinState<IN> getState() throws Exception {
+			return new CountMinState<>(depth, width, heavyHitters, hasher, codec);
+		}
+
+		/**
+		 * @param bytes the compact form of a sketch created by this factory
+		 * @return the sketch including its heavy hitter candidates
+		 * @throws IllegalArgumentException if the sketch has other dimensions than the ones of this factory
+		 * @throws Exception                in case a candidate cannot be decoded
+		 */
+		public CountMinState<IN> fromBytes(byte[] bytes) throws Exception {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (buffer.getInt() != depth || buffer.getInt() != width || buffer.getInt() != heavyHitters)
+				throw new IllegalArgumentException("The sketch has other dimensions than the ones of this factory");
+
+			CountMinState<IN> state = this.getState();
+			state.total = buffer.getLong();
+			for (int i = 0; i < state.counters.length; i++) {
+				state.counters[i] = buffer.getLong();
+			}
+			int candidateCount = buffer.getInt();
+			for (int i = 0; i < candidateCount; i++) {
+				state.candidateHashes[i] = buffer.getLong();
+				state.candidateEstimates[i] = buffer.getLong();
+				byte[] element = new byte[buffer.getInt()];
+				buffer.get(element);
+				state.candidates[i] = codec.decode(element);
+			}
+			return state;
+		}
+	}
+}
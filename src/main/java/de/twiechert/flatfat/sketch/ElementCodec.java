@@ -0,0 +1,14 @@
+package de.twiechert.flatfat.sketch;
+
+/**
+ * Converts elements kept by a sketch, such as the heavy hitter candidates of a {@link CountMinState}, to bytes and
+ * back, such that they survive the compact form of the sketch
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface ElementCodec<IN> {
+
+	byte[] encode(IN value) throws Exception;
+
+	IN decode(byte[] bytes) throws Exception;
+}
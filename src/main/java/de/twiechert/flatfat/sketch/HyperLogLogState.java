@@ -0,0 +1,161 @@
+package de.twiechert.flatfat.sketch;
+
+import de.twiechert.flatfat.ChangeSignal;
+import de.twiechert.flatfat.Mergeable;
+import de.twiechert.flatfat.SizeHint;
+import de.twiechert.flatfat.StateFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Estimates the number of distinct elements. The registers are a fixed size byte array, merging takes the
+ * register-wise maximum in place.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class HyperLogLogState<IN> implements Mergeable<IN, Long>, SizeHint, ChangeSignal<IN, Long> {
+
+	private final SketchHasher<IN> hasher;
+
+	private final int precision;
+
+	private final byte[] registers;
+
+	private boolean empty = true;
+
+	public HyperLogLogState(int precision, SketchHasher<IN> hasher) {
+		if (precision < 4 || precision > 18)
+			throw new IllegalArgumentException("Precision should be between 4 and 18");
+
+		this.precision = precision;
+		this.hasher = hasher;
+		this.registers = new byte[1 << precision];
+	}
+
+	@Override
+	public Mergeable<IN, Long> merge(Mergeable<IN, Long> other) throws Exception {
+		HyperLogLogState<IN> otherState = (HyperLogLogState<IN>) other;
+		if (otherState.precision != this.precision)
+			throw new IllegalArgumentException("Only sketches of equal precision can be merged");
+
+		for (int i = 0; i < registers.length; i++) {
+			if (otherState.registers[i] > registers[i])
+				registers[i] = otherState.registers[i];
+		}
+		this.empty &= otherState.empty;
+		return this;
+	}
+
+	@Override
+	public Long get() throws Exception {
+		int m = registers.length;
+		double sum = 0d;
+		int zeros = 0;
+		for (byte register : registers) {
+			sum += 1d / (1L << register);
+			if (register == 0)
+				zeros++;
+		}
+
+		double estimate = alpha(m) * m * m / sum;
+		// small range correction by linear counting
+		if (estimate <= 2.5d * m && zeros > 0)
+			estimate = m * Math.log((double) m / zeros);
+
+		return Math.round(estimate);
+	}
+
+	@Override
+	public void add(IN value) throws Exception {
+		long hash = hasher.hash(value);
+		int register = (int) (hash >>> (64 - precision));
+		// the marker bit bounds the rank if all remaining bits are zero
+		byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+		if (rank > registers[register])
+			registers[register] = rank;
+		this.empty = false;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	@Override
+	public long estimatedSizeInBytes() {
+		// the object with its fields and the headers of its arrays
+		return 16 + 24 + 16 + registers.length;
+	}
+
+	/**
+	 * Merging takes the register-wise maximum, so a sketch is unchanged if its registers are
+	 */
+	@Override
+	public boolean hasSameAggregate(Mergeable<IN, Long> other) {
+		HyperLogLogState<IN> otherState = (HyperLogLogState<IN>) other;
+		return otherState.empty == this.empty && Arrays.equals(otherState.registers, registers);
+	}
+
+	/**
+	 * @return the compact form: the precision followed by one byte per register
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(1 + registers.length);
+		buffer.put((byte) precision);
+		buffer.put(registers);
+		return buffer.array();
+	}
+
+	private static double alpha(int m) {
+		switch (m) {
+			case 16:
+				return 0.673d;
+			case 32:
+				return 0.697d;
+			case 64:
+				return 0.709d;
+			default:
+				return 0.7213d / (1d + 1.079d / m);
+		}
+	}
+
+	public static class Factory<IN> implements StateFactory<IN, Long> {
+
+		private final int precision;
+
+		private final SketchHasher<IN> hasher;
+
+		public Factory(int precision) {
+			this(precision, new SketchHasher.Default<IN>());
+		}
+
+		public Factory(int precision, SketchHasher<IN> hasher) {
+			this.precision = precision;
+			this.hasher = hasher;
+		}
+
+		@Override
+		public HyperLogLogState<IN> getState() throws Exception {
+			return new HyperLogLogState<>(precision, hasher);
+		}
+
+		/**
+		 * @param bytes the compact form of a sketch created by this factory
+		 * @return the sketch
+		 * @throws IllegalArgumentException if the sketch has another precision than the one of this factory
+		 */
+		public HyperLogLogState<IN> fromBytes(byte[] bytes) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			if (buffer.get() != precision)
+				throw new IllegalArgumentException("The sketch has another precision than the one of this factory");
+
+			HyperLogLogState<IN> state = new HyperLogLogState<>(precision, hasher);
+			buffer.get(state.registers);
+			for (byte register : state.registers) {
+				state.empty &= register == 0;
+			}
+			return state;
+		}
+	}
+}
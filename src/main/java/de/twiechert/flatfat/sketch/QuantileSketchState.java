@@ -0,0 +1,203 @@
+package de.twiechert.flatfat.sketch;
+
+import de.twiechert.flatfat.Mergeable;
+import de.twiechert.flatfat.SizeHint;
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.composite.ValueExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Estimates quantiles with a relative error guarantee. Values are counted in logarithmically sized buckets, whose
+ * range is fixed by the factory, such that the sketch is a fixed size counter array and merging adds the counters
+ * in place. Values outside of the configured range are counted in the outermost buckets.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class QuantileSketchState<IN> implements Mergeable<IN, Double>, SizeHint {
+
+	private final Factory<IN> factory;
+
+	private final long[] positive;
+
+	private final long[] negative;
+
+	private long zeros = 0;
+
+	private long count = 0;
+
+	private QuantileSketchState(Factory<IN> factory) {
+		this.factory = factory;
+		this.positive = new long[factory.bucketCount];
+		this.negative = new long[factory.bucketCount];
+	}
+
+	@Override
+	public Mergeable<IN, Double> merge(Mergeable<IN, Double> other) throws Exception {
+		QuantileSketchState<IN> otherState = (QuantileSketchState<IN>) other;
+		if (otherState.positive.length != positive.length)
+			throw new IllegalArgumentException("Only sketches of equal configuration can be merged");
+
+		for (int i = 0; i < positive.length; i++) {
+			positive[i] += otherState.positive[i];
+			negative[i] += otherState.negative[i];
+		}
+		this.zeros += otherState.zeros;
+		this.count += otherState.count;
+		return this;
+	}
+
+	/**
+	 * @return the quantile the factory was configured with
+	 * @throws Exception
+	 */
+	@Override
+	public Double get() throws Exception {
+		return this.getQuantile(factory.quantile);
+	}
+
+	/**
+	 * @param quantile the quantile between 0 and 1
+	 * @return its estimate or NaN if the sketch is empty
+	 */
+	public double getQuantile(double quantile) {
+		if (count == 0)
+			return Double.NaN;
+
+		long rank = (long) (quantile * (count - 1));
+		long seen = 0;
+		for (int i = negative.length - 1; i >= 0; i--) {
+			seen += negative[i];
+			if (seen > rank)
+				return -factory.valueOf(i);
+		}
+		seen += zeros;
+		if (seen > rank)
+			return 0d;
+
+		for (int i = 0; i < positive.length; i++) {
+			seen += positive[i];
+			if (seen > rank)
+				return factory.valueOf(i);
+		}
+		return factory.valueOf(positive.length - 1);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void add(IN value) throws Exception {
+		double v = factory.extractor.extract(value);
+		if (v > 0)
+			positive[factory.bucketOf(v)]++;
+		else if (v < 0)
+			negative[factory.bucketOf(-v)]++;
+		else
+			zeros++;
+		count++;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	@Override
+	public long estimatedSizeInBytes() {
+		// the object with its fields and the headers of its arrays
+		return 16 + 32 + 2 * 16 + 8L * (positive.length + negative.length);
+	}
+
+	/**
+	 * @return the compact form: the total and zero counts followed by the bucket counters
+	 */
+	public byte[] toBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(8 * (2 + 2 * positive.length));
+		buffer.putLong(count).putLong(zeros);
+		for (int i = 0; i < positive.length; i++) {
+			buffer.putLong(positive[i]);
+		}
+		for (int i = 0; i < negative.length; i++) {
+			buffer.putLong(negative[i]);
+		}
+		return buffer.array();
+	}
+
+	public static class Factory<IN> implements StateFactory<IN, Double> {
+
+		private final ValueExtractor<IN> extractor;
+
+		private final double quantile;
+
+		private final double logGamma;
+
+		private final double gamma;
+
+		private final int minIndex;
+
+		private final int bucketCount;
+
+		/**
+		 * @param extractor         extracts the value of an element
+		 * @param quantile          the quantile reported by {@link QuantileSketchState#get()}
+		 * @param relativeAccuracy  the relative error of the estimates, e.g. 0.01
+		 * @param minTrackableValue the smallest absolute value that is distinguished
+		 * @param maxTrackableValue the largest absolute value that is distinguished
+		 */
+		public Factory(ValueExtractor<IN> extractor, double quantile, double relativeAccuracy,
+					   double minTrackableValue, double maxTrackableValue) {
+			if (relativeAccuracy <= 0 || relativeAccuracy >= 1)
+				throw new IllegalArgumentException("The relative accuracy should be between 0 and 1");
+			if (minTrackableValue <= 0 || maxTrackableValue <= minTrackableValue)
+				throw new IllegalArgumentException("The trackable range should be positive and non-empty");
+
+			this.extractor = extractor;
+			this.quantile = quantile;
+			this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+			this.logGamma = Math.log(gamma);
+			this.minIndex = index(minTrackableValue);
+			this.bucketCount = index(maxTrackableValue) - minIndex + 1;
+		}
+
+		@Override
+		public QuantileSketchState<IN> getState() throws Exception {
+			return new QuantileSketchState<>(this);
+		}
+
+		/**
+		 * @param bytes the compact form of a sketch created by this factory
+		 * @return the sketch
+		 * @throws IllegalArgumentException if the sketch has another number of buckets than the ones of this factory
+		 */
+		public QuantileSketchState<IN> fromBytes(byte[] bytes) {
+			if (bytes.length != 8 * (2 + 2 * bucketCount))
+				throw new IllegalArgumentException("The sketch has another number of buckets than the ones of this factory");
+
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			QuantileSketchState<IN> state = new QuantileSketchState<>(this);
+			state.count = buffer.getLong();
+			state.zeros = buffer.getLong();
+			for (int i = 0; i < bucketCount; i++) {
+				state.positive[i] = buffer.getLong();
+			}
+			for (int i = 0; i < bucketCount; i++) {
+				state.negative[i] = buffer.getLong();
+			}
+			return state;
+		}
+
+		private int index(double value) {
+			return (int) Math.ceil(Math.log(value) / logGamma);
+		}
+
+		int bucketOf(double value) {
+			return Math.max(0, Math.min(bucketCount - 1, index(value) - minIndex));
+		}
+
+		double valueOf(int bucket) {
+			return 2 * Math.pow(gamma, bucket + minIndex) / (gamma + 1);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package de.twiechert.flatfat.sketch;
+
+/**
+ * Maps an element to a well distributed 64 bit hash as required by the sketches
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface SketchHasher<IN> {
+
+	long hash(IN value);
+
+	/**
+	 * Spreads the bits of {@link Object#hashCode()} with the finalizer of MurmurHash3
+	 */
+	class Default<IN> implements SketchHasher<IN> {
+
+		@Override
+		public long hash(IN value) {
+			return mix(value.hashCode());
+		}
+
+		static long mix(long h) {
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package de.twiechert.flatfat.tiered;
+
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.node.Node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable FlatFAT heap over spilled slices, stored in a memory-mapped file. The file starts with the number of
+ * heap nodes and their offsets, followed by a record per node: start, end, tmax, count and the serialized state.
+ * Padding leafs have no record. Only the bounds of the slices are kept in memory, they resolve time ranges to leaf
+ * positions without touching the file.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+class ColdSegment {
+
+	private static final int RECORD_HEADER_BYTES = 4 * 8 + 4;
+
+	final long id;
+
+	private final Path path;
+
+	private MappedByteBuffer buffer;
+
+	/**
+	 * The number of leafs of the heap, a power of two
+	 */
+	private final int heapLeafs;
+
+	final long[] starts;
+
+	final long[] ends;
+
+	final long[] tmaxs;
+
+	/**
+	 * Leafs before were evicted from the window
+	 */
+	int firstValid = 0;
+
+	private ColdSegment(long id, Path path, MappedByteBuffer buffer, int heapLeafs, long[] starts, long[] ends, long[] tmaxs) {
+		this.id = id;
+		this.path = path;
+		this.buffer = buffer;
+		this.heapLeafs = heapLeafs;
+		this.starts = starts;
+		this.ends = ends;
+		this.tmaxs = tmaxs;
+	}
+
+	/**
+	 * Computes the heap over the slices and writes it to the file
+	 */
+	static <IN, ACC> ColdSegment write(long id, Path path, List<Node<IN, ACC>> slices, StateFactory<IN, ACC> stateFactory,
+									   StateSerializer<IN, ACC> serializer) throws Exception {
+		int heapLeafs = 1;
+		while (heapLeafs < slices.size()) {
+			heapLeafs *= 2;
+		}
+
+		List<Node<IN, ACC>> heap = new ArrayList<>(2 * heapLeafs - 1);
+		for (int i = 0; i < 2 * heapLeafs - 1; i++) {
+			heap.add(null);
+		}
+		long[] starts = new long[slices.size()];
+		long[] ends = new long[slices.size()];
+		long[] tmaxs = new long[slices.size()];
+		for (int i = 0; i < slices.size(); i++) {
+			Node<IN, ACC> slice = slices.get(i);
+			heap.set(heapLeafs - 1 + i, slice);
+			starts[i] = slice.getStart();
+			ends[i] = slice.getEnd();
+			tmaxs[i] = slice.getTmax();
+		}
+		for (int i = heapLeafs - 2; i > -1; i--) {
+			heap.set(i, combine(heap.get(2 * i + 1), heap.get(2 * i + 2), stateFactory));
+		}
+
+		List<byte[]> states = new ArrayList<>(heap.size());
+		long offset = 4 + 8L * heap.size();
+		long[] offsets = new long[heap.size()];
+		for (int i = 0; i < heap.size(); i++) {
+			Node<IN, ACC> node = heap.get(i);
+			byte[] state = (node != null) ? serializer.serialize(node.getValueState()) : null;
+			states.add(state);
+			offsets[i] = (node != null) ? offset : -1;
+			offset += (node != null) ? RECORD_HEADER_BYTES + state.length : 0;
+		}
+		if (offset > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("A segment must not exceed 2 GB, spill fewer slices per segment");
+
+		ByteBuffer content = ByteBuffer.allocate((int) offset);
+		content.putInt(heap.size());
+		for (long nodeOffset : offsets) {
+			content.putLong(nodeOffset);
+		}
+		for (int i = 0; i < heap.size(); i++) {
+			Node<IN, ACC> node = heap.get(i);
+			if (node == null)
+				continue;
+			content.putLong(node.getStart()).putLong(node.getEnd()).putLong(node.getTmax()).putLong(node.getCount());
+			content.putInt(states.get(i).length).put(states.get(i));
+		}
+		content.flip();
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			while (content.hasRemaining()) {
+				channel.write(content);
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new ColdSegment(id, path, buffer, heapLeafs, starts, ends, tmaxs);
+		}
+	}
+
+	int getLeafCount() {
+		return starts.length;
+	}
+
+	int getHeapLeafs() {
+		return heapLeafs;
+	}
+
+	/**
+	 * @return the bytes of the node's record or 0 if the node is padding
+	 */
+	int recordBytes(int index) {
+		long offset = buffer.getLong(4 + 8 * index);
+		return (offset < 0) ? 0 : RECORD_HEADER_BYTES + buffer.getInt((int) offset + 4 * 8);
+	}
+
+	/**
+	 * @return the node at the heap index or null if it is padding
+	 */
+	<IN, ACC> Node<IN, ACC> readNode(int index, StateSerializer<IN, ACC> serializer) throws Exception {
+		long offset = buffer.getLong(4 + 8 * index);
+		if (offset < 0)
+			return null;
+
+		int position = (int) offset;
+		byte[] state = new byte[buffer.getInt(position + 4 * 8)];
+		ByteBuffer record = buffer.duplicate();
+		record.position(position + RECORD_HEADER_BYTES);
+		record.get(state);
+
+		Node<IN, ACC> node = new Node.InnerNode<>(serializer.deserialize(state), buffer.getLong(position), buffer.getLong(position + 8));
+		node.setTmax(buffer.getLong(position + 16));
+		node.setCount(buffer.getLong(position + 24));
+		return node;
+	}
+
+	/**
+	 * Drops the reference to the mapping and deletes the file. The JDK offers no public way to unmap a buffer, so the
+	 * mapping lives on until the buffer is garbage collected. Meanwhile, the file keeps occupying disk space on unix
+	 * systems and cannot be deleted on Windows, which fails with an {@link IOException}.
+	 */
+	void delete() throws IOException {
+		buffer = null;
+		Files.deleteIfExists(path);
+	}
+
+	private static <IN, ACC> Node<IN, ACC> combine(Node<IN, ACC> left, Node<IN, ACC> right, StateFactory<IN, ACC> stateFactory) throws Exception {
+		if (left == null || right == null)
+			return (left == null) ? right : left;
+
+		Node<IN, ACC> node = new Node.InnerNode<>(stateFactory.getState(), left.getStart(), right.getEnd());
+		node.getValueState().merge(left.getValueState()).merge(right.getValueState());
+		node.setTmax(Math.max(left.getTmax(), right.getTmax()));
+		node.setCount(left.getCount() + right.getCount());
+		return node;
+	}
+}
@@ -0,0 +1,97 @@
+package de.twiechert.flatfat.tiered;
+
+import de.twiechert.flatfat.node.Node;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An LRU cache of deserialized segment nodes, bounded by the summed record size of its entries
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+class PageCache<IN, ACC> {
+
+	private final long budgetBytes;
+
+	private final StateSerializer<IN, ACC> serializer;
+
+	private final LinkedHashMap<Long, CachedNode<IN, ACC>> pages = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long usedBytes = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	PageCache(long budgetBytes, StateSerializer<IN, ACC> serializer) {
+		this.budgetBytes = budgetBytes;
+		this.serializer = serializer;
+	}
+
+	/**
+	 * @return the node at the heap index of the segment or null if it is padding, the node must not be modified
+	 */
+	Node<IN, ACC> get(ColdSegment segment, int index) throws Exception {
+		long key = (segment.id << 32) | index;
+		CachedNode<IN, ACC> cached = pages.get(key);
+		if (cached != null) {
+			hits++;
+			return cached.node;
+		}
+
+		misses++;
+		Node<IN, ACC> node = segment.readNode(index, serializer);
+		int bytes = segment.recordBytes(index);
+		if (node == null || bytes > budgetBytes)
+			return node;
+
+		pages.put(key, new CachedNode<>(node, bytes));
+		usedBytes += bytes;
+		Iterator<CachedNode<IN, ACC>> eldest = pages.values().iterator();
+		while (usedBytes > budgetBytes) {
+			usedBytes -= eldest.next().bytes;
+			eldest.remove();
+		}
+		return node;
+	}
+
+	/**
+	 * Drops the nodes of a deleted segment
+	 */
+	void invalidate(ColdSegment segment) {
+		Iterator<Map.Entry<Long, CachedNode<IN, ACC>>> iterator = pages.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Long, CachedNode<IN, ACC>> entry = iterator.next();
+			if ((entry.getKey() >>> 32) == segment.id) {
+				usedBytes -= entry.getValue().bytes;
+				iterator.remove();
+			}
+		}
+	}
+
+	long getUsedBytes() {
+		return usedBytes;
+	}
+
+	long getHits() {
+		return hits;
+	}
+
+	long getMisses() {
+		return misses;
+	}
+
+	private static class CachedNode<IN, ACC> {
+
+		private final Node<IN, ACC> node;
+
+		private final int bytes;
+
+		private CachedNode(Node<IN, ACC> node, int bytes) {
+			this.node = node;
+			this.bytes = bytes;
+		}
+	}
+}
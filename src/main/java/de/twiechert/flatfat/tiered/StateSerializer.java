@@ -0,0 +1,15 @@
+package de.twiechert.flatfat.tiered;
+
+import de.twiechert.flatfat.Mergeable;
+
+/**
+ * Converts partial aggregates to bytes and back, such that they can be spilled to cold segments
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public interface StateSerializer<IN, ACC> {
+
+	byte[] serialize(Mergeable<IN, ACC> state) throws Exception;
+
+	Mergeable<IN, ACC> deserialize(byte[] bytes) throws Exception;
+}
@@ -0,0 +1,409 @@
+package de.twiechert.flatfat.tiered;
+
+import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.node.Node;
+import de.twiechert.flatfat.resolver.NodeByTimestampResolver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps the recent slices of a window in a {@link FlatFatTree} and spills older ones to cold segments. A cold segment
+ * is an immutable FlatFAT heap in a memory-mapped file. The root aggregates of the segments are kept in memory, so
+ * queries touching the cold region only read the O(log n) heap nodes covering the range within the two boundary
+ * segments, through an LRU page cache with a budget in bytes.
+ * <p>
+ * Only the hot tail can be updated, late slices falling into the cold region are rejected.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class TieredFlatFatTree<IN, ACC> implements AutoCloseable {
+
+	private final FlatFatTree<IN, ACC> hot;
+
+	private final StateFactory<IN, ACC> stateFactory;
+
+	private final StateSerializer<IN, ACC> serializer;
+
+	private final Path directory;
+
+	private final boolean ownsDirectory;
+
+	private final int hotLeafs;
+
+	private final int segmentLeafs;
+
+	private final PageCache<IN, ACC> pageCache;
+
+	/**
+	 * The cold segments, oldest first
+	 */
+	private final List<ColdSegment> segments = new ArrayList<>();
+
+	private long nextSegmentId = 0;
+
+	/**
+	 * Holds the root aggregate of every segment, such that fully covered segments are aggregated in memory
+	 */
+	private final FlatFatTree<IN, ACC> segmentRoots;
+
+	/**
+	 * The end of the newest spilled slice
+	 */
+	private long coldEnd = Long.MIN_VALUE;
+
+
+	private TieredFlatFatTree(Builder<IN, ACC> builder) throws Exception {
+		this.hot = builder.hot;
+		this.stateFactory = builder.stateFactory;
+		this.serializer = builder.serializer;
+		this.ownsDirectory = builder.directory == null;
+		this.directory = ownsDirectory ? Files.createTempDirectory("flatfat-segments") : builder.directory;
+		this.hotLeafs = builder.hotLeafs;
+		this.segmentLeafs = builder.segmentLeafs;
+		this.pageCache = new PageCache<>(builder.pageCacheBytes, serializer);
+		this.segmentRoots = FlatFatTree.Builder.newBuilder(stateFactory).capacity(16).engine(FlatFatTree.Builder.Engine.FIBA).build();
+	}
+
+
+	/**
+	 * @param slice the slice to append, it spills the oldest hot slices if the hot tail is full
+	 * @throws Exception in case the slice cannot be added or spilled
+	 */
+	public void add(Node<IN, ACC> slice) throws Exception {
+		this.checkHot(slice);
+		hot.add(slice, true);
+		this.spillIfFull();
+	}
+
+
+	/**
+	 * @param slice the slice to add, it must not fall into the cold region
+	 * @throws Exception in case the slice cannot be added or spilled
+	 */
+	public void addPotentiallyOutOfOrder(Node<IN, ACC> slice) throws Exception {
+		this.checkHot(slice);
+		hot.addPotentiallyOutOfOrder(slice, true);
+		this.spillIfFull();
+	}
+
+
+	/**
+	 * Aggregates the slices with <code>startTime &lt;= start</code> and <code>tmax &lt; endTime</code>, as
+	 * {@link FlatFatTree#aggregateFromTo(long, long)} does
+	 *
+	 * @param startTime the start of the range
+	 * @param endTime   the end of the range
+	 * @return the aggregate of the range
+	 * @throws Exception
+	 */
+	public Node<IN, ACC> aggregateFromTo(long startTime, long endTime) throws Exception {
+		Node<IN, ACC> agg = new Node.InnerNode<>(stateFactory.getState(), startTime, endTime);
+		boolean empty = true;
+
+		// the covered slices are contiguous: a partially covered segment, fully covered ones and another partial one
+		int fullFrom = -1;
+		int fullTo = -1;
+		for (int i = 0; i < segments.size(); i++) {
+			ColdSegment segment = segments.get(i);
+			if (segment.ends[segment.getLeafCount() - 1] <= startTime)
+				continue;
+			if (segment.starts[segment.firstValid] >= endTime)
+				break;
+
+			int from = Math.max(firstNotBefore(segment.starts, startTime), segment.firstValid);
+			int to = firstNotBefore(segment.tmaxs, endTime) - 1;
+			if (from > to)
+				continue;
+
+			if (from == 0 && to == segment.getLeafCount() - 1) {
+				fullFrom = (fullFrom < 0) ? i : fullFrom;
+				fullTo = i;
+				continue;
+			}
+			if (fullFrom > -1) {
+				this.mergeInto(agg, segmentRoots.aggregateFromTo(fullFrom, fullTo), empty);
+				empty = false;
+				fullFrom = -1;
+			}
+			this.mergeInto(agg, this.aggregateSegment(segment, from, to), empty);
+			empty = false;
+		}
+		if (fullFrom > -1) {
+			this.mergeInto(agg, segmentRoots.aggregateFromTo(fullFrom, fullTo), empty);
+			empty = false;
+		}
+
+		if (hot.getCurrentLeafCount() > 0) {
+			Node<IN, ACC> part = hot.aggregateFromTo(startTime, endTime);
+			if (!part.getValueState().isEmpty() || part.getCount() > 0)
+				this.mergeInto(agg, part, empty);
+		}
+		return agg;
+	}
+
+
+	/**
+	 * Evicts all slices ending up to the timestamp. Cold segments are deleted once all of their slices are evicted.
+	 *
+	 * @param timestamp the timestamp up to which to evict
+	 * @throws Exception in case the slices cannot be evicted
+	 */
+	public void evictUpTo(long timestamp) throws Exception {
+		Iterator<ColdSegment> iterator = segments.iterator();
+		while (iterator.hasNext()) {
+			ColdSegment segment = iterator.next();
+			int firstValid = firstNotBefore(segment.ends, timestamp + 1);
+			if (firstValid < segment.getLeafCount()) {
+				segment.firstValid = Math.max(segment.firstValid, firstValid);
+				return;
+			}
+			pageCache.invalidate(segment);
+			segment.delete();
+			iterator.remove();
+			segmentRoots.removeUpTo(0);
+		}
+
+		Integer position = hot.getNodePositionByTimestampAndComparator(timestamp, new NodeByTimestampResolver.RemoveSlicesComparator());
+		if (position != null && position > -1)
+			hot.removeUpTo(position);
+	}
+
+
+	/**
+	 * @return the number of slices in the cold segments, including evicted ones of partially evicted segments
+	 */
+	public long getColdLeafCount() {
+		long count = 0;
+		for (ColdSegment segment : segments) {
+			count += segment.getLeafCount() - segment.firstValid;
+		}
+		return count;
+	}
+
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+
+	public FlatFatTree<IN, ACC> getHotTree() {
+		return hot;
+	}
+
+
+	public long getPageCacheBytes() {
+		return pageCache.getUsedBytes();
+	}
+
+
+	public long getPageCacheHits() {
+		return pageCache.getHits();
+	}
+
+
+	public long getPageCacheMisses() {
+		return pageCache.getMisses();
+	}
+
+
+	/**
+	 * Deletes all segment files, and the directory if it was created by the tree
+	 */
+	@Override
+	public void close() throws IOException {
+		for (ColdSegment segment : segments) {
+			segment.delete();
+		}
+		segments.clear();
+		if (ownsDirectory)
+			Files.deleteIfExists(directory);
+	}
+
+
+	private void checkHot(Node<IN, ACC> slice) {
+		if (slice.getStart() < coldEnd)
+			throw new IllegalArgumentException("The slice falls into the cold region, which cannot be updated anymore");
+	}
+
+
+	private void spillIfFull() throws Exception {
+		if (hot.getCurrentLeafCount() <= hotLeafs)
+			return;
+
+		List<Node<IN, ACC>> slices = new ArrayList<>(segmentLeafs);
+		for (int position = 0; position < segmentLeafs; position++) {
+			slices.add(hot.getNode(position));
+		}
+
+		long id = nextSegmentId++;
+		ColdSegment segment = ColdSegment.write(id, directory.resolve("segment-" + id + ".bin"), slices, stateFactory, serializer);
+		segments.add(segment);
+		segmentRoots.add(segment.readNode(0, serializer), true);
+		coldEnd = slices.get(slices.size() - 1).getEnd();
+		hot.removeUpTo(segmentLeafs - 1);
+	}
+
+
+	/**
+	 * Aggregates the leafs from to to of the segment heap, reading at most two nodes per level
+	 */
+	private Node<IN, ACC> aggregateSegment(ColdSegment segment, int from, int to) throws Exception {
+		int nextS = from + segment.getHeapLeafs() - 1;
+		int nextE = to + segment.getHeapLeafs() - 1;
+
+		Node<IN, ACC> aggS = new Node.InnerNode<>(stateFactory.getState());
+		Node<IN, ACC> aggE = new Node.InnerNode<>(stateFactory.getState());
+		boolean emptyS = true;
+		boolean emptyE = true;
+
+		while (nextS <= nextE) {
+			if (nextS == nextE) {
+				this.mergeInto(aggS, pageCache.get(segment, nextS), emptyS);
+				emptyS = false;
+				break;
+			}
+			// a right child on the start side (or a left child on the end side) is only partially covered by its parent
+			if (nextS % 2 == 0) {
+				this.mergeInto(aggS, pageCache.get(segment, nextS++), emptyS);
+				emptyS = false;
+			}
+			if (nextE % 2 == 1) {
+				aggE = this.prepend(pageCache.get(segment, nextE--), aggE, emptyE);
+				emptyE = false;
+			}
+			if (nextS > nextE)
+				break;
+
+			nextS = (nextS - 1) / 2;
+			nextE = (nextE - 1) / 2;
+		}
+
+		if (!emptyE)
+			this.mergeInto(aggS, aggE, emptyS);
+		return aggS;
+	}
+
+
+	/**
+	 * Merges the node into the aggregate, which is the left one of both
+	 *
+	 * @param empty whether the aggregate holds nothing yet, in which case it takes over the bounds of the node
+	 */
+	private void mergeInto(Node<IN, ACC> agg, Node<IN, ACC> node, boolean empty) throws Exception {
+		if (node == null)
+			return;
+
+		agg.getValueState().merge(node.getValueState());
+		agg.setStart(empty ? node.getStart() : agg.getStart());
+		agg.setEnd(node.getEnd());
+		agg.setTmax(empty ? node.getTmax() : Math.max(agg.getTmax(), node.getTmax()));
+		agg.setCount(empty ? node.getCount() : agg.getCount() + node.getCount());
+	}
+
+
+	/**
+	 * @return a new aggregate of the node followed by the aggregate
+	 */
+	private Node<IN, ACC> prepend(Node<IN, ACC> node, Node<IN, ACC> agg, boolean empty) throws Exception {
+		if (node == null)
+			return agg;
+
+		Node<IN, ACC> result = new Node.InnerNode<>(stateFactory.getState());
+		this.mergeInto(result, node, true);
+		if (!empty)
+			this.mergeInto(result, agg, false);
+		return result;
+	}
+
+
+	/**
+	 * @return the index of the first value not smaller than the key, the values being sorted
+	 */
+	private static int firstNotBefore(long[] values, long key) {
+		int low = 0;
+		int high = values.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (values[middle] < key)
+				low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+
+
+	public static class Builder<IN, ACC> {
+
+		private final FlatFatTree<IN, ACC> hot;
+
+		private final StateFactory<IN, ACC> stateFactory;
+
+		private final StateSerializer<IN, ACC> serializer;
+
+		private Path directory;
+
+		private int hotLeafs = 1024;
+
+		private int segmentLeafs = 512;
+
+		private long pageCacheBytes = 16 * 1024 * 1024;
+
+		private Builder(FlatFatTree<IN, ACC> hot, StateFactory<IN, ACC> stateFactory, StateSerializer<IN, ACC> serializer) {
+			this.hot = hot;
+			this.stateFactory = stateFactory;
+			this.serializer = serializer;
+		}
+
+		/**
+		 * @param hot          the tree holding the hot tail, it must not be accessed other than through the tiered tree
+		 * @param stateFactory the state factory of the tree
+		 * @param serializer   the serializer of the partial aggregates
+		 * @return the builder
+		 */
+		public static <IN, ACC> Builder<IN, ACC> newBuilder(FlatFatTree<IN, ACC> hot, StateFactory<IN, ACC> stateFactory,
+															StateSerializer<IN, ACC> serializer) {
+			return new Builder<>(hot, stateFactory, serializer);
+		}
+
+		/**
+		 * @param directory the directory of the segment files, a temporary directory by default
+		 * @return the builder
+		 */
+		public Builder<IN, ACC> directory(Path directory) {
+			this.directory = directory;
+			return this;
+		}
+
+		/**
+		 * @param hotLeafs     the number of slices kept in memory, exceeding it spills the oldest ones
+		 * @param segmentLeafs the number of slices spilled at once into a segment
+		 * @return the builder
+		 */
+		public Builder<IN, ACC> hotLeafs(int hotLeafs, int segmentLeafs) {
+			if (segmentLeafs < 1 || segmentLeafs > hotLeafs)
+				throw new IllegalArgumentException("A segment holds at least one and at most all hot slices");
+			this.hotLeafs = hotLeafs;
+			this.segmentLeafs = segmentLeafs;
+			return this;
+		}
+
+		/**
+		 * @param pageCacheBytes the budget of the page cache of segment nodes
+		 * @return the builder
+		 */
+		public Builder<IN, ACC> pageCacheBytes(long pageCacheBytes) {
+			this.pageCacheBytes = pageCacheBytes;
+			return this;
+		}
+
+		public TieredFlatFatTree<IN, ACC> build() throws Exception {
+			return new TieredFlatFatTree<>(this);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package de.twiechert.flatfat.versioned;
+
+/**
+ * Decides which committed versions of a {@link VersionedFlatFatTree} stay queryable. A version is released once more
+ * than the maximum number of versions were committed after it, or once it is older than the maximum age, measured in
+ * watermarks behind the most recent commit. The most recent version is always retained.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class VersionRetentionPolicy {
+
+	private final int maxVersions;
+
+	private final long maxAge;
+
+	private VersionRetentionPolicy(Builder builder) {
+		this.maxVersions = builder.maxVersions;
+		this.maxAge = builder.maxAge;
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return a policy retaining every version
+	 */
+	public static VersionRetentionPolicy retainAll() {
+		return new Builder().build();
+	}
+
+	/**
+	 * @param versions the number of versions including the one in question and all committed after it
+	 * @param age      the watermark of the most recent commit minus the one of the version in question
+	 * @return whether the version stays queryable
+	 */
+	public boolean retains(int versions, long age) {
+		return versions <= maxVersions && age <= maxAge;
+	}
+
+
+	public static class Builder {
+
+		private int maxVersions = Integer.MAX_VALUE;
+
+		private long maxAge = Long.MAX_VALUE;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param maxVersions the number of most recent versions retained, at least 1
+		 * @return the builder
+		 */
+		public Builder maxVersions(int maxVersions) {
+			if (maxVersions < 1)
+				throw new IllegalArgumentException("At least one version has to be retained");
+			this.maxVersions = maxVersions;
+			return this;
+		}
+
+		/**
+		 * @param maxAge the distance in watermarks behind the most recent commit up to which versions are retained
+		 * @return the builder
+		 */
+		public Builder maxAge(long maxAge) {
+			if (maxAge < 0)
+				throw new IllegalArgumentException("The maximum age must not be negative");
+			this.maxAge = maxAge;
+			return this;
+		}
+
+		public VersionRetentionPolicy build() {
+			return new VersionRetentionPolicy(this);
+		}
+	}
+}
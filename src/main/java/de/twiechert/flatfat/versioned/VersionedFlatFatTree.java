@@ -0,0 +1,607 @@
+package de.twiechert.flatfat.versioned;
+
+import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.Mergeable;
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.node.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A FlatFAT heap whose commits produce persistent versions, e.g. to answer what the aggregate of a range was as the
+ * tree stood at a watermark, after late slices have changed it since. The heap is kept as linked nodes instead of an
+ * array, and an update copies the path from the changed leaf to the root, while all other subtrees are shared with the
+ * committed versions. Nodes copied since the last commit are updated in place, hence a version costs O(log n) nodes
+ * per updated leaf at most. Committed versions are never modified and stay queryable until the retention policy
+ * releases them, which leaves their nodes not shared with retained versions to the garbage collector.
+ * <p>
+ * Leafs are addressed by slots numbered in the order of the slices, such that appending and evicting slices does not
+ * move the other ones. The heap grows by adding a new root above the current one, so its height is logarithmic in the
+ * number of slots ever used, while evicted subtrees are released.
+ * <p>
+ * Raw event slices are aggregated as a whole, i.e. they are copied as partial aggregates when updated.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class VersionedFlatFatTree<IN, ACC> {
+
+	private final StateFactory<IN, ACC> stateFactory;
+
+	private final VersionRetentionPolicy retentionPolicy;
+
+	/**
+	 * The committed versions by the watermark they were committed at
+	 */
+	private final TreeMap<Long, Version> versions = new TreeMap<>();
+
+	private HeapNode<IN, ACC> root;
+
+	/**
+	 * The heap holds 2^height slots
+	 */
+	private int height = 0;
+
+	/**
+	 * The slot of the oldest slice
+	 */
+	private long firstSlot = 0;
+
+	/**
+	 * The slot following the newest slice
+	 */
+	private long nextSlot = 0;
+
+	/**
+	 * Nodes carrying this stamp are not part of any committed version yet, hence they are updated in place
+	 */
+	private long stamp = 0;
+
+
+	private VersionedFlatFatTree(Builder<IN, ACC> builder) {
+		this.stateFactory = builder.stateFactory;
+		this.retentionPolicy = builder.retentionPolicy;
+	}
+
+
+	/**
+	 * @param slice the slice to append, it is owned by the tree afterwards
+	 * @throws Exception in case the aggregates cannot be recomputed
+	 */
+	public void add(Node<IN, ACC> slice) throws Exception {
+		if (nextSlot > firstSlot && slice.getStart() < this.getSlice(nextSlot - 1).getEnd()) {
+			this.addPotentiallyOutOfOrder(slice);
+			return;
+		}
+
+		this.growFor(nextSlot);
+		root = this.set(root, height, nextSlot++, slice, true, true);
+	}
+
+
+	/**
+	 * Inserts the slice after the last slice starting at or before it, which moves the subsequent slices by one slot
+	 * and copies their paths, i.e. O(k + log n) nodes for the k subsequent slices
+	 *
+	 * @param slice the slice to insert, it is owned by the tree afterwards
+	 * @throws Exception in case the aggregates cannot be recomputed
+	 */
+	public void addPotentiallyOutOfOrder(Node<IN, ACC> slice) throws Exception {
+		long predecessor = this.lastStartingAtOrBefore(root, height, 0, slice.getStart());
+		long slot = Math.max(predecessor + 1, firstSlot);
+		if (slot == nextSlot) {
+			this.growFor(nextSlot);
+			root = this.set(root, height, nextSlot++, slice, true, true);
+			return;
+		}
+
+		List<Node<IN, ACC>> shifted = new ArrayList<>();
+		for (long i = slot; i < nextSlot; i++) {
+			shifted.add(this.getSlice(i));
+		}
+		this.growFor(nextSlot);
+		root = this.set(root, height, slot, slice, false, true);
+		for (int i = 0; i < shifted.size(); i++) {
+			// the moved slices might be shared with committed versions
+			root = this.set(root, height, slot + 1 + i, shifted.get(i), false, false);
+		}
+		nextSlot++;
+		this.recompute(root, height, 0, slot, nextSlot - 1);
+	}
+
+
+	/**
+	 * Adds a late event to the slice covering its event time, see {@link FlatFatTree#addToSlice(long, Object)}
+	 *
+	 * @param eventTime the time of the event
+	 * @param value     the event
+	 * @return whether a slice covers the event time, otherwise the caller has to add a slice for the event
+	 * @throws Exception in case the event cannot be added to the state
+	 */
+	public boolean addToSlice(long eventTime, IN value) throws Exception {
+		long slot = this.writableSlotAt(eventTime);
+		if (slot < 0)
+			return false;
+
+		this.getLeaf(slot).aggregate.getValueState().add(value);
+		this.sliceChanged(slot, eventTime, 1);
+		return true;
+	}
+
+
+	/**
+	 * Merges a partial aggregate of late events into the slice covering their event time, see
+	 * {@link FlatFatTree#mergeIntoSlice(long, Mergeable, long)}
+	 *
+	 * @param eventTime  the time of the latest event of the partial aggregate
+	 * @param partial    the partial aggregate, which is not modified
+	 * @param eventCount the number of events of the partial aggregate
+	 * @return whether a slice covers the event time, otherwise the caller has to add a slice for the events
+	 * @throws Exception in case the states cannot be merged
+	 */
+	public boolean mergeIntoSlice(long eventTime, Mergeable<IN, ACC> partial, long eventCount) throws Exception {
+		long slot = this.writableSlotAt(eventTime);
+		if (slot < 0)
+			return false;
+
+		this.getLeaf(slot).aggregate.getValueState().merge(partial);
+		this.sliceChanged(slot, eventTime, eventCount);
+		return true;
+	}
+
+
+	/**
+	 * Evicts all slices up to the position from the working version, committed versions keep them
+	 *
+	 * @param leafPosition the position of the last slice to evict
+	 * @throws Exception in case the aggregates cannot be recomputed
+	 */
+	public void removeUpTo(int leafPosition) throws Exception {
+		long slot = Math.min(firstSlot + leafPosition + 1, nextSlot);
+		if (slot <= firstSlot)
+			return;
+
+		root = this.clearBefore(root, height, 0, slot);
+		firstSlot = slot;
+	}
+
+
+	/**
+	 * Freezes the working version, further updates copy the paths they change
+	 *
+	 * @param watermark the watermark the version is retrieved by, not smaller than the one of the previous commit
+	 * @return the committed version
+	 */
+	public Version commit(long watermark) {
+		if (!versions.isEmpty() && watermark < versions.lastKey())
+			throw new IllegalArgumentException("Versions have to be committed in the order of their watermarks");
+
+		Version version = new Version(root, height, firstSlot, nextSlot, watermark);
+		versions.put(watermark, version);
+		stamp++;
+
+		int retained = versions.size();
+		while (retained > 1 && !retentionPolicy.retains(retained, watermark - versions.firstKey())) {
+			versions.pollFirstEntry();
+			retained--;
+		}
+		return version;
+	}
+
+
+	/**
+	 * @param watermark the watermark to look up
+	 * @return the most recent version committed at or before the watermark or null if there is none, or it was
+	 * released already
+	 */
+	public Version asOf(long watermark) {
+		Map.Entry<Long, Version> entry = versions.floorEntry(watermark);
+		return (entry != null) ? entry.getValue() : null;
+	}
+
+
+	/**
+	 * @return the number of committed versions retained
+	 */
+	public int getVersionCount() {
+		return versions.size();
+	}
+
+
+	/**
+	 * @see Version#aggregateFromTo(long, long)
+	 */
+	public Node<IN, ACC> aggregateFromTo(long startTime, long endTime) throws Exception {
+		return this.head().aggregateFromTo(startTime, endTime);
+	}
+
+
+	/**
+	 * @see Version#aggregateFromTo(int, int)
+	 */
+	public Node<IN, ACC> aggregateFromTo(int startPosition, int endPosition) throws Exception {
+		return this.head().aggregateFromTo(startPosition, endPosition);
+	}
+
+
+	/**
+	 * @param leafPosition the position of the slice
+	 * @return the slice, which must not be modified, or null if there is none
+	 */
+	public Node<IN, ACC> getNode(int leafPosition) {
+		return this.head().getNode(leafPosition);
+	}
+
+
+	public int getCurrentLeafCount() {
+		return (int) (nextSlot - firstSlot);
+	}
+
+
+	private Version head() {
+		return new Version(root, height, firstSlot, nextSlot, Long.MAX_VALUE);
+	}
+
+
+	private Node<IN, ACC> getSlice(long slot) {
+		HeapNode<IN, ACC> node = root;
+		for (int level = height; node != null && level > 0; level--) {
+			node = ((slot & (1L << (level - 1))) == 0) ? node.left : node.right;
+		}
+		return (node != null) ? node.aggregate : null;
+	}
+
+
+	/**
+	 * @return the slot of the slice covering the event time, whose slice can be updated in place afterwards, or -1 if
+	 * no slice covers it
+	 */
+	private long writableSlotAt(long eventTime) throws Exception {
+		long slot = this.lastStartingAtOrBefore(root, height, 0, eventTime);
+		if (slot < firstSlot || eventTime >= this.getSlice(slot).getEnd())
+			return -1;
+
+		HeapNode<IN, ACC> leaf = this.getLeaf(slot);
+		if (leaf.stamp != stamp || !leaf.ownsSlice) {
+			// the slice is shared with a committed version, its ancestors are recomputed once it is updated
+			root = this.set(root, height, slot, new Node.InnerNode<>(leaf.aggregate, stateFactory), false, true);
+		}
+		return slot;
+	}
+
+
+	private void sliceChanged(long slot, long eventTime, long eventCount) throws Exception {
+		Node<IN, ACC> slice = this.getLeaf(slot).aggregate;
+		slice.setTmax(Math.max(slice.getTmax(), eventTime));
+		slice.setCount(slice.getCount() + eventCount);
+		this.recompute(root, height, 0, slot, slot);
+	}
+
+
+	private HeapNode<IN, ACC> getLeaf(long slot) {
+		HeapNode<IN, ACC> node = root;
+		for (int level = height; level > 0; level--) {
+			node = ((slot & (1L << (level - 1))) == 0) ? node.left : node.right;
+		}
+		return node;
+	}
+
+
+	/**
+	 * Adds roots above the current one until the slot fits into the heap
+	 */
+	private void growFor(long slot) {
+		while (slot >= (1L << height)) {
+			if (root != null) {
+				HeapNode<IN, ACC> grown = new HeapNode<>(stamp);
+				grown.left = root;
+				grown.aggregate = root.aggregate;
+				root = grown;
+			}
+			height++;
+		}
+	}
+
+
+	/**
+	 * @return the node writable in the working version, i.e. the node itself or a copy of it
+	 */
+	private HeapNode<IN, ACC> writable(HeapNode<IN, ACC> node) {
+		if (node != null && node.stamp == stamp)
+			return node;
+
+		HeapNode<IN, ACC> copy = new HeapNode<>(stamp);
+		if (node != null) {
+			copy.left = node.left;
+			copy.right = node.right;
+			copy.aggregate = node.aggregate;
+		}
+		return copy;
+	}
+
+
+	/**
+	 * Sets the slice of a slot, copying the path to it
+	 *
+	 * @param recompute whether the aggregates along the path are recomputed, otherwise {@link #recompute} has to be
+	 *                  called for the slot afterwards
+	 * @param owned     whether the slice is referenced by no other leaf
+	 * @return the node replacing the given one
+	 */
+	private HeapNode<IN, ACC> set(HeapNode<IN, ACC> node, int level, long slot, Node<IN, ACC> slice, boolean recompute,
+								  boolean owned) throws Exception {
+		HeapNode<IN, ACC> copy = this.writable(node);
+		if (level == 0) {
+			copy.aggregate = slice;
+			copy.ownsSlice = owned;
+			return copy;
+		}
+
+		if ((slot & (1L << (level - 1))) == 0)
+			copy.left = this.set(copy.left, level - 1, slot, slice, recompute, owned);
+		else copy.right = this.set(copy.right, level - 1, slot, slice, recompute, owned);
+
+		if (recompute)
+			copy.aggregate = this.combine(copy.left, copy.right);
+		return copy;
+	}
+
+
+	/**
+	 * Recomputes the aggregates of the nodes covering the slots, which have to be writable already
+	 */
+	private void recompute(HeapNode<IN, ACC> node, int level, long base, long from, long to) throws Exception {
+		if (node == null || level == 0 || base > to || base + (1L << level) - 1 < from)
+			return;
+
+		long half = 1L << (level - 1);
+		this.recompute(node.left, level - 1, base, from, to);
+		this.recompute(node.right, level - 1, base + half, from, to);
+		node.aggregate = this.combine(node.left, node.right);
+	}
+
+
+	/**
+	 * @return the node replacing the given one without the slots before the given slot
+	 */
+	private HeapNode<IN, ACC> clearBefore(HeapNode<IN, ACC> node, int level, long base, long slot) throws Exception {
+		if (node == null || base >= slot)
+			return node;
+		if (base + (1L << level) <= slot)
+			return null;
+
+		HeapNode<IN, ACC> copy = this.writable(node);
+		long half = 1L << (level - 1);
+		copy.left = this.clearBefore(copy.left, level - 1, base, slot);
+		copy.right = this.clearBefore(copy.right, level - 1, base + half, slot);
+		if (copy.left == null && copy.right == null)
+			return null;
+
+		copy.aggregate = this.combine(copy.left, copy.right);
+		return copy;
+	}
+
+
+	/**
+	 * The slices are ordered, hence the answer lies in the right subtree whenever its first slice starts at or before
+	 * the timestamp, which keeps the descent on a single path
+	 *
+	 * @return the slot of the last slice starting at or before the timestamp or -1 if there is none
+	 */
+	private long lastStartingAtOrBefore(HeapNode<IN, ACC> node, int level, long base, long timestamp) {
+		while (node != null && node.aggregate.getStart() <= timestamp) {
+			if (level == 0)
+				return base;
+
+			long half = 1L << (level - 1);
+			if (node.right != null && node.right.aggregate.getStart() <= timestamp) {
+				node = node.right;
+				base += half;
+			} else {
+				node = node.left;
+			}
+			level--;
+		}
+		return -1;
+	}
+
+
+	private Node<IN, ACC> combine(HeapNode<IN, ACC> left, HeapNode<IN, ACC> right) throws Exception {
+		if (left == null)
+			return (right != null) ? right.aggregate : null;
+		if (right == null)
+			return left.aggregate;
+
+		Node<IN, ACC> agg = new Node.InnerNode<>(stateFactory.getState(), left.aggregate.getStart(), right.aggregate.getEnd());
+		agg.getValueState().merge(left.aggregate.getValueState()).merge(right.aggregate.getValueState());
+		agg.setTmax(Math.max(left.aggregate.getTmax(), right.aggregate.getTmax()));
+		agg.setCount(left.aggregate.getCount() + right.aggregate.getCount());
+		return agg;
+	}
+
+
+	/**
+	 * Merges the node into the aggregate, which is created by copying the node if it is null
+	 *
+	 * @return the aggregate
+	 */
+	private Node<IN, ACC> mergeInto(Node<IN, ACC> agg, Node<IN, ACC> node) throws Exception {
+		if (agg == null)
+			return new Node.InnerNode<>(node, stateFactory);
+
+		agg.getValueState().merge(node.getValueState());
+		agg.setEnd(node.getEnd());
+		agg.setTmax(Math.max(agg.getTmax(), node.getTmax()));
+		agg.setCount(agg.getCount() + node.getCount());
+		return agg;
+	}
+
+
+	/**
+	 * A version of the tree as it stood when it was committed, which is never modified
+	 */
+	public class Version {
+
+		private final HeapNode<IN, ACC> root;
+
+		private final int height;
+
+		private final long firstSlot;
+
+		private final long nextSlot;
+
+		private final long watermark;
+
+		private Version(HeapNode<IN, ACC> root, int height, long firstSlot, long nextSlot, long watermark) {
+			this.root = root;
+			this.height = height;
+			this.firstSlot = firstSlot;
+			this.nextSlot = nextSlot;
+			this.watermark = watermark;
+		}
+
+		/**
+		 * Aggregates the slices with <code>startTime &lt;= start</code> and <code>tmax &lt; endTime</code>, as
+		 * {@link FlatFatTree#aggregateFromTo(long, long)} does, by descending into the O(log n) subtrees covering
+		 * them
+		 *
+		 * @param startTime the start of the range
+		 * @param endTime   the end of the range
+		 * @return the aggregate of the range
+		 * @throws Exception in case the states cannot be merged
+		 */
+		public Node<IN, ACC> aggregateFromTo(long startTime, long endTime) throws Exception {
+			Node<IN, ACC> agg = this.aggregateTimes(root, height, startTime, endTime, null);
+			return (agg != null) ? agg : new Node.InnerNode<>(stateFactory.getState(), startTime, endTime);
+		}
+
+		/**
+		 * @param startPosition the position of the first slice
+		 * @param endPosition   the position of the last slice
+		 * @return the aggregate of the slices
+		 * @throws Exception in case the states cannot be merged
+		 */
+		public Node<IN, ACC> aggregateFromTo(int startPosition, int endPosition) throws Exception {
+			long from = firstSlot + Math.max(startPosition, 0);
+			long to = Math.min(firstSlot + endPosition, nextSlot - 1);
+			Node<IN, ACC> agg = this.aggregateSlots(root, height, 0, from, to, null);
+			return (agg != null) ? agg : new Node.InnerNode<>(stateFactory.getState());
+		}
+
+		/**
+		 * @param leafPosition the position of the slice
+		 * @return the slice, which must not be modified, or null if there is none
+		 */
+		public Node<IN, ACC> getNode(int leafPosition) {
+			long slot = firstSlot + leafPosition;
+			if (leafPosition < 0 || slot >= nextSlot)
+				return null;
+
+			HeapNode<IN, ACC> node = root;
+			for (int level = height; node != null && level > 0; level--) {
+				node = ((slot & (1L << (level - 1))) == 0) ? node.left : node.right;
+			}
+			return (node != null) ? node.aggregate : null;
+		}
+
+		public int getCurrentLeafCount() {
+			return (int) (nextSlot - firstSlot);
+		}
+
+		/**
+		 * @return the watermark the version was committed at
+		 */
+		public long getWatermark() {
+			return watermark;
+		}
+
+		private Node<IN, ACC> aggregateTimes(HeapNode<IN, ACC> node, int level, long startTime, long endTime, Node<IN, ACC> agg) throws Exception {
+			if (node == null)
+				return agg;
+
+			Node<IN, ACC> aggregate = node.aggregate;
+			if (aggregate.getEnd() <= startTime || aggregate.getStart() >= endTime)
+				return agg;
+			if (aggregate.getStart() >= startTime && aggregate.getTmax() < endTime)
+				return mergeInto(agg, aggregate);
+			if (level == 0)
+				return agg;
+
+			agg = this.aggregateTimes(node.left, level - 1, startTime, endTime, agg);
+			return this.aggregateTimes(node.right, level - 1, startTime, endTime, agg);
+		}
+
+		private Node<IN, ACC> aggregateSlots(HeapNode<IN, ACC> node, int level, long base, long from, long to, Node<IN, ACC> agg) throws Exception {
+			if (node == null || base > to || base + (1L << level) - 1 < from)
+				return agg;
+			if (from <= base && base + (1L << level) - 1 <= to)
+				return mergeInto(agg, node.aggregate);
+
+			long half = 1L << (level - 1);
+			agg = this.aggregateSlots(node.left, level - 1, base, from, to, agg);
+			return this.aggregateSlots(node.right, level - 1, base + half, from, to, agg);
+		}
+	}
+
+
+	/**
+	 * A node of the heap, which holds a slice if it is a leaf and the aggregate of its subtree otherwise
+	 */
+	private static class HeapNode<IN, ACC> {
+
+		/**
+		 * The version counter of the tree when the node was created
+		 */
+		private final long stamp;
+
+		private HeapNode<IN, ACC> left;
+
+		private HeapNode<IN, ACC> right;
+
+		private Node<IN, ACC> aggregate;
+
+		/**
+		 * Whether the slice of the leaf is referenced by no other leaf, hence it may be updated in place
+		 */
+		private boolean ownsSlice = false;
+
+		private HeapNode(long stamp) {
+			this.stamp = stamp;
+		}
+	}
+
+
+	public static class Builder<IN, ACC> {
+
+		private final StateFactory<IN, ACC> stateFactory;
+
+		private VersionRetentionPolicy retentionPolicy = VersionRetentionPolicy.retainAll();
+
+		private Builder(StateFactory<IN, ACC> stateFactory) {
+			this.stateFactory = stateFactory;
+		}
+
+		/**
+		 * @param stateFactory the state factory of the partial aggregates
+		 * @return the builder
+		 */
+		public static <IN, ACC> Builder<IN, ACC> newBuilder(StateFactory<IN, ACC> stateFactory) {
+			return new Builder<>(stateFactory);
+		}
+
+		/**
+		 * @param retentionPolicy decides which committed versions stay queryable, all of them by default
+		 * @return the builder
+		 */
+		public Builder<IN, ACC> retentionPolicy(VersionRetentionPolicy retentionPolicy) {
+			this.retentionPolicy = retentionPolicy;
+			return this;
+		}
+
+		public VersionedFlatFatTree<IN, ACC> build() {
+			return new VersionedFlatFatTree<>(this);
+		}
+	}
+}
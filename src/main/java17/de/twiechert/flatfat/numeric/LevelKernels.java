@@ -0,0 +1,21 @@
+package de.twiechert.flatfat.numeric;
+
+/**
+ * Selects the level kernel of the running JVM. The vectorized kernel requires the incubating Vector API, i.e.
+ * the JVM has to be started with <code>--add-modules jdk.incubator.vector</code>, otherwise the scalar kernel is used.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public final class LevelKernels {
+
+	private LevelKernels() {
+	}
+
+	public static LevelKernel get() {
+		try {
+			return new VectorLevelKernel();
+		} catch (LinkageError e) {
+			return new LevelKernel.ScalarLevelKernel();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package de.twiechert.flatfat.numeric;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Recomputes a level with SIMD lanes. The children of <code>L</code> consecutive parents are <code>2L</code>
+ * consecutive values, which are loaded as two vectors and split into left (even) and right (odd) lanes.
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+final class VectorLevelKernel implements LevelKernel {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	/**
+	 * Move the even (odd) lanes of a vector into its lower half, respectively into its upper half
+	 */
+	private final VectorShuffle<Double> evenToLow, oddToLow, evenToHigh, oddToHigh;
+
+	private final VectorMask<Double> highHalf;
+
+	private final LevelKernel scalarKernel = new LevelKernel.ScalarLevelKernel();
+
+	VectorLevelKernel() {
+		int lanes = SPECIES.length();
+		int half = lanes / 2;
+		int[] evenLow = new int[lanes], oddLow = new int[lanes], evenHigh = new int[lanes], oddHigh = new int[lanes];
+		boolean[] high = new boolean[lanes];
+		for (int i = 0; i < lanes; i++) {
+			evenLow[i] = (2 * i) % lanes;
+			oddLow[i] = (2 * i + 1) % lanes;
+			evenHigh[i] = (2 * (i - half) + lanes) % lanes;
+			oddHigh[i] = (2 * (i - half) + 1 + lanes) % lanes;
+			high[i] = i >= half;
+		}
+		this.evenToLow = VectorShuffle.fromArray(SPECIES, evenLow, 0);
+		this.oddToLow = VectorShuffle.fromArray(SPECIES, oddLow, 0);
+		this.evenToHigh = VectorShuffle.fromArray(SPECIES, evenHigh, 0);
+		this.oddToHigh = VectorShuffle.fromArray(SPECIES, oddHigh, 0);
+		this.highHalf = VectorMask.fromArray(SPECIES, high, 0);
+	}
+
+	@Override
+	public void combineLevel(double[] heap, int firstParent, int lastParent, NumericOperator operator) {
+		// C2 already vectorizes the scalar sum loop, the lane shuffles would only add to it
+		if (operator == NumericOperator.SUM) {
+			scalarKernel.combineLevel(heap, firstParent, lastParent, operator);
+			return;
+		}
+
+		int lanes = SPECIES.length();
+		int p = firstParent;
+		for (; p + lanes - 1 <= lastParent; p += lanes) {
+			int firstChild = 2 * p + 1;
+			DoubleVector low = DoubleVector.fromArray(SPECIES, heap, firstChild);
+			DoubleVector high = DoubleVector.fromArray(SPECIES, heap, firstChild + lanes);
+			DoubleVector left = low.rearrange(evenToLow).blend(high.rearrange(evenToHigh), highHalf);
+			DoubleVector right = low.rearrange(oddToLow).blend(high.rearrange(oddToHigh), highHalf);
+
+			DoubleVector result = (operator == NumericOperator.MIN) ? left.min(right) : left.max(right);
+			result.intoArray(heap, p);
+		}
+		scalarKernel.combineLevel(heap, p, lastParent, operator);
+	}
+}
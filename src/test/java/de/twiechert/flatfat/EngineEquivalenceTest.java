@@ -0,0 +1,183 @@
+package de.twiechert.flatfat;
+
+import de.twiechert.flatfat.node.Node;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the same random sequences of in-order and out-of-order adds, removals, evictions, merges and late events on
+ * both engines and expects the same slices and aggregates from either
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class EngineEquivalenceTest {
+
+	private static final long SLICE_LENGTH = 10;
+
+	private static final StateFactory<Long, Long> SUM = new StateFactory<Long, Long>() {
+		@Override
+		public Mergeable<Long, Long> getState() {
+			return new Sum();
+		}
+	};
+
+
+	@Test
+	public void enginesAgreeOnRandomSequences() throws Exception {
+		for (int fibaMaxArity : new int[]{4, 8}) {
+			for (long seed = 0; seed < 20; seed++) {
+				runSequence(seed, fibaMaxArity);
+			}
+		}
+	}
+
+
+	private void runSequence(long seed, int fibaMaxArity) throws Exception {
+		Random random = new Random(seed);
+		FlatFatTree<Long, Long> flatFat = FlatFatTree.Builder.newBuilder(SUM).capacity(4)
+				.engine(FlatFatTree.Builder.Engine.FLAT_FAT).build();
+		FlatFatTree<Long, Long> fiba = FlatFatTree.Builder.newBuilder(SUM).capacity(4)
+				.engine(FlatFatTree.Builder.Engine.FIBA).fibaMaxArity(fibaMaxArity).build();
+
+		// the next slice in order starts a gap of up to two slice lengths after the newest one
+		long nextStart = 0;
+		for (int step = 0; step < 400; step++) {
+			String operation;
+			int leafs = flatFat.getCurrentLeafCount();
+			int kind = random.nextInt(10);
+			if (kind < 4 || leafs < 4) {
+				operation = "add " + nextStart;
+				long value = random.nextInt(100);
+				flatFat.add(slice(nextStart, value), true);
+				fiba.add(slice(nextStart, value), true);
+				nextStart += SLICE_LENGTH * (1 + random.nextInt(3));
+			} else if (kind < 6) {
+				long gapStart = gapStart(flatFat, random.nextInt(leafs - 1));
+				operation = "out-of-order add " + gapStart;
+				if (gapStart < 0)
+					continue;
+				long value = random.nextInt(100);
+				flatFat.addPotentiallyOutOfOrder(slice(gapStart, value), true);
+				fiba.addPotentiallyOutOfOrder(slice(gapStart, value), true);
+			} else if (kind == 6) {
+				int position = random.nextInt(leafs);
+				operation = "remove " + position;
+				flatFat.remove(position);
+				fiba.remove(position);
+			} else if (kind == 7) {
+				int position = random.nextInt(leafs / 4);
+				operation = "remove up to " + position;
+				flatFat.removeUpTo(position);
+				fiba.removeUpTo(position);
+			} else if (kind == 8) {
+				int position = random.nextInt(leafs - 1);
+				operation = "merge " + position;
+				flatFat.mergeLeaves(position, position + 1);
+				fiba.mergeLeaves(position, position + 1);
+			} else {
+				Node<Long, Long> covering = flatFat.getNode(random.nextInt(leafs));
+				long eventTime = covering.getStart() + random.nextInt((int) (covering.getEnd() - covering.getStart()));
+				long value = random.nextInt(100);
+				operation = "late event " + eventTime;
+				assertEquals(operation, flatFat.addToSlice(eventTime, value), fiba.addToSlice(eventTime, value));
+			}
+
+			String context = "seed " + seed + ", arity " + fibaMaxArity + ", step " + step + ", " + operation;
+			assertSameSlices(context, flatFat, fiba);
+			assertSameAggregates(context, random, flatFat, fiba);
+		}
+	}
+
+
+	/**
+	 * @return the start of the gap after the slice at the position or -1 if it is followed without a gap
+	 */
+	private static long gapStart(FlatFatTree<Long, Long> tree, int position) {
+		long end = tree.getNode(position).getEnd();
+		return (tree.getNode(position + 1).getStart() - end >= SLICE_LENGTH) ? end : -1;
+	}
+
+
+	private static void assertSameSlices(String context, FlatFatTree<Long, Long> expected, FlatFatTree<Long, Long> actual) throws Exception {
+		assertEquals(context, expected.getCurrentLeafCount(), actual.getCurrentLeafCount());
+		for (int position = 0; position < expected.getCurrentLeafCount(); position++) {
+			Node<Long, Long> expectedSlice = expected.getNode(position);
+			Node<Long, Long> actualSlice = actual.getNode(position);
+			assertArrayEquals(context + ", position " + position,
+					new long[]{expectedSlice.getStart(), expectedSlice.getEnd(), expectedSlice.getTmax(), expectedSlice.getCount(), expectedSlice.getValueState().get()},
+					new long[]{actualSlice.getStart(), actualSlice.getEnd(), actualSlice.getTmax(), actualSlice.getCount(), actualSlice.getValueState().get()});
+		}
+	}
+
+
+	private static void assertSameAggregates(String context, Random random, FlatFatTree<Long, Long> expected, FlatFatTree<Long, Long> actual) throws Exception {
+		int leafs = expected.getCurrentLeafCount();
+		if (leafs == 0)
+			return;
+
+		for (int query = 0; query < 5; query++) {
+			int startPosition = random.nextInt(leafs);
+			int endPosition = startPosition + random.nextInt(leafs - startPosition);
+			assertSameAggregate(context + ", positions " + startPosition + ".." + endPosition,
+					expected.aggregateFromTo(startPosition, endPosition), actual.aggregateFromTo(startPosition, endPosition));
+
+			// time ranges may start and end within slices or gaps
+			long startTime = expected.getNode(startPosition).getStart() - random.nextInt((int) SLICE_LENGTH);
+			long endTime = expected.getNode(endPosition).getEnd() + random.nextInt((int) SLICE_LENGTH);
+			assertSameAggregate(context + ", times " + startTime + ".." + endTime,
+					expected.aggregateFromTo(startTime, endTime), actual.aggregateFromTo(startTime, endTime));
+		}
+	}
+
+
+	private static void assertSameAggregate(String context, Node<Long, Long> expected, Node<Long, Long> actual) throws Exception {
+		assertEquals(context, expected.getValueState().get(), actual.getValueState().get());
+		assertEquals(context, expected.getCount(), actual.getCount());
+	}
+
+
+	private static Node<Long, Long> slice(long start, long value) throws Exception {
+		Mergeable<Long, Long> state = SUM.getState();
+		state.add(value);
+		Node.InnerNode<Long, Long> slice = new Node.InnerNode<>(state, start, start + SLICE_LENGTH);
+		slice.setTmax(start + SLICE_LENGTH - 1);
+		slice.setCount(1);
+		return slice;
+	}
+
+
+	private static class Sum implements Mergeable<Long, Long> {
+
+		private long sum = 0;
+
+		private boolean empty = true;
+
+		@Override
+		public Mergeable<Long, Long> merge(Mergeable<Long, Long> other) {
+			Sum otherState = (Sum) other;
+			this.sum += otherState.sum;
+			this.empty &= otherState.empty;
+			return this;
+		}
+
+		@Override
+		public Long get() {
+			return sum;
+		}
+
+		@Override
+		public void add(Long value) {
+			this.sum += value;
+			this.empty = false;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return empty;
+		}
+	}
+}
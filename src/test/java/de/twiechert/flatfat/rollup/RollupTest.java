@@ -0,0 +1,244 @@
+package de.twiechert.flatfat.rollup;
+
+import de.twiechert.flatfat.FlatFatTree;
+import de.twiechert.flatfat.Mergeable;
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.node.Node;
+import de.twiechert.flatfat.tiered.StateSerializer;
+import org.javatuples.Pair;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Rolls up the trees of workers, which are stood in for by trees fed in process, and ships trees through the
+ * {@link TreeWireFormat}
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class RollupTest {
+
+	private static final long SLICE_LENGTH = 10;
+
+	private static final StateFactory<Long, Long> SUM = new StateFactory<Long, Long>() {
+		@Override
+		public Mergeable<Long, Long> getState() {
+			return new Sum();
+		}
+	};
+
+	private static final StateSerializer<Long, Long> SERIALIZER = new StateSerializer<Long, Long>() {
+		@Override
+		public byte[] serialize(Mergeable<Long, Long> state) throws Exception {
+			return ByteBuffer.allocate(9).put((byte) (state.isEmpty() ? 1 : 0)).putLong(state.get()).array();
+		}
+
+		@Override
+		public Mergeable<Long, Long> deserialize(byte[] bytes) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			Sum state = new Sum();
+			state.empty = buffer.get() == 1;
+			state.sum = buffer.getLong();
+			return state;
+		}
+	};
+
+
+	@Test
+	public void mergedWorkerTreesMatchASingleTreeFedEveryEvent() throws Exception {
+		for (FlatFatTree.Builder.Engine engine : FlatFatTree.Builder.Engine.values()) {
+			Random random = new Random(45);
+			List<List<long[]>> workerEvents = new ArrayList<>();
+			for (int worker = 0; worker < 3; worker++) {
+				workerEvents.add(new ArrayList<long[]>());
+			}
+			List<long[]> allEvents = new ArrayList<>();
+			for (long time = 0; time < 1000; time += 1 + random.nextInt(3)) {
+				long[] event = {time, random.nextInt(100)};
+				// the oldest slices are only seen by the first worker, so the roll-up also copies disjoint slices
+				workerEvents.get(time < 100 ? 0 : random.nextInt(3)).add(event);
+				allEvents.add(event);
+			}
+
+			FlatFatTree<Long, Long> reference = tree(engine);
+			feed(reference, allEvents);
+			FlatFatTree<Long, Long> rolledUp = tree(engine);
+			for (List<long[]> events : workerEvents) {
+				FlatFatTree<Long, Long> worker = tree(engine);
+				feed(worker, events);
+				rolledUp.merge(worker);
+			}
+
+			assertSameSlices(reference, rolledUp);
+			for (int i = 0; i < 50; i++) {
+				long startTime = random.nextInt(1000);
+				long endTime = startTime + random.nextInt(500);
+				Node<Long, Long> expected = reference.aggregateFromTo(startTime, endTime);
+				Node<Long, Long> actual = rolledUp.aggregateFromTo(startTime, endTime);
+				assertEquals(expected.getValueState().get(), actual.getValueState().get());
+				assertEquals(expected.getCount(), actual.getCount());
+			}
+		}
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void mergeRejectsUnalignedSlices() throws Exception {
+		FlatFatTree<Long, Long> tree = tree(FlatFatTree.Builder.Engine.FLAT_FAT);
+		tree.add(slice(0, 10, 9, 1L), true);
+		FlatFatTree<Long, Long> other = tree(FlatFatTree.Builder.Engine.FLAT_FAT);
+		other.add(slice(5, 15, 14, 1L), true);
+
+		tree.merge(other);
+	}
+
+
+	@Test
+	public void decodeRestoresBoundsTmaxCountsAndStates() throws Exception {
+		FlatFatTree<Long, Long> tree = tree(FlatFatTree.Builder.Engine.FLAT_FAT);
+		// gaps, varying lengths, negative times and tmax values before the end of their slice
+		tree.add(slice(-40, -30, -35, 3L), true);
+		tree.add(slice(-30, -10, -11, 1L, 2L, 3L), true);
+		tree.add(slice(0, 10, 0, 100000L), true);
+		tree.add(slice(10, 20, 19), true);
+		tree.add(slice(1000000, 1000010, 1000005, -7L, 7L, 42L), true);
+
+		TreeWireFormat<Long, Long> format = new TreeWireFormat<>(SERIALIZER);
+		Pair<Long, List<Node<Long, Long>>> decoded = format.decode(format.encode(tree));
+
+		assertEquals(Long.MIN_VALUE, (long) decoded.getValue0());
+		assertEquals(tree.getCurrentLeafCount(), decoded.getValue1().size());
+		for (int position = 0; position < tree.getCurrentLeafCount(); position++) {
+			assertSameSlice(tree.getNode(position), decoded.getValue1().get(position));
+		}
+	}
+
+
+	@Test
+	public void emptyTreesRoundTrip() throws Exception {
+		TreeWireFormat<Long, Long> format = new TreeWireFormat<>(SERIALIZER);
+		FlatFatTree<Long, Long> empty = tree(FlatFatTree.Builder.Engine.FLAT_FAT);
+		assertEquals(0, format.decode(format.encode(empty)).getValue1().size());
+
+		FlatFatTree<Long, Long> replica = tree(FlatFatTree.Builder.Engine.FLAT_FAT);
+		assertEquals(0, format.applyTo(format.encode(empty), replica));
+		assertEquals(0, replica.getCurrentLeafCount());
+	}
+
+
+	@Test
+	public void appliedSuffixesBringAStaleReplicaLevelWithItsSource() throws Exception {
+		TreeWireFormat<Long, Long> format = new TreeWireFormat<>(SERIALIZER);
+		Random random = new Random(7);
+		FlatFatTree<Long, Long> source = tree(FlatFatTree.Builder.Engine.FLAT_FAT);
+		FlatFatTree<Long, Long> replica = tree(FlatFatTree.Builder.Engine.FLAT_FAT);
+
+		long now = 0;
+		for (int round = 0; round < 20; round++) {
+			long shippedUpTo = now;
+			List<long[]> events = new ArrayList<>();
+			for (int i = 0; i < 30; i++) {
+				events.add(new long[]{now, random.nextInt(100)});
+				now += 1 + random.nextInt(3);
+			}
+			feed(source, events);
+
+			// late events change slices that were already shipped
+			long changedSince = shippedUpTo;
+			for (int i = 0; i < 5 && shippedUpTo > 0; i++) {
+				long late = Math.max(0, shippedUpTo - 1 - random.nextInt(20));
+				if (source.addToSlice(late, (long) random.nextInt(100)))
+					changedSince = Math.min(changedSince, late / SLICE_LENGTH * SLICE_LENGTH);
+			}
+
+			format.applyTo(format.encodeSuffix(source, changedSince), replica);
+			assertSameSlices(source, replica);
+		}
+
+		// nothing changed since the last shipment, so the suffix is empty and leaves the replica as it is
+		byte[] emptySuffix = format.encodeSuffix(source, now + SLICE_LENGTH);
+		assertEquals(0, format.decode(emptySuffix).getValue1().size());
+		assertEquals(0, format.applyTo(emptySuffix, replica));
+		assertSameSlices(source, replica);
+	}
+
+
+	private static FlatFatTree<Long, Long> tree(FlatFatTree.Builder.Engine engine) throws Exception {
+		return FlatFatTree.Builder.newBuilder(SUM).capacity(16).engine(engine).build();
+	}
+
+	/**
+	 * Adds the events ordered by time, each to the slice covering it, which is created if there is none yet
+	 */
+	private static void feed(FlatFatTree<Long, Long> tree, List<long[]> events) throws Exception {
+		for (long[] event : events) {
+			if (!tree.addToSlice(event[0], event[1])) {
+				long start = event[0] / SLICE_LENGTH * SLICE_LENGTH;
+				tree.add(slice(start, start + SLICE_LENGTH, event[0], event[1]), true);
+			}
+		}
+	}
+
+	private static Node<Long, Long> slice(long start, long end, long tmax, Long... values) throws Exception {
+		Mergeable<Long, Long> state = SUM.getState();
+		for (Long value : values) {
+			state.add(value);
+		}
+		Node.InnerNode<Long, Long> slice = new Node.InnerNode<>(state, start, end);
+		slice.setTmax(tmax);
+		slice.setCount(values.length);
+		return slice;
+	}
+
+	private static void assertSameSlices(FlatFatTree<Long, Long> expected, FlatFatTree<Long, Long> actual) throws Exception {
+		assertEquals(expected.getCurrentLeafCount(), actual.getCurrentLeafCount());
+		for (int position = 0; position < expected.getCurrentLeafCount(); position++) {
+			assertSameSlice(expected.getNode(position), actual.getNode(position));
+		}
+	}
+
+	private static void assertSameSlice(Node<Long, Long> expected, Node<Long, Long> actual) throws Exception {
+		assertArrayEquals(new long[]{expected.getStart(), expected.getEnd(), expected.getTmax(), expected.getCount()},
+				new long[]{actual.getStart(), actual.getEnd(), actual.getTmax(), actual.getCount()});
+		assertEquals(expected.getValueState().isEmpty(), actual.getValueState().isEmpty());
+		assertEquals(expected.getValueState().get(), actual.getValueState().get());
+	}
+
+
+	private static class Sum implements Mergeable<Long, Long> {
+
+		private long sum = 0;
+
+		private boolean empty = true;
+
+		@Override
+		public Mergeable<Long, Long> merge(Mergeable<Long, Long> other) {
+			Sum otherState = (Sum) other;
+			this.sum += otherState.sum;
+			this.empty &= otherState.empty;
+			return this;
+		}
+
+		@Override
+		public Long get() {
+			return sum;
+		}
+
+		@Override
+		public void add(Long value) {
+			this.sum += value;
+			this.empty = false;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return empty;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package de.twiechert.flatfat.versioned;
+
+import de.twiechert.flatfat.Mergeable;
+import de.twiechert.flatfat.StateFactory;
+import de.twiechert.flatfat.node.Node;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Changes the working version of a {@link VersionedFlatFatTree} after commits and expects the committed versions to
+ * answer as the tree stood when they were committed, until the retention policy releases them
+ *
+ * @author Tayfun Wiechert <wiechert@campus.tu-berlin.de>
+ */
+public class VersionedFlatFatTreeTest {
+
+	private static final long SLICE_LENGTH = 10;
+
+	private static final StateFactory<Long, Long> SUM = new StateFactory<Long, Long>() {
+		@Override
+		public Mergeable<Long, Long> getState() {
+			return new Sum();
+		}
+	};
+
+
+	@Test
+	public void committedVersionKeepsItsAggregatesWhileTheHeadChanges() throws Exception {
+		VersionedFlatFatTree<Long, Long> tree = VersionedFlatFatTree.Builder.newBuilder(SUM).build();
+		// the slices start every 20 time units and cover [0, 200) with gaps in between, each holds the value 1
+		for (long start = 0; start < 200; start += 2 * SLICE_LENGTH) {
+			tree.add(slice(start, 1L));
+		}
+		VersionedFlatFatTree<Long, Long>.Version committed = tree.commit(200);
+
+		assertEquals(1L, (long) tree.aggregateFromTo(40L, 60L).getValueState().get());
+		// a late event, a late partial aggregate, a slice filling a gap and an eviction
+		tree.addToSlice(45, 10L);
+		Sum partial = new Sum();
+		partial.add(100L);
+		tree.mergeIntoSlice(85, partial, 3);
+		tree.addPotentiallyOutOfOrder(slice(50, 1000L));
+		tree.removeUpTo(1);
+
+		assertEquals(10L, (long) committed.aggregateFromTo(0L, 200L).getValueState().get());
+		assertEquals(10L, committed.aggregateFromTo(0L, 200L).getCount());
+		assertEquals(1L, (long) committed.aggregateFromTo(40L, 60L).getValueState().get());
+		assertEquals(3L, (long) committed.aggregateFromTo(40L, 100L).getValueState().get());
+		assertEquals(10, committed.getCurrentLeafCount());
+		assertEquals(0L, committed.getNode(0).getStart());
+
+		assertEquals(1118L, (long) tree.aggregateFromTo(0L, 200L).getValueState().get());
+		assertEquals(13L, tree.aggregateFromTo(0L, 200L).getCount());
+		assertEquals(1011L, (long) tree.aggregateFromTo(40L, 60L).getValueState().get());
+		assertEquals(1113L, (long) tree.aggregateFromTo(40L, 100L).getValueState().get());
+		assertEquals(9, tree.getCurrentLeafCount());
+		assertEquals(40L, tree.getNode(0).getStart());
+
+		assertSame(committed, tree.asOf(200));
+		assertSame(committed, tree.asOf(250));
+		assertNull(tree.asOf(199));
+	}
+
+
+	@Test
+	public void versionsAnswerAsTheTreeStoodAtTheirCommit() throws Exception {
+		for (long seed = 0; seed < 10; seed++) {
+			Random random = new Random(seed);
+			VersionedFlatFatTree<Long, Long> tree = VersionedFlatFatTree.Builder.newBuilder(SUM).build();
+			List<long[]> slices = new ArrayList<>();
+			TreeMap<Long, List<long[]>> snapshots = new TreeMap<>();
+			long nextStart = 0;
+			long watermark = 0;
+
+			for (int step = 0; step < 300; step++) {
+				int kind = random.nextInt(10);
+				if (kind < 4 || slices.size() < 4) {
+					long value = random.nextInt(100);
+					tree.add(slice(nextStart, value));
+					slices.add(reference(nextStart, value));
+					nextStart += SLICE_LENGTH * (1 + random.nextInt(3));
+				} else if (kind == 4) {
+					int position = random.nextInt(slices.size() - 1);
+					long gapStart = slices.get(position)[1];
+					if (slices.get(position + 1)[0] - gapStart < SLICE_LENGTH)
+						continue;
+					long value = random.nextInt(100);
+					tree.addPotentiallyOutOfOrder(slice(gapStart, value));
+					slices.add(position + 1, reference(gapStart, value));
+				} else if (kind < 7) {
+					long[] covering = slices.get(random.nextInt(slices.size()));
+					long eventTime = covering[0] + random.nextInt((int) SLICE_LENGTH);
+					long value = random.nextInt(100);
+					if (kind == 5) {
+						tree.addToSlice(eventTime, value);
+						covering[4]++;
+					} else {
+						Sum partial = new Sum();
+						partial.add(value);
+						tree.mergeIntoSlice(eventTime, partial, 2);
+						covering[4] += 2;
+					}
+					covering[2] = Math.max(covering[2], eventTime);
+					covering[3] += value;
+				} else if (kind == 7) {
+					int position = random.nextInt(slices.size() / 4);
+					tree.removeUpTo(position);
+					slices.subList(0, position + 1).clear();
+				} else {
+					watermark += 1 + random.nextInt(50);
+					tree.commit(watermark);
+					snapshots.put(watermark, copy(slices));
+				}
+
+				String context = "seed " + seed + ", step " + step;
+				assertSameAggregates(context + ", head", random, slices, tree.aggregateFromTo(0L, Long.MAX_VALUE), tree, null);
+				for (Map.Entry<Long, List<long[]>> snapshot : snapshots.entrySet()) {
+					VersionedFlatFatTree<Long, Long>.Version version = tree.asOf(snapshot.getKey());
+					assertEquals(context, (long) snapshot.getKey(), version.getWatermark());
+					assertSameAggregates(context + ", version " + snapshot.getKey(), random, snapshot.getValue(),
+							version.aggregateFromTo(0L, Long.MAX_VALUE), null, version);
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void retentionPolicyReleasesVersionsByCountAndAge() throws Exception {
+		VersionedFlatFatTree<Long, Long> byCount = VersionedFlatFatTree.Builder.newBuilder(SUM)
+				.retentionPolicy(VersionRetentionPolicy.newBuilder().maxVersions(2).build()).build();
+		for (long watermark = 10; watermark <= 30; watermark += 10) {
+			byCount.add(slice(watermark, watermark));
+			byCount.commit(watermark);
+		}
+		assertEquals(2, byCount.getVersionCount());
+		assertNull(byCount.asOf(10));
+		assertEquals(30L, (long) byCount.asOf(20).aggregateFromTo(0L, 100L).getValueState().get());
+		assertEquals(60L, (long) byCount.asOf(30).aggregateFromTo(0L, 100L).getValueState().get());
+
+		VersionedFlatFatTree<Long, Long> byAge = VersionedFlatFatTree.Builder.newBuilder(SUM)
+				.retentionPolicy(VersionRetentionPolicy.newBuilder().maxAge(100).build()).build();
+		byAge.add(slice(0, 1L));
+		byAge.commit(0);
+		byAge.commit(50);
+		assertEquals(2, byAge.getVersionCount());
+		byAge.commit(101);
+		// the version at 0 is 101 behind the most recent commit, the one at 50 only 51
+		assertEquals(2, byAge.getVersionCount());
+		assertNull(byAge.asOf(49));
+		assertEquals(50L, byAge.asOf(100).getWatermark());
+
+		// the most recent version is retained, however old the others are
+		byAge.commit(1000);
+		assertEquals(1, byAge.getVersionCount());
+		assertEquals(1L, (long) byAge.asOf(1000).aggregateFromTo(0L, 100L).getValueState().get());
+	}
+
+
+	/**
+	 * Compares the whole range and random time and position ranges of either the head of the tree or a version with
+	 * the reference slices
+	 */
+	private static void assertSameAggregates(String context, Random random, List<long[]> slices, Node<Long, Long> whole,
+											 VersionedFlatFatTree<Long, Long> head, VersionedFlatFatTree<Long, Long>.Version version) throws Exception {
+		assertEquals(context, expectedSum(slices, 0, slices.size() - 1), (long) whole.getValueState().get());
+		long count = 0;
+		for (long[] slice : slices) {
+			count += slice[4];
+		}
+		assertEquals(context, count, whole.getCount());
+		assertEquals(context, slices.size(), (head != null) ? head.getCurrentLeafCount() : version.getCurrentLeafCount());
+		if (slices.isEmpty())
+			return;
+
+		for (int query = 0; query < 3; query++) {
+			int startPosition = random.nextInt(slices.size());
+			int endPosition = startPosition + random.nextInt(slices.size() - startPosition);
+			Node<Long, Long> byPositions = (head != null) ? head.aggregateFromTo(startPosition, endPosition)
+					: version.aggregateFromTo(startPosition, endPosition);
+			assertEquals(context + ", positions " + startPosition + ".." + endPosition,
+					expectedSum(slices, startPosition, endPosition), (long) byPositions.getValueState().get());
+
+			// the range covers the slices from the start position up to the end position, as their tmax precedes its end
+			long startTime = slices.get(startPosition)[0];
+			long endTime = slices.get(endPosition)[1];
+			Node<Long, Long> byTimes = (head != null) ? head.aggregateFromTo(startTime, endTime)
+					: version.aggregateFromTo(startTime, endTime);
+			assertEquals(context + ", times " + startTime + ".." + endTime,
+					expectedSum(slices, startPosition, endPosition), (long) byTimes.getValueState().get());
+		}
+	}
+
+
+	private static long expectedSum(List<long[]> slices, int startPosition, int endPosition) {
+		long sum = 0;
+		for (int position = startPosition; position <= endPosition; position++) {
+			sum += slices.get(position)[3];
+		}
+		return sum;
+	}
+
+
+	private static Node<Long, Long> slice(long start, Long value) throws Exception {
+		Mergeable<Long, Long> state = SUM.getState();
+		state.add(value);
+		Node.InnerNode<Long, Long> slice = new Node.InnerNode<>(state, start, start + SLICE_LENGTH);
+		slice.setTmax(start);
+		slice.setCount(1);
+		return slice;
+	}
+
+
+	/**
+	 * @return the start, end, tmax, value and count of the slice created by {@link #slice(long, Long)}
+	 */
+	private static long[] reference(long start, long value) {
+		return new long[]{start, start + SLICE_LENGTH, start, value, 1};
+	}
+
+
+	private static List<long[]> copy(List<long[]> slices) {
+		List<long[]> copy = new ArrayList<>(slices.size());
+		for (long[] slice : slices) {
+			copy.add(slice.clone());
+		}
+		return copy;
+	}
+
+
+	private static class Sum implements Mergeable<Long, Long> {
+
+		private long sum = 0;
+
+		private boolean empty = true;
+
+		@Override
+		public Mergeable<Long, Long> merge(Mergeable<Long, Long> other) {
+			Sum otherState = (Sum) other;
+			this.sum += otherState.sum;
+			this.empty &= otherState.empty;
+			return this;
+		}
+
+		@Override
+		public Long get() {
+			return sum;
+		}
+
+		@Override
+		public void add(Long value) {
+			this.sum += value;
+			this.empty = false;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return empty;
+		}
+	}
+}